@@ -0,0 +1,64 @@
+package com.github.orhan.geofencer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic catalogs for the benchmarks. Fences are generated from a fixed
+ * seed, so every run measures the same data.
+ */
+final class BenchmarkFences {
+    static final long SEED = 20170301L;
+
+    private BenchmarkFences() {
+    }
+
+    /**
+     * A fence as the JS side sends it: circle, time window and a
+     * notification with custom data.
+     */
+    static GeoNotification fence(Random random, int index) {
+        GeoNotification geo = new GeoNotification();
+        geo.id = "fence-" + index;
+        geo.latitude = 50 + random.nextDouble();
+        geo.longitude = 18 + random.nextDouble();
+        geo.radius = 50 + random.nextInt(450);
+        geo.transitionType = 1 + random.nextInt(3);
+        geo.startTime = "2017-01-23T11:00:00.000Z";
+        geo.endTime = "2037-01-27T15:00:00.000Z";
+        geo.happensOnce = random.nextBoolean();
+
+        Notification notification = new Notification();
+        notification.id = index;
+        notification.title = "Welcome to store " + index;
+        notification.text = "You just arrived at the store, check out today's offers.";
+        notification.openAppOnClick = true;
+        notification.setDataJson("{\"storeId\":" + index + ",\"tags\":[\"food\",\"drinks\"],"
+            + "\"campaign\":{\"id\":\"spring\",\"discount\":0.15}}");
+        geo.notification = notification;
+        return geo;
+    }
+
+    static List<GeoNotification> catalog(int size) {
+        Random random = new Random(SEED);
+        List<GeoNotification> fences = new ArrayList<GeoNotification>(size);
+        for (int i = 0; i < size; i++) {
+            fences.add(fence(random, i));
+        }
+        return fences;
+    }
+
+    /**
+     * Ids of {@code count} fences of a catalog of {@code size}, picked
+     * from a fixed seed.
+     */
+    static List<String> randomIds(int size, int count) {
+        Random random = new Random(SEED + 1);
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add("fence-" + random.nextInt(size));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stored records in the binary format of {@link GeoNotificationCodec}
+ * against the Gson JSON rows it replaced, both read through
+ * {@link GeoNotificationCodec#decode(byte[])}. The average record size is
+ * printed once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int FENCES = 1000;
+
+    @Param({"binary", "json"})
+    public String format;
+
+    private List<GeoNotification> fences;
+    private byte[][] records;
+    private int next;
+
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        fences = BenchmarkFences.catalog(FENCES);
+        records = new byte[FENCES][];
+        long bytes = 0;
+        for (int i = 0; i < FENCES; i++) {
+            records[i] = encode(fences.get(i));
+            bytes += records[i].length;
+        }
+        System.out.println(format + ": " + bytes / FENCES + " bytes per fence");
+    }
+
+    @Benchmark
+    public byte[] encode() throws UnsupportedEncodingException {
+        next = (next + 1) % FENCES;
+        return encode(fences.get(next));
+    }
+
+    @Benchmark
+    public GeoNotification decode() {
+        next = (next + 1) % FENCES;
+        return GeoNotificationCodec.decode(records[next]);
+    }
+
+    /**
+     * Loading the fence table of a store, see
+     * {@link GeoNotificationStore#loadTable()}.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public FenceTable decodeIntoTable() {
+        FenceTable table = new FenceTable(FENCES);
+        for (byte[] record : records) {
+            GeoNotificationCodec.decodeInto(record, table);
+        }
+        return table;
+    }
+
+    private byte[] encode(GeoNotification fence) throws UnsupportedEncodingException {
+        return "json".equals(format) ? fence.toJson().getBytes("UTF-8") : GeoNotificationCodec.encode(fence);
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link GoogleServiceCommandExecutor} itself, with commands
+ * that complete as soon as they run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandQueueBenchmark {
+    private GoogleServiceCommandExecutor executor;
+
+    @Setup
+    public void setUp() {
+        executor = new GoogleServiceCommandExecutor();
+    }
+
+    @Benchmark
+    public int queueAndExecute() {
+        ImmediateCommand command = new ImmediateCommand();
+        executor.QueueToExecute(command);
+        return command.getStatusCode();
+    }
+
+    static class ImmediateCommand extends AbstractGoogleServiceCommand {
+        ImmediateCommand() {
+            super(null);
+        }
+
+        @Override
+        public void Execute() {
+            ExecuteCustomCode();
+        }
+
+        @Override
+        protected void ExecuteCustomCode() {
+            CommandExecuted();
+        }
+    }
+}
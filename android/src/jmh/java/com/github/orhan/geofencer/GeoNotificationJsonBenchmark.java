@@ -0,0 +1,45 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gson serialization of a single fence, as done for every stored record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoNotificationJsonBenchmark {
+    private GeoNotification fence;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        fence = BenchmarkFences.fence(new Random(BenchmarkFences.SEED), 0);
+        json = fence.toJson();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return fence.toJson();
+    }
+
+    @Benchmark
+    public GeoNotification fromJson() {
+        return GeoNotification.fromJson(json);
+    }
+}
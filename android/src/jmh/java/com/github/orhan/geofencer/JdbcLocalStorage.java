@@ -0,0 +1,154 @@
+package com.github.orhan.geofencer;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for {@link LocalStorage} on a plain JVM: the same table, the
+ * same statements and the same transaction boundaries, run through the
+ * SQLite JDBC driver instead of the Android SQLite bindings.
+ */
+final class JdbcLocalStorage {
+    private static final String TABLE = LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME;
+    private static final String ID = LocalStorageDBHelper.LOCALSTORAGE_ID;
+    private static final String VALUE = LocalStorageDBHelper.LOCALSTORAGE_VALUE;
+
+    private final Connection connection;
+
+    JdbcLocalStorage(File file) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("DROP TABLE IF EXISTS " + TABLE);
+            statement.execute(LocalStorageDBHelper.DICTIONARY_TABLE_CREATE);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * {@link LocalStorage#setItems(Map)}
+     */
+    void setItems(Map<String, byte[]> items) throws SQLException {
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement(
+            "INSERT OR REPLACE INTO " + TABLE + " (" + ID + ", " + VALUE + ") VALUES (?, ?)");
+        try {
+            for (Map.Entry<String, byte[]> item : items.entrySet()) {
+                insert.setString(1, item.getKey());
+                insert.setBytes(2, item.getValue());
+                insert.executeUpdate();
+            }
+            connection.commit();
+        } finally {
+            insert.close();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * {@link LocalStorage#getItemBytes(String)}
+     */
+    byte[] getItemBytes(String key) throws SQLException {
+        PreparedStatement query = connection.prepareStatement(
+            "SELECT " + VALUE + " FROM " + TABLE + " WHERE " + ID + " = ?");
+        try {
+            query.setString(1, key);
+            ResultSet result = query.executeQuery();
+            return result.next() ? result.getBytes(1) : null;
+        } finally {
+            query.close();
+        }
+    }
+
+    /**
+     * {@link LocalStorage#getItemsBytes(List)}
+     */
+    Map<String, byte[]> getItemsBytes(List<String> keys) throws SQLException {
+        Map<String, byte[]> results = new HashMap<String, byte[]>(keys.size() * 2);
+        for (int from = 0; from < keys.size(); from += LocalStorage.MAX_KEYS_PER_QUERY) {
+            List<String> chunk = keys.subList(from, Math.min(keys.size(), from + LocalStorage.MAX_KEYS_PER_QUERY));
+            StringBuilder sql = new StringBuilder("SELECT " + ID + ", " + VALUE + " FROM " + TABLE
+                + " WHERE " + ID + " IN (?");
+            for (int i = 1; i < chunk.size(); i++) {
+                sql.append(",?");
+            }
+            PreparedStatement query = connection.prepareStatement(sql.append(')').toString());
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    query.setString(i + 1, chunk.get(i));
+                }
+                ResultSet result = query.executeQuery();
+                while (result.next()) {
+                    results.put(result.getString(1), result.getBytes(2));
+                }
+            } finally {
+                query.close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * {@link LocalStorage#getItemsAfter(String, int)}
+     */
+    Map<String, byte[]> getItemsAfter(String afterKey, int limit) throws SQLException {
+        Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        PreparedStatement query = connection.prepareStatement("SELECT " + ID + ", " + VALUE + " FROM " + TABLE
+            + (afterKey == null ? "" : " WHERE " + ID + " > ?") + " ORDER BY " + ID + " LIMIT " + limit);
+        try {
+            if (afterKey != null) {
+                query.setString(1, afterKey);
+            }
+            ResultSet result = query.executeQuery();
+            while (result.next()) {
+                results.put(result.getString(1), result.getBytes(2));
+            }
+        } finally {
+            query.close();
+        }
+        return results;
+    }
+
+    /**
+     * {@link LocalStorage#removeItems(List)}
+     */
+    void removeItems(List<String> keys) throws SQLException {
+        connection.setAutoCommit(false);
+        PreparedStatement delete = connection.prepareStatement(
+            "DELETE FROM " + TABLE + " WHERE " + ID + " = ?");
+        try {
+            for (String key : keys) {
+                delete.setString(1, key);
+                delete.executeUpdate();
+            }
+            connection.commit();
+        } finally {
+            delete.close();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    void clear() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("DELETE FROM " + TABLE);
+        } finally {
+            statement.close();
+        }
+    }
+
+    void close() throws SQLException {
+        connection.close();
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A location update of {@link LocalGeofenceEngine}, walking through the
+ * area of a seeded catalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalGeofenceEngineBenchmark {
+    private static final int LOCATIONS = 4096;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private LocalGeofenceEngine engine;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        engine = new LocalGeofenceEngine();
+        for (GeoNotification geo : BenchmarkFences.catalog(size)) {
+            engine.addOrUpdate(geo);
+        }
+        // A walk of about 50m per update
+        Random random = new Random(BenchmarkFences.SEED);
+        latitudes = new double[LOCATIONS];
+        longitudes = new double[LOCATIONS];
+        double latitude = 50.5, longitude = 18.5;
+        for (int i = 0; i < LOCATIONS; i++) {
+            latitude += (random.nextDouble() - 0.5) * 0.001;
+            longitude += (random.nextDouble() - 0.5) * 0.0014;
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+        }
+        engine.onLocation(latitude, longitude, 0, null);
+    }
+
+    @Benchmark
+    public boolean onLocation() {
+        next = (next + 1) & (LOCATIONS - 1);
+        return engine.onLocation(latitudes[next], longitudes[next], next * 1000L, null);
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.orhan.geofencer;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parse path of addOrUpdate: bridge map to JSON to {@link GeoNotification}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModuleJsonBenchmark {
+    private ReadableMap geofence;
+
+    @Setup
+    public void setUp() {
+        JavaOnlyMap data = JavaOnlyMap.of(
+            "storeId", 7.0,
+            "tags", JavaOnlyArray.of("food", "drinks"),
+            "campaign", JavaOnlyMap.of("id", "spring", "discount", 0.15));
+        JavaOnlyMap notification = JavaOnlyMap.of(
+            "id", 7.0,
+            "title", "Welcome to store 7",
+            "text", "You just arrived at the store, check out today's offers.",
+            "openAppOnClick", true,
+            "data", data);
+        geofence = JavaOnlyMap.of(
+            "id", "fence-7",
+            "latitude", 50.2,
+            "longitude", 18.9,
+            "radius", 150.0,
+            "transitionType", 1.0,
+            "startTime", "2017-01-23T11:00:00.000Z",
+            "endTime", "2037-01-27T15:00:00.000Z",
+            "notification", notification);
+    }
+
+    @Benchmark
+    public String toJSONObject() throws JSONException {
+        return GeofencerModule.toJSONObject(geofence).toString();
+    }
+
+    @Benchmark
+    public GeoNotification parse() throws JSONException {
+        return GeoNotification.fromJson(GeofencerModule.toJSONObject(geofence).toString());
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.orhan.geofencer;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time an addOrUpdate call holds the React native-modules thread, before
+ * and after {@link ModuleTaskQueue}. {@code synchronousCall} is what the
+ * thread used to do: parse the fences, look up the stored ones and write
+ * them, see {@link JdbcLocalStorage}. {@code queuedCall} is the hand-off that
+ * is left on that thread now, the same work then runs on the queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModuleQueueBenchmark {
+    private static final ModuleTaskQueue.BatchTask<ReadableArray> IGNORE =
+        new ModuleTaskQueue.BatchTask<ReadableArray>() {
+            @Override
+            public void run(List<ReadableArray> calls, Callback done) {
+                done.invoke();
+            }
+        };
+
+    private static final ModuleTaskQueue.Reply NO_REPLY = new ModuleTaskQueue.Reply() {
+        @Override
+        public void resolve(Object value) {
+        }
+
+        @Override
+        public void reject(String code, String message) {
+        }
+    };
+
+    /**
+     * Fences per addOrUpdate call.
+     */
+    @Param({"1", "100"})
+    public int fences;
+
+    private File file;
+    private JdbcLocalStorage storage;
+    private ReadableArray geofences;
+    private ModuleTaskQueue queue;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        List<Object> maps = new ArrayList<Object>(fences);
+        for (GeoNotification fence : BenchmarkFences.catalog(fences)) {
+            maps.add(JavaOnlyMap.of(
+                "id", fence.id,
+                "latitude", fence.latitude,
+                "longitude", fence.longitude,
+                "radius", (double) fence.radius,
+                "transitionType", (double) fence.transitionType,
+                "notification", JavaOnlyMap.of(
+                    "id", 7.0,
+                    "title", "Welcome to " + fence.id,
+                    "text", "You just arrived, check out today's offers.",
+                    "openAppOnClick", true,
+                    "data", JavaOnlyMap.of("storeId", fence.id))));
+        }
+        geofences = JavaOnlyArray.of(maps.toArray());
+
+        file = File.createTempFile("geofencer", ".db");
+        storage = new JdbcLocalStorage(file);
+        queue = new ModuleTaskQueue();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        storage.close();
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    @Benchmark
+    public int synchronousCall() throws Exception {
+        List<String> ids = new ArrayList<String>(geofences.size());
+        List<GeoNotification> parsed = new ArrayList<GeoNotification>(geofences.size());
+        for (int i = 0; i < geofences.size(); i++) {
+            ReadableMap geofence = geofences.getMap(i);
+            GeoNotification geo = GeoNotification.fromJson(GeofencerModule.toJSONObject(geofence).toString());
+            parsed.add(geo);
+            ids.add(geo.id);
+        }
+        int stored = storage.getItemsBytes(ids).size();
+        Map<String, byte[]> items = new LinkedHashMap<String, byte[]>();
+        for (GeoNotification geo : parsed) {
+            items.put(geo.id, GeoNotificationCodec.encode(geo));
+        }
+        storage.setItems(items);
+        return stored;
+    }
+
+    @Benchmark
+    public void queuedCall() {
+        queue.submitBatch("addOrUpdate", Collections.singletonList(geofences), NO_REPLY, IGNORE);
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The reflective Gson configuration that {@link Gson#get()} used before the
+ * streaming adapters, as the reference for their output. Only the values
+ * the reflective adapter cannot represent, raw JSON, polygons and
+ * schedules, get small tree-based adapters.
+ */
+final class ReflectiveGson {
+    private static final TypeAdapter<JsonElement> ELEMENTS = new com.google.gson.Gson().getAdapter(JsonElement.class);
+
+    private ReflectiveGson() {
+    }
+
+    static com.google.gson.Gson create() {
+        return new GsonBuilder()
+            .excludeFieldsWithoutExposeAnnotation()
+            .registerTypeAdapter(RawJson.class, new RawJsonAdapter().nullSafe())
+            .registerTypeAdapter(double[].class, new PolygonAdapter().nullSafe())
+            .registerTypeAdapter(RecurringSchedule.class, new ScheduleAdapter().nullSafe())
+            .create();
+    }
+
+    private static class RawJsonAdapter extends TypeAdapter<RawJson> {
+        @Override
+        public void write(JsonWriter out, RawJson value) throws IOException {
+            out.jsonValue(value.toString());
+        }
+
+        @Override
+        public RawJson read(JsonReader in) throws IOException {
+            return new RawJson(ELEMENTS.read(in).toString());
+        }
+    }
+
+    private static class PolygonAdapter extends TypeAdapter<double[]> {
+        @Override
+        public void write(JsonWriter out, double[] value) throws IOException {
+            JsonArray points = new JsonArray();
+            for (int i = 0; i + 1 < value.length; i += 2) {
+                JsonObject point = new JsonObject();
+                point.addProperty("latitude", value[i]);
+                point.addProperty("longitude", value[i + 1]);
+                points.add(point);
+            }
+            ELEMENTS.write(out, points);
+        }
+
+        @Override
+        public double[] read(JsonReader in) throws IOException {
+            JsonArray points = ELEMENTS.read(in).getAsJsonArray();
+            double[] polygon = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                JsonObject point = points.get(i).getAsJsonObject();
+                polygon[2 * i] = point.get("latitude").getAsDouble();
+                polygon[2 * i + 1] = point.get("longitude").getAsDouble();
+            }
+            return polygon;
+        }
+    }
+
+    private static class ScheduleAdapter extends TypeAdapter<RecurringSchedule> {
+        @Override
+        public void write(JsonWriter out, RecurringSchedule value) throws IOException {
+            JsonObject schedule = new JsonObject();
+            schedule.addProperty("timeZone", value.getTimeZone());
+            JsonArray weekly = new JsonArray();
+            for (int[] range : value.getRanges()) {
+                JsonObject hours = new JsonObject();
+                JsonArray days = new JsonArray();
+                days.add(range[0]);
+                hours.add("days", days);
+                hours.addProperty("start", time(range[1]));
+                hours.addProperty("end", time(range[2]));
+                weekly.add(hours);
+            }
+            schedule.add("weekly", weekly);
+            JsonArray exceptions = new JsonArray();
+            for (String date : value.getExceptions()) {
+                exceptions.add(date);
+            }
+            schedule.add("exceptions", exceptions);
+            ELEMENTS.write(out, schedule);
+        }
+
+        @Override
+        public RecurringSchedule read(JsonReader in) throws IOException {
+            JsonObject schedule = ELEMENTS.read(in).getAsJsonObject();
+            List<int[]> ranges = new ArrayList<int[]>();
+            for (JsonElement element : schedule.getAsJsonArray("weekly")) {
+                JsonObject hours = element.getAsJsonObject();
+                for (JsonElement day : hours.getAsJsonArray("days")) {
+                    ranges.add(new int[] { day.getAsInt(),
+                        minutes(hours.get("start").getAsString()), minutes(hours.get("end").getAsString()) });
+                }
+            }
+            List<String> exceptions = new ArrayList<String>();
+            if (schedule.has("exceptions")) {
+                for (JsonElement date : schedule.getAsJsonArray("exceptions")) {
+                    exceptions.add(date.getAsString());
+                }
+            }
+            return RecurringSchedule.compile(schedule.get("timeZone").getAsString(), ranges, exceptions);
+        }
+
+        private static String time(int minutes) {
+            return String.format(Locale.US, "%02d:%02d", minutes / 60, minutes % 60);
+        }
+
+        private static int minutes(String time) {
+            List<String> parts = Arrays.asList(time.split(":"));
+            return Integer.parseInt(parts.get(0)) * 60 + Integer.parseInt(parts.get(1));
+        }
+    }
+}
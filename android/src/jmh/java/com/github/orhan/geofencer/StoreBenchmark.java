@@ -0,0 +1,127 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The statements of {@link LocalStorage} on catalogs of different sizes,
+ * see {@link JdbcLocalStorage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private File file;
+    private JdbcLocalStorage storage;
+    private Map<String, byte[]> catalog;
+    private Map<String, byte[]> batch;
+    private List<String> batchIds;
+    private List<String> lookups;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        catalog = new LinkedHashMap<String, byte[]>(size * 2);
+        for (GeoNotification fence : BenchmarkFences.catalog(size)) {
+            catalog.put(fence.id, fence.toJson().getBytes("UTF-8"));
+        }
+        batch = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> item : catalog.entrySet()) {
+            if (batch.size() == BATCH) {
+                break;
+            }
+            batch.put(item.getKey(), item.getValue());
+        }
+        batchIds = new ArrayList<String>(batch.keySet());
+        lookups = BenchmarkFences.randomIds(size, BATCH);
+
+        file = File.createTempFile("geofencer", ".db");
+        storage = new JdbcLocalStorage(file);
+        storage.setItems(catalog);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        storage.close();
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    /**
+     * Replaces the first {@value #BATCH} records in one transaction.
+     */
+    @Benchmark
+    public void setItems() throws SQLException {
+        storage.setItems(batch);
+    }
+
+    @Benchmark
+    public byte[] getItemBytes() throws SQLException {
+        next = (next + 1) % lookups.size();
+        return storage.getItemBytes(lookups.get(next));
+    }
+
+    /**
+     * The lookup of the fences of a transition.
+     */
+    @Benchmark
+    public Map<String, byte[]> getItemsBytes() throws SQLException {
+        return storage.getItemsBytes(lookups);
+    }
+
+    /**
+     * Reads the whole table in pages, as done when the fence table is loaded.
+     */
+    @Benchmark
+    public int pageAll() throws SQLException {
+        int count = 0;
+        String after = null;
+        Map<String, byte[]> page;
+        do {
+            page = storage.getItemsAfter(after, 1000);
+            for (String key : page.keySet()) {
+                after = key;
+                count++;
+            }
+        } while (page.size() == 1000);
+        return count;
+    }
+
+    /**
+     * Removes and restores {@value #BATCH} records.
+     */
+    @Benchmark
+    public void removeItems() throws SQLException {
+        storage.removeItems(batchIds);
+        storage.setItems(batch);
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time range checks run for every fence of a transition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeRangeBenchmark {
+    private GeoNotification fence;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        fence = BenchmarkFences.fence(new Random(BenchmarkFences.SEED), 0);
+        now = GeoNotification.parseDate("2017-03-01T12:00:00.000Z").getTime();
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return GeoNotification.parseDate(fence.startTime);
+    }
+
+    @Benchmark
+    public boolean isWithinTimeRange() {
+        return fence.isWithinTimeRange(now);
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.orhan.geofencer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the streaming adapters against the reflective
+ * configuration, see {@link ReflectiveGson}, on the largest payloads we
+ * send: a getWatched page of fences with polygons, schedules and a few
+ * kilobytes of custom data each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeAdapterBenchmark {
+    private static final int PAGE = 100;
+
+    @Param({"streaming", "reflective"})
+    public String adapters;
+
+    private com.google.gson.Gson gson;
+    private List<GeoNotification> page;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        gson = "reflective".equals(adapters) ? ReflectiveGson.create() : Gson.get();
+
+        RecurringSchedule schedule = RecurringSchedule.compile("Europe/Warsaw",
+            Arrays.asList(new int[] { 1, 9 * 60, 17 * 60 }, new int[] { 2, 9 * 60, 17 * 60 },
+                new int[] { 3, 9 * 60, 17 * 60 }, new int[] { 4, 9 * 60, 17 * 60 },
+                new int[] { 5, 9 * 60, 15 * 60 }, new int[] { 6, 10 * 60, 14 * 60 }),
+            Collections.singletonList("2017-12-25"));
+        StringBuilder data = new StringBuilder("{\"offers\":[");
+        for (int i = 0; i < 40; i++) {
+            data.append(i == 0 ? "" : ",").append("{\"sku\":\"").append(100000 + i)
+                .append("\",\"name\":\"Offer number ").append(i).append("\",\"price\":").append(9.99 + i)
+                .append(",\"tags\":[\"food\",\"drinks\"]}");
+        }
+        data.append("]}");
+
+        Random random = new Random(BenchmarkFences.SEED);
+        page = new ArrayList<GeoNotification>(PAGE);
+        for (int i = 0; i < PAGE; i++) {
+            GeoNotification geo = BenchmarkFences.fence(random, i);
+            double[] polygon = new double[32];
+            for (int j = 0; j < polygon.length; j += 2) {
+                double angle = Math.PI * j / 16;
+                polygon[j] = geo.latitude + 0.001 * Math.sin(angle);
+                polygon[j + 1] = geo.longitude + 0.001 * Math.cos(angle);
+            }
+            geo.polygon = polygon;
+            geo.schedule = schedule;
+            geo.notification.setDataJson(data.toString());
+            page.add(geo);
+        }
+        json = gson.toJson(page);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return gson.toJson(page);
+    }
+
+    @Benchmark
+    public GeoNotification[] fromJson() {
+        return gson.fromJson(json, GeoNotification[].class);
+    }
+}
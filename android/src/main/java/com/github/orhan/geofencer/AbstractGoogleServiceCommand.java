@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
 import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
@@ -20,39 +21,56 @@ public abstract class AbstractGoogleServiceCommand implements
     protected List<IGoogleServiceCommandListener> listeners;
     protected Context context;
     protected GoogleApiClient mGoogleApiClient;
+    protected int statusCode = CommonStatusCodes.SUCCESS;
+    long queuedAt;
+    long connectStartedAt;
 
     public AbstractGoogleServiceCommand(Context context) {
         this.context = context;
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-            .addConnectionCallbacks(this)
-            .addOnConnectionFailedListener(this)
-            .addApi(LocationServices.API)
-            .build();
         logger = Logger.getLogger();
         listeners = new ArrayList<IGoogleServiceCommandListener>();
     }
 
+    /**
+     * The client is built when the command first runs, so commands can be
+     * created and queued without Play Services, e.g. on a plain JVM.
+     */
     private void connectToGoogleServices() {
+        if (mGoogleApiClient == null) {
+            mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(LocationServices.API)
+                .build();
+        }
         if (!mGoogleApiClient.isConnected() ||
             (!mGoogleApiClient.isConnecting() && !connectionInProgress)) {
             connectionInProgress = true;
+            connectStartedAt = Metrics.now();
             logger.log(Log.DEBUG, "Connecting location client");
             mGoogleApiClient.connect();
         }
     }
 
     @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
+    public void onConnectionFailed(final ConnectionResult connectionResult) {
         connectionInProgress = false;
-        logger.log(Log.DEBUG, "Connecting to google services fail - "
-                + connectionResult.toString());
+        Metrics.increment(Metrics.CONNECTION_FAILURES);
+        logger.log(Log.DEBUG, new Logger.Message() {
+            @Override
+            public String get() {
+                return "Connecting to google services fail - " + connectionResult.toString();
+            }
+        });
 
-        // TODO: invoke CommandExucuted with ERROR
+        // Complete the command so the executor does not wait for it forever
+        statusCode = CommonStatusCodes.API_NOT_CONNECTED;
+        CommandExecuted();
     }
 
     @Override
     public void onConnected(Bundle arg0) {
-        // TODO Auto-generated method stub
+        Metrics.recordSince(Metrics.PLAY_SERVICES_CONNECT, connectStartedAt);
         logger.log(Log.DEBUG, "Google play services connected");
         // Get the PendingIntent for the request
         ExecuteCustomCode();
@@ -67,6 +85,14 @@ public abstract class AbstractGoogleServiceCommand implements
         listeners.add(listener);
     }
 
+    /**
+     * Status code the command completed with, valid once listeners were
+     * notified.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
     public void Execute() {
         connectToGoogleServices();
     }
@@ -74,7 +100,9 @@ public abstract class AbstractGoogleServiceCommand implements
     protected void CommandExecuted() {
         // Turn off the in progress flag and disconnect the client
         connectionInProgress = false;
-        mGoogleApiClient.disconnect();
+        if (mGoogleApiClient != null) {
+            mGoogleApiClient.disconnect();
+        }
         for (IGoogleServiceCommandListener listener : listeners) {
             listener.onCommandExecuted();
         }
@@ -4,6 +4,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.Geofence;
@@ -25,25 +26,35 @@ public class AddGeofenceCommand extends AbstractGoogleServiceCommand {
     @Override
     public void ExecuteCustomCode() {
         logger.log(Log.DEBUG, "Adding new geofences");
-        if (geofencesToAdd != null && geofencesToAdd.size() > 0) {
-            try {
-                LocationServices.GeofencingApi
-                    .addGeofences(mGoogleApiClient, geofencesToAdd, pendingIntent)
-                    .setResultCallback(new ResultCallback<Status>() {
-                        @Override
-                        public void onResult(Status status) {
-                            if (status.isSuccess()) {
-                                logger.log(Log.DEBUG, "Geofences successfully added");
-                            } else {
-                                logger.log(Log.DEBUG, "Adding geofences failed");
-                            }
-                            CommandExecuted();
+        if (geofencesToAdd == null || geofencesToAdd.isEmpty()) {
+            CommandExecuted();
+            return;
+        }
+        try {
+            LocationServices.GeofencingApi
+                .addGeofences(mGoogleApiClient, geofencesToAdd, pendingIntent)
+                .setResultCallback(new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(final Status status) {
+                        statusCode = status.getStatusCode();
+                        if (status.isSuccess()) {
+                            logger.log(Log.DEBUG, "Geofences successfully added");
+                        } else {
+                            logger.log(Log.DEBUG, new Logger.Message() {
+                                @Override
+                                public String get() {
+                                    return "Adding geofences failed - " + status.getStatusCode()
+                                        + " " + status.getStatusMessage();
+                                }
+                            });
                         }
-                    });
-            } catch (Exception exception) {
-                logger.log("Adding geofence failed", exception);
-                CommandExecuted();
-            }
+                        CommandExecuted();
+                    }
+                });
+        } catch (Exception exception) {
+            logger.log("Adding geofence failed", exception);
+            statusCode = CommonStatusCodes.INTERNAL_ERROR;
+            CommandExecuted();
         }
     }
 }
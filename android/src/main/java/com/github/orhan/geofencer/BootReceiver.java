@@ -4,11 +4,34 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registers the stored fences again after a reboot. Loading the catalog
+ * takes long for large ones, so it runs off the main thread while the
+ * broadcast is kept alive.
+ */
 public class BootReceiver extends BroadcastReceiver {
+    private static final ExecutorService jobs = Executors.newSingleThreadExecutor(
+        TransitionReceiver.daemonThreads("GeofencerBoot"));
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        Logger.setLogger(new Logger(GeofencerModule.TAG, context, false));
-        GeoNotificationManager manager = new GeoNotificationManager(context);
-        manager.loadFromStorageAndInitializeGeofences();
+        final Context appContext = context.getApplicationContext();
+        Logger.initLogger(appContext);
+        final PendingResult result = goAsync();
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    GeoNotificationManager.getInstance(appContext).loadFromStorageAndInitializeGeofences();
+                } catch (RuntimeException e) {
+                    Logger.getLogger().log("Registering geofences after boot failed", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,279 @@
+package com.github.orhan.geofencer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps large catalogs within the Play Services limit of 100 geofences per
+ * app. Above {@link #MAX_DIRECT_FENCES} stored fences only one parent fence
+ * per {@link FenceClusters} cluster is registered, and the children of a
+ * cluster are registered while the device is inside its parent.
+ *
+ * The registrations stay within {@link #MAX_REGISTERED}: the clusters are
+ * kept within {@link #MAX_CLUSTERS} by {@link FenceClusters}, and of the
+ * children of entered clusters only the nearest ones fit into the rest of
+ * the budget. When some are left out, an exit-only refresh fence around the
+ * last known location reaching the nearest one left out triggers choosing
+ * again once the device moved that far.
+ *
+ * The cluster index is rebuilt from the store once per process. Whether
+ * clustering is on and which clusters are entered is kept in shared
+ * preferences, since transitions may be delivered to a fresh process,
+ * along with the registered ids and the last known location.
+ */
+public class ClusteredRegistration {
+    static final int MAX_DIRECT_FENCES = 90;
+    /**
+     * Geofences Play Services allows per app.
+     */
+    static final int MAX_REGISTERED = 100;
+    static final int MAX_CLUSTERS = 40;
+    static final String REFRESH_ID = FenceClusters.ID_PREFIX + "refresh";
+    static final int MIN_REFRESH_RADIUS = 100;
+    private static final double CELL_SIZE_METERS = 1000;
+
+    private static final String PREFERENCES = "com.github.orhan.geofencer.clusters";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_ACTIVE = "active";
+    private static final String KEY_REGISTERED = "registered";
+    private static final String KEY_ORIGIN = "origin";
+
+    private static FenceClusters clusters;
+    private static final Object mutex = new Object();
+
+    /**
+     * Tells which of the given fences have their time window open.
+     */
+    public interface WindowCheck {
+        List<String> getOpen(List<String> ids);
+    }
+
+    /**
+     * What to register: every parent, the nearest children of entered
+     * clusters, and the refresh fence when children were left out.
+     */
+    public static class Plan {
+        public final List<FenceClusters.Cluster> parents = new ArrayList<FenceClusters.Cluster>();
+        public final List<String> children = new ArrayList<String>();
+        /**
+         * Latitude, longitude and radius of the refresh fence, or null
+         */
+        public double[] refresh;
+
+        public Set<String> getIds() {
+            Set<String> ids = new HashSet<String>(children);
+            for (FenceClusters.Cluster parent : parents) {
+                ids.add(parent.id);
+            }
+            if (refresh != null) {
+                ids.add(REFRESH_ID);
+            }
+            return ids;
+        }
+
+        public int size() {
+            return parents.size() + children.size() + (refresh != null ? 1 : 0);
+        }
+    }
+
+    private static class Candidate {
+        final String id;
+        /**
+         * Meters from the origin to the edge of the fence, negative inside
+         */
+        final double edge;
+
+        Candidate(String id, double edge) {
+            this.id = id;
+            this.edge = edge;
+        }
+    }
+
+    private ClusteredRegistration() {
+    }
+
+    /**
+     * Returns the shared cluster index, loading all stored fences on first use.
+     */
+    public static FenceClusters getClusters(GeoNotificationStore store) {
+        synchronized (mutex) {
+            return clusters == null ? getClusters(store.loadTable()) : clusters;
+        }
+    }
+
+    /**
+     * Returns the shared cluster index, built from the table if missing.
+     *
+     * @param table
+     *            all stored fences, just loaded
+     */
+    public static FenceClusters getClusters(FenceTable table) {
+        synchronized (mutex) {
+            if (clusters == null) {
+                FenceClusters created = new FenceClusters(CELL_SIZE_METERS, MAX_CLUSTERS);
+                created.addAll(table);
+                clusters = created;
+            }
+            return clusters;
+        }
+    }
+
+    /**
+     * Drops the cluster index, e.g. after the store was replaced.
+     */
+    public static void invalidate() {
+        synchronized (mutex) {
+            clusters = null;
+        }
+    }
+
+    /**
+     * Chooses the registrations within {@link #MAX_REGISTERED}. Children
+     * of entered clusters are taken nearest edge first from {@code origin},
+     * or from the center of their cluster while no location is known, and
+     * only those with an open window count.
+     *
+     * @param origin
+     *            latitude and longitude of the last known location, or null
+     */
+    public static Plan plan(FenceClusters clusters, Set<String> active, double[] origin, WindowCheck windows) {
+        Plan plan = new Plan();
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        // Children change under the lock of the index
+        synchronized (clusters) {
+            for (FenceClusters.Cluster cluster : clusters.getAll()) {
+                plan.parents.add(cluster);
+                if (!active.contains(cluster.id)) {
+                    continue;
+                }
+                double fromLat = origin != null ? origin[0] : cluster.latitude;
+                double fromLng = origin != null ? origin[1] : cluster.longitude;
+                for (Map.Entry<String, double[]> child : cluster.children.entrySet()) {
+                    double[] circle = child.getValue();
+                    candidates.add(new Candidate(child.getKey(),
+                        FenceClusters.distance(fromLat, fromLng, circle[0], circle[1]) - circle[2]));
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(a.edge, b.edge);
+            }
+        });
+
+        // One left for the refresh fence
+        int budget = MAX_REGISTERED - plan.parents.size() - 1;
+        int next = 0;
+        while (next < candidates.size() && plan.children.size() < budget) {
+            int end = Math.min(candidates.size(), next + budget - plan.children.size());
+            List<String> batch = new ArrayList<String>(end - next);
+            for (Candidate candidate : candidates.subList(next, end)) {
+                batch.add(candidate.id);
+            }
+            Set<String> open = new HashSet<String>(windows.getOpen(batch));
+            for (String id : batch) {
+                if (open.contains(id)) {
+                    plan.children.add(id);
+                }
+            }
+            next = end;
+        }
+        if (next < candidates.size() && origin != null) {
+            double reach = Math.max(MIN_REFRESH_RADIUS, Math.ceil(candidates.get(next).edge));
+            plan.refresh = new double[] { origin[0], origin[1], reach };
+        }
+        return plan;
+    }
+
+    public static boolean shouldCluster(int fenceCount) {
+        return fenceCount > MAX_DIRECT_FENCES;
+    }
+
+    public static boolean isEnabled(Context context) {
+        return getPreferences(context).getBoolean(KEY_ENABLED, false);
+    }
+
+    public static void setEnabled(Context context, boolean enabled) {
+        getPreferences(context).edit()
+            .putBoolean(KEY_ENABLED, enabled)
+            .remove(KEY_ACTIVE)
+            .remove(KEY_REGISTERED)
+            .apply();
+    }
+
+    public static synchronized Set<String> getActive(Context context) {
+        return new HashSet<String>(getPreferences(context).getStringSet(KEY_ACTIVE, new HashSet<String>()));
+    }
+
+    public static synchronized void setActive(Context context, String clusterId, boolean active) {
+        Set<String> ids = getActive(context);
+        if (active ? ids.add(clusterId) : ids.remove(clusterId)) {
+            getPreferences(context).edit().putStringSet(KEY_ACTIVE, ids).apply();
+        }
+    }
+
+    /**
+     * Ids registered while clustering, or null when not known, e.g. right
+     * after clustering was turned on.
+     */
+    public static Set<String> getRegistered(Context context) {
+        Set<String> ids = getPreferences(context).getStringSet(KEY_REGISTERED, null);
+        return ids == null ? null : new HashSet<String>(ids);
+    }
+
+    public static void setRegistered(Context context, Set<String> ids) {
+        getPreferences(context).edit().putStringSet(KEY_REGISTERED, new HashSet<String>(ids)).apply();
+    }
+
+    /**
+     * @return latitude and longitude of the last known location, or null
+     */
+    public static double[] getOrigin(Context context) {
+        String origin = getPreferences(context).getString(KEY_ORIGIN, null);
+        if (origin == null) {
+            return null;
+        }
+        int comma = origin.indexOf(',');
+        return new double[] {
+            Double.parseDouble(origin.substring(0, comma)), Double.parseDouble(origin.substring(comma + 1)) };
+    }
+
+    public static void setOrigin(Context context, double latitude, double longitude) {
+        getPreferences(context).edit().putString(KEY_ORIGIN, latitude + "," + longitude).apply();
+    }
+
+    public static Geofence toGeofence(FenceClusters.Cluster cluster) {
+        return new Geofence.Builder()
+            .setRequestId(cluster.id)
+            .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
+            .setCircularRegion(cluster.latitude, cluster.longitude, cluster.radius)
+            .setExpirationDuration(Geofence.NEVER_EXPIRE).build();
+    }
+
+    /**
+     * Leaving it means the nearest children were chosen for a place the
+     * device is no longer at.
+     */
+    public static Geofence toRefreshGeofence(double[] refresh) {
+        return new Geofence.Builder()
+            .setRequestId(REFRESH_ID)
+            .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_EXIT)
+            .setCircularRegion(refresh[0], refresh[1], (float) refresh[2])
+            .setExpirationDuration(Geofence.NEVER_EXPIRE).build();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.orhan.geofencer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups fences into clusters by the grid cell their center falls into, and
+ * keeps for every cluster a parent circle enclosing all of its children.
+ *
+ * The grid starts at the given cell size. Whenever the fences fall into
+ * more than {@code maxClusters} cells, the grid moves up a level, doubling
+ * the cell size, and the fences are grouped again. So the number of parents
+ * stays within budget however far the catalog is spread. Cluster ids carry
+ * the level, so the clusters of different levels never share an id.
+ *
+ * Updates are incremental: adding, moving or removing a fence only
+ * recomputes the parent circles of the cells it touched, and reports their
+ * ids so the caller can re-register just those. Moving up a level reports
+ * every cluster before and after.
+ */
+public class FenceClusters {
+    public static final String ID_PREFIX = "cluster:";
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    /**
+     * Cells of this level span the globe, at most 4 of them hold fences.
+     */
+    private static final int MAX_LEVEL = 30;
+
+    public static class Cluster {
+        public final String id;
+        public double latitude;
+        public double longitude;
+        public int radius;
+        final Map<String, double[]> children = new LinkedHashMap<String, double[]>();
+
+        Cluster(String id) {
+            this.id = id;
+        }
+
+        public List<String> getChildIds() {
+            return new ArrayList<String>(children.keySet());
+        }
+
+        public boolean isEmpty() {
+            return children.isEmpty();
+        }
+
+        /**
+         * Center is the middle of the children's bounding box, the radius
+         * reaches the far edge of every child.
+         */
+        void recompute() {
+            if (children.isEmpty()) {
+                return;
+            }
+            double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+            double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+            for (double[] child : children.values()) {
+                minLat = Math.min(minLat, child[0]);
+                maxLat = Math.max(maxLat, child[0]);
+                minLng = Math.min(minLng, child[1]);
+                maxLng = Math.max(maxLng, child[1]);
+            }
+            latitude = (minLat + maxLat) / 2;
+            longitude = (minLng + maxLng) / 2;
+            double farthest = 0;
+            for (double[] child : children.values()) {
+                farthest = Math.max(farthest, distance(latitude, longitude, child[0], child[1]) + child[2]);
+            }
+            radius = (int) Math.ceil(farthest) + 1;
+        }
+    }
+
+    private final double baseCellDegrees;
+    private final int maxClusters;
+    private int level;
+    private final Map<String, Cluster> clusters = new HashMap<String, Cluster>();
+    private final Map<String, String> clusterOfFence = new HashMap<String, String>();
+
+    /**
+     * @param maxClusters
+     *            at least 4, the most cells that can hold fences at the
+     *            coarsest level
+     */
+    public FenceClusters(double cellSizeMeters, int maxClusters) {
+        if (maxClusters < 4) {
+            throw new IllegalArgumentException("maxClusters must be at least 4");
+        }
+        this.baseCellDegrees = Math.toDegrees(cellSizeMeters / EARTH_RADIUS_METERS);
+        this.maxClusters = maxClusters;
+    }
+
+    public static boolean isClusterId(String id) {
+        return id != null && id.startsWith(ID_PREFIX);
+    }
+
+    /**
+     * Adds every fence of the table, at the finest level that keeps the
+     * clusters within budget. Parent circles are computed once at the end,
+     * rather than after every fence.
+     */
+    public synchronized void addAll(FenceTable table) {
+        int size = table.size();
+        Map<String, double[]> fences = new LinkedHashMap<String, double[]>(size * 2);
+        for (Cluster cluster : clusters.values()) {
+            fences.putAll(cluster.children);
+        }
+        for (int row = 0; row < size; row++) {
+            fences.put(table.id(row), new double[] { table.latitude(row), table.longitude(row), table.radius(row) });
+        }
+        while (level < MAX_LEVEL && countCells(fences.values(), level) > maxClusters) {
+            level++;
+        }
+        regroup(fences);
+    }
+
+    /**
+     * @return ids of the clusters whose parent circle changed
+     */
+    public synchronized Set<String> addOrUpdate(String id, double latitude, double longitude, double radius) {
+        Set<String> changed = new LinkedHashSet<String>();
+        String clusterId = clusterIdFor(latitude, longitude, level);
+        String previous = clusterOfFence.get(id);
+        if (previous != null && !previous.equals(clusterId)) {
+            Cluster old = clusters.get(previous);
+            old.children.remove(id);
+            old.recompute();
+            if (old.isEmpty()) {
+                clusters.remove(previous);
+            }
+            changed.add(previous);
+        }
+
+        Cluster cluster = clusters.get(clusterId);
+        if (cluster == null) {
+            cluster = new Cluster(clusterId);
+            clusters.put(clusterId, cluster);
+        }
+        cluster.children.put(id, new double[] { latitude, longitude, radius });
+        clusterOfFence.put(id, clusterId);
+        int oldRadius = cluster.radius;
+        double oldLatitude = cluster.latitude, oldLongitude = cluster.longitude;
+        cluster.recompute();
+        if (cluster.radius != oldRadius || cluster.latitude != oldLatitude || cluster.longitude != oldLongitude) {
+            changed.add(clusterId);
+        }
+
+        if (clusters.size() > maxClusters) {
+            changed.addAll(clusters.keySet());
+            coarsen();
+            changed.addAll(clusters.keySet());
+        }
+        return changed;
+    }
+
+    /**
+     * @return ids of the clusters whose parent circle changed or that became empty
+     */
+    public synchronized Set<String> remove(String id) {
+        Set<String> changed = new LinkedHashSet<String>();
+        String clusterId = clusterOfFence.remove(id);
+        if (clusterId != null) {
+            Cluster cluster = clusters.get(clusterId);
+            cluster.children.remove(id);
+            cluster.recompute();
+            if (cluster.isEmpty()) {
+                clusters.remove(clusterId);
+            }
+            changed.add(clusterId);
+        }
+        return changed;
+    }
+
+    public synchronized Cluster get(String clusterId) {
+        return clusters.get(clusterId);
+    }
+
+    public synchronized String getClusterOf(String fenceId) {
+        return clusterOfFence.get(fenceId);
+    }
+
+    public synchronized List<Cluster> getAll() {
+        return new ArrayList<Cluster>(clusters.values());
+    }
+
+    public synchronized int size() {
+        return clusters.size();
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * Moves up levels until the fences fit into {@code maxClusters} cells.
+     */
+    private void coarsen() {
+        Map<String, double[]> fences = new LinkedHashMap<String, double[]>(clusterOfFence.size() * 2);
+        for (Cluster cluster : clusters.values()) {
+            fences.putAll(cluster.children);
+        }
+        do {
+            level++;
+        } while (level < MAX_LEVEL && countCells(fences.values(), level) > maxClusters);
+        regroup(fences);
+    }
+
+    private void regroup(Map<String, double[]> fences) {
+        clusters.clear();
+        clusterOfFence.clear();
+        for (Map.Entry<String, double[]> fence : fences.entrySet()) {
+            double[] circle = fence.getValue();
+            String clusterId = clusterIdFor(circle[0], circle[1], level);
+            Cluster cluster = clusters.get(clusterId);
+            if (cluster == null) {
+                cluster = new Cluster(clusterId);
+                clusters.put(clusterId, cluster);
+            }
+            cluster.children.put(fence.getKey(), circle);
+            clusterOfFence.put(fence.getKey(), clusterId);
+        }
+        for (Cluster cluster : clusters.values()) {
+            cluster.recompute();
+        }
+    }
+
+    private int countCells(Iterable<double[]> fences, int level) {
+        double cellDegrees = cellDegrees(level);
+        Set<Long> cells = new HashSet<Long>();
+        for (double[] fence : fences) {
+            long latCell = (long) Math.floor(fence[0] / cellDegrees);
+            long lngCell = (long) Math.floor(fence[1] / cellDegrees);
+            cells.add((latCell << 32) ^ (lngCell & 0xffffffffL));
+            if (cells.size() > maxClusters) {
+                break;
+            }
+        }
+        return cells.size();
+    }
+
+    private double cellDegrees(int level) {
+        return baseCellDegrees * (1L << level);
+    }
+
+    private String clusterIdFor(double latitude, double longitude, int level) {
+        double cellDegrees = cellDegrees(level);
+        long latCell = (long) Math.floor(latitude / cellDegrees);
+        long lngCell = (long) Math.floor(longitude / cellDegrees);
+        return ID_PREFIX + level + ":" + latCell + ":" + lngCell;
+    }
+
+    static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double sinHalfDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinHalfDLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double a = sinHalfDLat * sinHalfDLat
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfDLng * sinHalfDLng;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,334 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streams fences from a GeoJSON FeatureCollection or an NDJSON file into the
+ * store in batches, so only one record and one batch are held at a time.
+ *
+ * GeoJSON features carry the fence fields in their {@code properties}, with
+ * the id taken from the feature or its properties. Point geometries give
+ * the center, Polygon geometries the polygon (holes are ignored). NDJSON
+ * lines are either such features or fences in the format of addOrUpdate.
+ * Invalid records are counted and skipped, the first
+ * {@link #MAX_REPORTED_ERRORS} with their reason.
+ */
+class FenceImporter {
+    enum Format { GEOJSON, NDJSON }
+
+    static final int DEFAULT_BATCH_SIZE = 500;
+    static final int MAX_BATCH_SIZE = 5000;
+    static final int MAX_REPORTED_ERRORS = 20;
+
+    /**
+     * Receives the batches and progress of an import.
+     */
+    interface Listener {
+        /**
+         * Stores and registers a batch of valid fences with unique ids.
+         */
+        GeoNotificationManager.UpsertCounts upsert(List<GeoNotification> batch);
+
+        /**
+         * Called after every batch.
+         */
+        void onProgress(Summary summary, long bytesRead, long totalBytes);
+    }
+
+    /**
+     * Outcome of an import. Fences whose registration changed count as
+     * {@code updated} as well as those whose notification changed.
+     */
+    static class Summary {
+        int records;
+        int imported;
+        int updated;
+        int unchanged;
+        int rejected;
+        final List<String> errors = new ArrayList<String>();
+    }
+
+    private final Listener listener;
+    private final int batchSize;
+    private final int defaultTransitionType;
+    private final Map<String, GeoNotification> batch = new LinkedHashMap<String, GeoNotification>();
+    private final Summary summary = new Summary();
+    private final JsonParser parser = new JsonParser();
+    private ModuleTaskQueue.Cancellation cancellation;
+    private CountingInputStream input;
+    private long totalBytes;
+
+    /**
+     * @param defaultTransitionType
+     *            used for records without a transition type
+     */
+    FenceImporter(Listener listener, int batchSize, int defaultTransitionType) {
+        this.listener = listener;
+        this.batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, batchSize));
+        this.defaultTransitionType = defaultTransitionType;
+    }
+
+    static Format detectFormat(String path) {
+        String name = path.toLowerCase(Locale.US);
+        return name.endsWith(".ndjson") || name.endsWith(".jsonl") ? Format.NDJSON : Format.GEOJSON;
+    }
+
+    Summary importFile(File file, Format format, ModuleTaskQueue.Cancellation cancellation)
+            throws IOException, ModuleTaskQueue.Cancelled {
+        this.cancellation = cancellation;
+        this.totalBytes = file.length();
+        this.input = new CountingInputStream(new FileInputStream(file));
+        Reader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"), 64 * 1024);
+        try {
+            if (format == Format.NDJSON) {
+                readNdjson((BufferedReader) reader);
+            } else {
+                readGeoJson(new JsonReader(reader));
+            }
+            flush();
+        } finally {
+            reader.close();
+        }
+        return summary;
+    }
+
+    private void readNdjson(BufferedReader reader) throws IOException, ModuleTaskQueue.Cancelled {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            int record = summary.records++;
+            JsonElement element;
+            try {
+                element = parser.parse(line);
+            } catch (JsonParseException e) {
+                reject(record, "invalid JSON");
+                continue;
+            }
+            add(record, element);
+        }
+    }
+
+    /**
+     * Accepts a FeatureCollection, or a bare array of features or fences.
+     * Only the features array is walked, other members are skipped.
+     */
+    private void readGeoJson(JsonReader reader) throws IOException, ModuleTaskQueue.Cancelled {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            readFeatures(reader);
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("features".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readFeatures(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readFeatures(JsonReader reader) throws IOException, ModuleTaskQueue.Cancelled {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            // A syntax error cannot be skipped in a single document, it ends the import
+            add(summary.records++, parser.parse(reader));
+        }
+        reader.endArray();
+    }
+
+    private void add(int record, JsonElement element) throws ModuleTaskQueue.Cancelled {
+        if (!element.isJsonObject()) {
+            reject(record, "not an object");
+            return;
+        }
+        GeoNotification geo;
+        try {
+            geo = toGeoNotification(element.getAsJsonObject());
+        } catch (RuntimeException e) {
+            reject(record, e.getMessage() != null ? e.getMessage() : e.toString());
+            return;
+        }
+        String error = validate(geo);
+        if (error != null) {
+            reject(record, error);
+            return;
+        }
+        // A later record with the same id replaces the earlier one
+        batch.remove(geo.id);
+        batch.put(geo.id, geo);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private GeoNotification toGeoNotification(JsonObject object) {
+        if (!isFeature(object)) {
+            return Gson.get().fromJson(object, GeoNotification.class);
+        }
+        JsonElement properties = object.get("properties");
+        GeoNotification geo = properties != null && properties.isJsonObject()
+            ? Gson.get().fromJson(properties, GeoNotification.class)
+            : new GeoNotification();
+        JsonElement id = object.get("id");
+        if (id != null && id.isJsonPrimitive()) {
+            geo.id = id.getAsString();
+        }
+        JsonElement geometry = object.get("geometry");
+        if (geometry == null || !geometry.isJsonObject()) {
+            throw new IllegalArgumentException("missing geometry");
+        }
+        setGeometry(geo, geometry.getAsJsonObject());
+        return geo;
+    }
+
+    private static boolean isFeature(JsonObject object) {
+        JsonElement type = object.get("type");
+        return type != null && type.isJsonPrimitive() && "Feature".equals(type.getAsString());
+    }
+
+    /**
+     * GeoJSON positions are longitude first.
+     */
+    private static void setGeometry(GeoNotification geo, JsonObject geometry) {
+        String type = geometry.has("type") ? geometry.get("type").getAsString() : null;
+        JsonArray coordinates = geometry.has("coordinates") && geometry.get("coordinates").isJsonArray()
+            ? geometry.getAsJsonArray("coordinates")
+            : null;
+        if (coordinates == null) {
+            throw new IllegalArgumentException("missing coordinates");
+        }
+        if ("Point".equals(type)) {
+            geo.longitude = coordinates.get(0).getAsDouble();
+            geo.latitude = coordinates.get(1).getAsDouble();
+            geo.polygon = null;
+        } else if ("Polygon".equals(type)) {
+            JsonArray ring = coordinates.get(0).getAsJsonArray();
+            int vertices = ring.size();
+            // The ring repeats its first position at the end
+            if (vertices > 1 && ring.get(0).equals(ring.get(vertices - 1))) {
+                vertices--;
+            }
+            double[] polygon = new double[vertices * 2];
+            for (int i = 0; i < vertices; i++) {
+                JsonArray position = ring.get(i).getAsJsonArray();
+                polygon[i * 2] = position.get(1).getAsDouble();
+                polygon[i * 2 + 1] = position.get(0).getAsDouble();
+            }
+            geo.polygon = polygon;
+        } else {
+            throw new IllegalArgumentException("unsupported geometry " + type);
+        }
+    }
+
+    private String validate(GeoNotification geo) {
+        if (geo.id == null || geo.id.isEmpty()) {
+            return "missing id";
+        }
+        if (geo.transitionType == 0) {
+            geo.transitionType = defaultTransitionType;
+        }
+        if (geo.transitionType < 1 || geo.transitionType > 3) {
+            return "invalid transitionType " + geo.transitionType;
+        }
+        if (geo.polygon != null) {
+            if (geo.polygon.length < 6) {
+                return "polygon needs at least 3 vertices";
+            }
+            for (int i = 0; i < geo.polygon.length; i += 2) {
+                if (!isValidPosition(geo.polygon[i], geo.polygon[i + 1])) {
+                    return "polygon vertex out of range";
+                }
+            }
+            return null;
+        }
+        if (!isValidPosition(geo.latitude, geo.longitude)) {
+            return "coordinates out of range";
+        }
+        if (geo.radius <= 0) {
+            return "missing radius";
+        }
+        return null;
+    }
+
+    private static boolean isValidPosition(double latitude, double longitude) {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+    private void reject(int record, String reason) {
+        summary.rejected++;
+        if (summary.errors.size() < MAX_REPORTED_ERRORS) {
+            summary.errors.add("Record " + record + ": " + reason);
+        }
+    }
+
+    private void flush() throws ModuleTaskQueue.Cancelled {
+        if (cancellation != null) {
+            cancellation.check();
+        }
+        if (!batch.isEmpty()) {
+            GeoNotificationManager.UpsertCounts counts =
+                listener.upsert(new ArrayList<GeoNotification>(batch.values()));
+            batch.clear();
+            summary.imported += counts.added;
+            summary.updated += counts.updated + counts.payloadOnly;
+            summary.unchanged += counts.unchanged;
+        }
+        listener.onProgress(summary, input.count, totalBytes);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.github.orhan.geofencer;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fences of a large catalog as parallel primitive arrays, for queries over
+ * all of them without a {@link GeoNotification} per fence.
+ *
+ * Every fence is a row holding fixed-point coordinates with 7 decimals as
+ * in {@link GeoNotificationCodec}, the radius, the transition types and
+ * state flags, the time window in epoch milliseconds, the recurring
+ * schedule if any, shared between rows, and the last firing.
+ * Ids are packed into one char array and found through an open addressing
+ * index. Removing a row moves the last row into its place, so row numbers
+ * are only stable until the next removal. Not thread safe.
+ */
+public class FenceTable {
+    public static final long NO_START = Long.MIN_VALUE;
+    public static final long NO_END = Long.MAX_VALUE;
+    public static final long NO_BOUNDARY = Long.MAX_VALUE;
+
+    static final int TRANSITION_MASK = 7;
+    static final int FLAG_HAPPENS_ONCE = 1 << 3;
+    static final int FLAG_SHOWED_NOTIFICATION = 1 << 4;
+    static final int FLAG_POLYGON = 1 << 5;
+
+    private static final double SCALE = 1e7;
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int MAX_PARSED_TIMES = 256;
+
+    private int size;
+    private int[] latitudes;
+    private int[] longitudes;
+    private int[] radii;
+    private byte[] flags;
+    private long[] starts;
+    private long[] ends;
+    private long[] lastFired;
+    private RecurringSchedule[] schedules;
+    private int maxRadius;
+
+    private char[] idChars;
+    private int idCharsUsed;
+    private int idCharsGarbage;
+    private int[] idOffsets;
+    private int[] idLengths;
+    /**
+     * Row + 1 of the id hashing to the slot, 0 when empty.
+     */
+    private int[] slots;
+    /**
+     * Fences of a catalog usually share a few time windows.
+     */
+    private final Map<String, Long> parsedTimes = new HashMap<String, Long>();
+
+    public FenceTable() {
+        this(16);
+    }
+
+    public FenceTable(int capacity) {
+        capacity = Math.max(4, capacity);
+        latitudes = new int[capacity];
+        longitudes = new int[capacity];
+        radii = new int[capacity];
+        flags = new byte[capacity];
+        starts = new long[capacity];
+        ends = new long[capacity];
+        lastFired = new long[capacity];
+        schedules = new RecurringSchedule[capacity];
+        idOffsets = new int[capacity];
+        idLengths = new int[capacity];
+        idChars = new char[capacity * 8];
+        slots = new int[tableSizeFor(capacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the fence or overwrites the row with the same id.
+     *
+     * @return the row of the fence
+     */
+    public int put(String id, int latitudeE7, int longitudeE7, int radius, int flags,
+                   long start, long end, RecurringSchedule schedule, long lastFired) {
+        int row = find(id);
+        if (row < 0) {
+            ensureCapacity(size + 1);
+            row = size++;
+            setId(row, id);
+            insertSlot(row);
+        }
+        this.latitudes[row] = latitudeE7;
+        this.longitudes[row] = longitudeE7;
+        this.radii[row] = radius;
+        this.flags[row] = (byte) flags;
+        this.starts[row] = start;
+        this.ends[row] = end;
+        this.schedules[row] = schedule;
+        this.lastFired[row] = lastFired;
+        maxRadius = Math.max(maxRadius, radius);
+        return row;
+    }
+
+    public int put(GeoNotification geo) {
+        int flags = geo.transitionType & TRANSITION_MASK;
+        if (geo.happensOnce) flags |= FLAG_HAPPENS_ONCE;
+        if (geo.showedNotification) flags |= FLAG_SHOWED_NOTIFICATION;
+        if (geo.isPolygon()) flags |= FLAG_POLYGON;
+        return put(geo.id, (int) Math.round(geo.latitude * SCALE), (int) Math.round(geo.longitude * SCALE),
+            geo.radius, flags, parseTime(geo.startTime, NO_START), parseTime(geo.endTime, NO_END),
+            geo.schedule, geo.lastFired);
+    }
+
+    /**
+     * @return the row of the fence, -1 if there is none
+     */
+    public int find(String id) {
+        int mask = slots.length - 1;
+        for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (idEquals(entry - 1, id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public boolean remove(String id) {
+        int row = find(id);
+        if (row < 0) {
+            return false;
+        }
+        removeSlot(row);
+        idCharsGarbage += idLengths[row];
+        int last = --size;
+        if (row != last) {
+            // The last row takes the place of the removed one
+            removeSlot(last);
+            latitudes[row] = latitudes[last];
+            longitudes[row] = longitudes[last];
+            radii[row] = radii[last];
+            flags[row] = flags[last];
+            starts[row] = starts[last];
+            ends[row] = ends[last];
+            schedules[row] = schedules[last];
+            lastFired[row] = lastFired[last];
+            idOffsets[row] = idOffsets[last];
+            idLengths[row] = idLengths[last];
+            insertSlot(row);
+        }
+        schedules[last] = null;
+        if (idCharsGarbage > idCharsUsed / 2) {
+            compactIds();
+        }
+        return true;
+    }
+
+    public void markFired(int row, long firedAt) {
+        flags[row] |= FLAG_SHOWED_NOTIFICATION;
+        lastFired[row] = firedAt;
+    }
+
+    public String id(int row) {
+        return new String(idChars, idOffsets[row], idLengths[row]);
+    }
+
+    public double latitude(int row) {
+        return latitudes[row] / SCALE;
+    }
+
+    public double longitude(int row) {
+        return longitudes[row] / SCALE;
+    }
+
+    public int radius(int row) {
+        return radii[row];
+    }
+
+    public int transitionTypes(int row) {
+        return flags[row] & TRANSITION_MASK;
+    }
+
+    public long lastFired(int row) {
+        return lastFired[row];
+    }
+
+    /**
+     * Whether the fence can no longer fire: its time window ended, or it
+     * happens once and already fired. Same as the negation of
+     * {@link GeoNotification#shouldFire(long)} minus windows yet to start.
+     */
+    public boolean isExpired(int row, long now) {
+        int rowFlags = flags[row];
+        return now >= ends[row]
+            || ((rowFlags & FLAG_HAPPENS_ONCE) != 0 && (rowFlags & FLAG_SHOWED_NOTIFICATION) != 0);
+    }
+
+    /**
+     * Whether a transition of the fence fires at {@code now}, see
+     * {@link GeoNotification#shouldFire(long)}.
+     */
+    public boolean shouldFire(int row, long now) {
+        return !isExpired(row, now) && now >= starts[row]
+            && (schedules[row] == null || schedules[row].isOpen(now));
+    }
+
+    /**
+     * @return rows of the fences that can no longer fire
+     */
+    public int[] findExpired(long now) {
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (isExpired(row, now)) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Rows of the fences to register at {@code now}: those whose time
+     * window is open and that may still fire.
+     */
+    public int[] selectRegistrations(long now) {
+        int[] rows = new int[size];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            if (shouldFire(row, now)) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Next time after {@code now} at which the window of the fence opens
+     * or closes, see {@link GeoNotification#nextWindowBoundary(long)}.
+     */
+    public long nextBoundary(int row, long now) {
+        int rowFlags = flags[row];
+        if ((rowFlags & FLAG_HAPPENS_ONCE) != 0 && (rowFlags & FLAG_SHOWED_NOTIFICATION) != 0) {
+            return NO_BOUNDARY;
+        }
+        if (starts[row] > now) {
+            return starts[row];
+        }
+        if (ends[row] <= now) {
+            return NO_BOUNDARY;
+        }
+        RecurringSchedule schedule = schedules[row];
+        return schedule == null ? ends[row] : Math.min(ends[row], schedule.nextBoundary(now));
+    }
+
+    /**
+     * Earliest {@link #nextBoundary(int, long)} of all fences.
+     */
+    public long nextBoundary(long now) {
+        long next = NO_BOUNDARY;
+        for (int row = 0; row < size; row++) {
+            next = Math.min(next, nextBoundary(row, now));
+        }
+        return next;
+    }
+
+    /**
+     * Rows of the fences whose circle comes within {@code meters} of the
+     * location. Rows are first rejected on their fixed-point latitude, so
+     * only nearby fences pay for the distance.
+     */
+    public int[] findWithin(double latitude, double longitude, double meters) {
+        int[] rows = new int[16];
+        int count = 0;
+        double reachDegrees = Math.toDegrees((meters + maxRadius) / EARTH_RADIUS_METERS);
+        long latitudeE7 = Math.round(latitude * SCALE);
+        long reachE7 = (long) Math.ceil(reachDegrees * SCALE);
+        double latRad = Math.toRadians(latitude);
+        double cosLat = Math.cos(latRad);
+        for (int row = 0; row < size; row++) {
+            if (Math.abs(latitudes[row] - latitudeE7) > reachE7) {
+                continue;
+            }
+            double rowLat = Math.toRadians(latitudes[row] / SCALE);
+            double sinHalfDLat = Math.sin((rowLat - latRad) * 0.5);
+            double dLng = longitudes[row] / SCALE - longitude;
+            // The short way round, also across the antimeridian
+            if (dLng > 180) {
+                dLng -= 360;
+            } else if (dLng < -180) {
+                dLng += 360;
+            }
+            double sinHalfDLng = Math.sin(Math.toRadians(dLng) * 0.5);
+            double a = sinHalfDLat * sinHalfDLat + cosLat * Math.cos(rowLat) * sinHalfDLng * sinHalfDLng;
+            double distance = 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+            if (distance <= meters + radii[row]) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    public Geofence toGeofence(int row) {
+        return new Geofence.Builder()
+            .setRequestId(id(row))
+            .setTransitionTypes(transitionTypes(row))
+            .setCircularRegion(latitude(row), longitude(row), radii[row])
+            .setExpirationDuration(Long.MAX_VALUE).build();
+    }
+
+    /**
+     * Bytes held by the arrays of the table, including unused capacity.
+     */
+    public long heapBytes() {
+        int capacity = latitudes.length;
+        return 3 * arrayBytes(capacity, 4)     // coordinates and radius
+            + arrayBytes(capacity, 1)          // flags
+            + 3 * arrayBytes(capacity, 8)      // window and last firing
+            + arrayBytes(capacity, 4)          // shared schedules
+            + 2 * arrayBytes(capacity, 4)      // id offsets and lengths
+            + arrayBytes(idChars.length, 2)
+            + arrayBytes(slots.length, 4);
+    }
+
+    /**
+     * {@link #heapBytes()} scaled to 10,000 fences.
+     */
+    public long heapBytesPer10k() {
+        return size == 0 ? 0 : heapBytes() * 10000 / size;
+    }
+
+    /**
+     * Epoch milliseconds of an ISO-8601 time, {@code fallback} if there is
+     * none.
+     */
+    long parseTime(String time, long fallback) {
+        if (time == null) {
+            return fallback;
+        }
+        Long cached = parsedTimes.get(time);
+        if (cached == null) {
+            Date date = GeoNotification.parseDate(time);
+            cached = date == null ? Long.valueOf(fallback) : Long.valueOf(date.getTime());
+            if (parsedTimes.size() >= MAX_PARSED_TIMES) {
+                parsedTimes.clear();
+            }
+            parsedTimes.put(time, cached);
+        }
+        return cached;
+    }
+
+    private static long arrayBytes(int length, int elementBytes) {
+        return ARRAY_HEADER_BYTES + ((long) length * elementBytes + 7) / 8 * 8;
+    }
+
+    private void setId(int row, String id) {
+        int length = id.length();
+        if (idCharsUsed + length > idChars.length) {
+            idChars = Arrays.copyOf(idChars, Math.max(idChars.length * 2, idCharsUsed + length));
+        }
+        id.getChars(0, length, idChars, idCharsUsed);
+        idOffsets[row] = idCharsUsed;
+        idLengths[row] = length;
+        idCharsUsed += length;
+    }
+
+    private boolean idEquals(int row, String id) {
+        int length = idLengths[row];
+        if (length != id.length()) {
+            return false;
+        }
+        int offset = idOffsets[row];
+        for (int i = 0; i < length; i++) {
+            if (idChars[offset + i] != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int rowHash(int row) {
+        int h = 0;
+        int offset = idOffsets[row];
+        for (int i = 0; i < idLengths[row]; i++) {
+            h = 31 * h + idChars[offset + i];
+        }
+        return spread(h);
+    }
+
+    private static int hash(String id) {
+        return spread(id.hashCode());
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private void insertSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = rowHash(row) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    /**
+     * Removes the slot of the row, shifting back the entries after it so
+     * lookups need no tombstones.
+     */
+    private void removeSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = rowHash(row) & mask;
+        while (slots[slot] != row + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        for (int next = (hole + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int home = rowHash(slots[next] - 1) & mask;
+            // Move the entry if the hole lies between its home and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > latitudes.length) {
+            int capacity = Math.max(needed, latitudes.length * 2);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            radii = Arrays.copyOf(radii, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            schedules = Arrays.copyOf(schedules, capacity);
+            lastFired = Arrays.copyOf(lastFired, capacity);
+            idOffsets = Arrays.copyOf(idOffsets, capacity);
+            idLengths = Arrays.copyOf(idLengths, capacity);
+        }
+        if (needed * 2 > slots.length) {
+            slots = new int[tableSizeFor(needed)];
+            for (int row = 0; row < size; row++) {
+                insertSlot(row);
+            }
+        }
+    }
+
+    private void compactIds() {
+        char[] compacted = new char[Math.max(16, idCharsUsed - idCharsGarbage)];
+        int used = 0;
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(idChars, idOffsets[row], compacted, used, idLengths[row]);
+            idOffsets[row] = used;
+            used += idLengths[row];
+        }
+        idChars = compacted;
+        idCharsUsed = used;
+        idCharsGarbage = 0;
+    }
+
+    /**
+     * Power of two keeping the index at most half full.
+     */
+    private static int tableSizeFor(int capacity) {
+        int size = 8;
+        while (size < capacity * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
@@ -6,26 +6,201 @@ import com.google.gson.annotations.Expose;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
 public class GeoNotification {
+    /**
+     * States of the registration with Play Services, see
+     * {@link RegistrationScheduler}.
+     */
+    public static final int REGISTRATION_PENDING = 0;
+    public static final int REGISTRATION_REGISTERED = 1;
+    public static final int REGISTRATION_RETRYING = 2;
+    public static final int REGISTRATION_FAILED = 3;
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+    private static final int MAX_PARSED_TIMES = 256;
+
+    /**
+     * Parsed bounds by their text, as decoding a catalog meets the same few.
+     */
+    private static final Map<String, Long> parsedTimes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_PARSED_TIMES;
+        }
+    };
+
     @Expose public String id;
     @Expose public double latitude;
     @Expose public double longitude;
     @Expose public int radius;
     @Expose public int transitionType;
+    /**
+     * ISO-8601 UTC bounds of the active time range, set through
+     * {@link #setTimeRange} so they are parsed once.
+     */
     @Expose public String startTime;
     @Expose public String endTime;
-    @Expose public int lastFired;
+    @Expose public long lastFired;
     @Expose public boolean showedNotification;
     @Expose public boolean happensOnce;
 
     @Expose public Notification notification;
 
+    /**
+     * Optional polygon as latitude/longitude pairs. The circle above is then
+     * the minimal circle enclosing it, see {@link #applyPolygonBounds()}.
+     */
+    @Expose public double[] polygon;
+
+    /**
+     * Optional weekly hours within the time range, compiled when read.
+     */
+    @Expose public RecurringSchedule schedule;
+
+    /**
+     * Kept by the store only, fences passed to addOrUpdate start pending.
+     */
+    public int registrationState = REGISTRATION_PENDING;
+    /**
+     * Status code of the last failed request, 0 if none failed.
+     */
+    public int registrationStatus;
+
+    private transient PolygonFence polygonFence;
+    /**
+     * {@link #startTime} and {@link #endTime} in epoch milliseconds, and the
+     * strings they were parsed from.
+     */
+    private transient long startMillis = FenceTable.NO_START;
+    private transient long endMillis = FenceTable.NO_END;
+    private transient String parsedStartTime;
+    private transient String parsedEndTime;
+
     public GeoNotification() {
     }
 
+    public boolean isPolygon() {
+        return polygon != null && polygon.length >= 6;
+    }
+
+    /**
+     * Sets the circle registered with Play Services to the minimal circle
+     * enclosing the polygon, rounded up to whole meters.
+     */
+    public void applyPolygonBounds() {
+        if (!isPolygon()) {
+            return;
+        }
+        double[] circle = PolygonFence.enclosingCircle(polygon);
+        latitude = circle[0];
+        longitude = circle[1];
+        radius = (int) Math.ceil(circle[2]) + 1;
+        polygonFence = null;
+    }
+
+    /**
+     * Returns the containment test for the polygon, or null for circles.
+     */
+    public PolygonFence getPolygonFence() {
+        if (polygonFence == null && isPolygon()) {
+            polygonFence = new PolygonFence(polygon);
+        }
+        return polygonFence;
+    }
+
+    /**
+     * Whether a transition of this fence should still be reported at {@code now}.
+     */
+    public boolean shouldFire(long now) {
+        return (!happensOnce || !showedNotification) && isWithinTimeRange(now);
+    }
+
+    /**
+     * Polygons are watched through their enclosing circle, so a circle
+     * transition is only kept when the location agrees with the polygon.
+     */
+    public boolean isPolygonFalsePositive(int transitionType, double latitude, double longitude) {
+        PolygonFence polygon = getPolygonFence();
+        if (polygon == null) {
+            return false;
+        }
+        boolean inside = polygon.contains(latitude, longitude);
+        return transitionType == LocalGeofenceEngine.TRANSITION_EXIT ? inside : !inside;
+    }
+
+    /**
+     * Whether both fences register the same way with Play Services: same
+     * geometry, transition types, active time range and schedule. Coordinates are
+     * compared at the precision they are stored with.
+     */
+    public boolean hasSameRegistration(GeoNotification other) {
+        return fixedPoint(latitude) == fixedPoint(other.latitude)
+            && fixedPoint(longitude) == fixedPoint(other.longitude)
+            && radius == other.radius
+            && transitionType == other.transitionType
+            && equal(startTime, other.startTime)
+            && equal(endTime, other.endTime)
+            && (schedule == null ? other.schedule == null : schedule.equals(other.schedule))
+            && samePolygon(polygon, other.polygon);
+    }
+
+    /**
+     * Whether both fences fire the same notification and data.
+     */
+    public boolean hasSamePayload(GeoNotification other) {
+        if (happensOnce != other.happensOnce) {
+            return false;
+        }
+        return notification == null
+            ? other.notification == null
+            : notification.hasSameContent(other.notification);
+    }
+
+    private static long fixedPoint(double coordinate) {
+        return Math.round(coordinate * 1e7);
+    }
+
+    private static boolean samePolygon(double[] a, double[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (fixedPoint(a[i]) != fixedPoint(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public static String registrationStateName(int state) {
+        switch (state) {
+            case REGISTRATION_REGISTERED: return "registered";
+            case REGISTRATION_RETRYING: return "retrying";
+            case REGISTRATION_FAILED: return "failed";
+            default: return "pending";
+        }
+    }
+
     public Geofence toGeofence() {
         return new Geofence.Builder()
             .setRequestId(id)
@@ -43,38 +218,98 @@ public class GeoNotification {
         return Gson.get().fromJson(json, GeoNotification.class);
     }
 
+    /**
+     * Sets the active time range and parses it, called when the fence is
+     * read so that checks only compare times. Unparseable bounds are open.
+     */
+    public void setTimeRange(String startTime, String endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        startMillis = parseTime(startTime, FenceTable.NO_START);
+        endMillis = parseTime(endTime, FenceTable.NO_END);
+        parsedStartTime = startTime;
+        parsedEndTime = endTime;
+    }
+
     public Date getStartTime() {
-        return parseDate(this.startTime);
+        parseTimeRange();
+        return startMillis == FenceTable.NO_START ? null : new Date(startMillis);
     }
 
     public Date getEndTime() {
-        return parseDate(this.endTime);
+        parseTimeRange();
+        return endMillis == FenceTable.NO_END ? null : new Date(endMillis);
     }
 
     public boolean isWithinTimeRange() {
-        Date now = new Date();
-        Date startTime = getStartTime();
-        Date endTime = getEndTime();
-        boolean greaterThanOrEqualToStartTime = true;
-        boolean lessThanEndTime = true;
-        if (startTime != null) {
-            greaterThanOrEqualToStartTime = now.after(startTime) || now.getTime() == startTime.getTime();
+        return isWithinTimeRange(System.currentTimeMillis());
+    }
+
+    public boolean isWithinTimeRange(long now) {
+        parseTimeRange();
+        if (now < startMillis || now >= endMillis) {
+            return false;
         }
-        if (endTime != null) {
-            lessThanEndTime = now.before(endTime);
+        return schedule == null || schedule.isOpen(now);
+    }
+
+    /**
+     * Next time after {@code now} at which the time range or schedule opens
+     * or closes, {@link Long#MAX_VALUE} if it never changes again. Fences
+     * that happen once and fired have none.
+     */
+    public long nextWindowBoundary(long now) {
+        if (happensOnce && showedNotification) {
+            return Long.MAX_VALUE;
+        }
+        parseTimeRange();
+        if (startMillis > now) {
+            return startMillis;
+        }
+        if (endMillis <= now) {
+            return Long.MAX_VALUE;
         }
-        return greaterThanOrEqualToStartTime && lessThanEndTime;
+        return schedule == null ? endMillis : Math.min(endMillis, schedule.nextBoundary(now));
     }
 
-    private Date parseDate(String date) {
+    /**
+     * Parses the time range again if its strings were assigned directly.
+     */
+    private void parseTimeRange() {
+        if (startTime != parsedStartTime || endTime != parsedEndTime) {
+            setTimeRange(startTime, endTime);
+        }
+    }
+
+    private static long parseTime(String time, long fallback) {
+        if (time == null) {
+            return fallback;
+        }
+        synchronized (parsedTimes) {
+            Long cached = parsedTimes.get(time);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Date date = parseDate(time);
+        long parsed = date == null ? fallback : date.getTime();
+        synchronized (parsedTimes) {
+            parsedTimes.put(time, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses an ISO-8601 UTC timestamp as sent by the JS side. The formatter
+     * is cached per thread since SimpleDateFormat is expensive to build and
+     * not thread safe.
+     */
+    static Date parseDate(String date) {
         if (date == null) {
             return null;
         }
         try {
-            SimpleDateFormat format = new SimpleDateFormat(
-                    "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-            format.setTimeZone(TimeZone.getTimeZone("UTC"));
-            return format.parse(date);
+            return DATE_FORMAT.get().parse(date);
         } catch (ParseException e) {
             return null;
         }
@@ -0,0 +1,397 @@
+package com.github.orhan.geofencer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary record format for stored geofences.
+ *
+ * A record starts with a version byte, followed by a table of the distinct
+ * strings used by the record and then the fields. Strings are referenced by
+ * their index in the table (0 meaning null), integers are zigzag varints and
+ * coordinates are fixed-point with 7 decimals. The custom notification data
+ * is kept as its raw JSON text.
+ *
+ * Version 2 appends the registration state and status, version 1 records
+ * decode as pending. Version 3 appends the compiled schedule as a string,
+ * see {@link RecurringSchedule#getKey()}. Legacy rows written as Gson JSON
+ * start with '{' and are still decoded through Gson.
+ */
+public final class GeoNotificationCodec {
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    static final int VERSION_3 = 3;
+    private static final int LEGACY_JSON = '{';
+    private static final double COORDINATE_SCALE = 1e7;
+
+    private static final int FLAG_SHOWED_NOTIFICATION = 1;
+    private static final int FLAG_HAPPENS_ONCE = 1 << 1;
+    private static final int FLAG_HAS_NOTIFICATION = 1 << 2;
+    private static final int FLAG_OPEN_APP_ON_CLICK = 1 << 3;
+    private static final int FLAG_HAS_POLYGON = 1 << 4;
+
+    private GeoNotificationCodec() {
+    }
+
+    public static byte[] encode(GeoNotification geo) {
+        Writer writer = new Writer();
+        Notification notification = geo.notification;
+        String data = notification != null && notification.data != null ? notification.data.toString() : null;
+        String schedule = geo.schedule != null ? geo.schedule.getKey() : null;
+
+        writer.intern(geo.id);
+        writer.intern(geo.startTime);
+        writer.intern(geo.endTime);
+        writer.intern(schedule);
+        if (notification != null) {
+            writer.intern(notification.title);
+            writer.intern(notification.text);
+            writer.intern(notification.icon);
+            writer.intern(notification.smallIcon);
+            writer.intern(data);
+        }
+        writer.writeStringTable();
+
+        int flags = 0;
+        if (geo.showedNotification) flags |= FLAG_SHOWED_NOTIFICATION;
+        if (geo.happensOnce) flags |= FLAG_HAPPENS_ONCE;
+        if (notification != null) {
+            flags |= FLAG_HAS_NOTIFICATION;
+            if (notification.openAppOnClick) flags |= FLAG_OPEN_APP_ON_CLICK;
+        }
+        if (geo.polygon != null) flags |= FLAG_HAS_POLYGON;
+        writer.writeVarint(flags);
+
+        writer.writeStringRef(geo.id);
+        writer.writeSignedVarlong(Math.round(geo.latitude * COORDINATE_SCALE));
+        writer.writeSignedVarlong(Math.round(geo.longitude * COORDINATE_SCALE));
+        writer.writeSignedVarlong(geo.radius);
+        writer.writeSignedVarlong(geo.transitionType);
+        writer.writeStringRef(geo.startTime);
+        writer.writeStringRef(geo.endTime);
+        writer.writeSignedVarlong(geo.lastFired);
+
+        if (notification != null) {
+            writer.writeSignedVarlong(notification.id);
+            writer.writeStringRef(notification.title);
+            writer.writeStringRef(notification.text);
+            writer.writeStringRef(notification.icon);
+            writer.writeStringRef(notification.smallIcon);
+            writer.writeStringRef(data);
+            long[] vibrate = notification.vibrate;
+            if (vibrate == null) {
+                writer.writeVarint(0);
+            } else {
+                writer.writeVarint(vibrate.length + 1);
+                for (long duration : vibrate) {
+                    writer.writeSignedVarlong(duration);
+                }
+            }
+        }
+
+        if (geo.polygon != null) {
+            // Vertices are delta encoded from the previous one
+            writer.writeVarint(geo.polygon.length);
+            long previousLat = 0, previousLng = 0;
+            for (int i = 0; i + 1 < geo.polygon.length; i += 2) {
+                long lat = Math.round(geo.polygon[i] * COORDINATE_SCALE);
+                long lng = Math.round(geo.polygon[i + 1] * COORDINATE_SCALE);
+                writer.writeSignedVarlong(lat - previousLat);
+                writer.writeSignedVarlong(lng - previousLng);
+                previousLat = lat;
+                previousLng = lng;
+            }
+        }
+
+        writer.writeVarint(geo.registrationState);
+        writer.writeSignedVarlong(geo.registrationStatus);
+        writer.writeStringRef(schedule);
+        return writer.toByteArray();
+    }
+
+    public static GeoNotification decode(byte[] record) {
+        if (record == null || record.length == 0) {
+            return null;
+        }
+        int version = record[0] & 0xFF;
+        if (version == LEGACY_JSON) {
+            return GeoNotification.fromJson(utf8(record, 0, record.length));
+        }
+        if (version < VERSION_1 || version > VERSION_3) {
+            throw new IllegalArgumentException("Unknown geofence record version " + version);
+        }
+
+        Reader reader = new Reader(record, 1);
+        reader.readStringTable();
+        int flags = reader.readVarint();
+
+        GeoNotification geo = new GeoNotification();
+        geo.id = reader.readStringRef();
+        geo.latitude = reader.readSignedVarlong() / COORDINATE_SCALE;
+        geo.longitude = reader.readSignedVarlong() / COORDINATE_SCALE;
+        geo.radius = (int) reader.readSignedVarlong();
+        geo.transitionType = (int) reader.readSignedVarlong();
+        String startTime = reader.readStringRef();
+        geo.setTimeRange(startTime, reader.readStringRef());
+        geo.lastFired = reader.readSignedVarlong();
+        geo.showedNotification = (flags & FLAG_SHOWED_NOTIFICATION) != 0;
+        geo.happensOnce = (flags & FLAG_HAPPENS_ONCE) != 0;
+
+        if ((flags & FLAG_HAS_NOTIFICATION) != 0) {
+            Notification notification = new Notification();
+            notification.id = (int) reader.readSignedVarlong();
+            notification.title = reader.readStringRef();
+            notification.text = reader.readStringRef();
+            notification.icon = reader.readStringRef();
+            notification.smallIcon = reader.readStringRef();
+            notification.setDataJson(reader.readStringRef());
+            int vibrateLength = reader.readVarint();
+            if (vibrateLength == 0) {
+                notification.vibrate = null;
+            } else {
+                long[] vibrate = new long[vibrateLength - 1];
+                for (int i = 0; i < vibrate.length; i++) {
+                    vibrate[i] = reader.readSignedVarlong();
+                }
+                notification.vibrate = vibrate;
+            }
+            notification.openAppOnClick = (flags & FLAG_OPEN_APP_ON_CLICK) != 0;
+            geo.notification = notification;
+        }
+
+        if ((flags & FLAG_HAS_POLYGON) != 0) {
+            double[] polygon = new double[reader.readVarint()];
+            long lat = 0, lng = 0;
+            for (int i = 0; i + 1 < polygon.length; i += 2) {
+                lat += reader.readSignedVarlong();
+                lng += reader.readSignedVarlong();
+                polygon[i] = lat / COORDINATE_SCALE;
+                polygon[i + 1] = lng / COORDINATE_SCALE;
+            }
+            geo.polygon = polygon;
+        }
+
+        if (version >= VERSION_2) {
+            geo.registrationState = reader.readVarint();
+            geo.registrationStatus = (int) reader.readSignedVarlong();
+        }
+        if (version >= VERSION_3) {
+            geo.schedule = RecurringSchedule.fromKey(reader.readStringRef());
+        }
+        return geo;
+    }
+
+    /**
+     * Reads the fields a {@link FenceTable} keeps straight into it. Strings
+     * other than the id, time window and schedule are skipped, and the
+     * notification and polygon are only read past to reach the schedule.
+     */
+    static void decodeInto(byte[] record, FenceTable table) {
+        if (record == null || record.length == 0) {
+            return;
+        }
+        int version = record[0] & 0xFF;
+        if (version == LEGACY_JSON) {
+            table.put(decode(record));
+            return;
+        }
+        if (version < VERSION_1 || version > VERSION_3) {
+            throw new IllegalArgumentException("Unknown geofence record version " + version);
+        }
+
+        Reader reader = new Reader(record, 1);
+        reader.readStringTable();
+        int flags = reader.readVarint();
+        String id = reader.readStringRef();
+        long latitude = reader.readSignedVarlong();
+        long longitude = reader.readSignedVarlong();
+        int radius = (int) reader.readSignedVarlong();
+        int transitionType = (int) reader.readSignedVarlong();
+        String startTime = reader.readStringRef();
+        String endTime = reader.readStringRef();
+        long lastFired = reader.readSignedVarlong();
+        RecurringSchedule schedule = null;
+        if (version >= VERSION_3) {
+            schedule = RecurringSchedule.fromKey(readScheduleRef(reader, flags));
+        }
+
+        int tableFlags = transitionType & FenceTable.TRANSITION_MASK;
+        if ((flags & FLAG_SHOWED_NOTIFICATION) != 0) tableFlags |= FenceTable.FLAG_SHOWED_NOTIFICATION;
+        if ((flags & FLAG_HAPPENS_ONCE) != 0) tableFlags |= FenceTable.FLAG_HAPPENS_ONCE;
+        if ((flags & FLAG_HAS_POLYGON) != 0) tableFlags |= FenceTable.FLAG_POLYGON;
+        table.put(id, (int) latitude, (int) longitude, radius, tableFlags,
+            table.parseTime(startTime, FenceTable.NO_START), table.parseTime(endTime, FenceTable.NO_END),
+            schedule, lastFired);
+    }
+
+    /**
+     * Skips the notification, polygon and registration state following the
+     * last firing, and reads the schedule reference at the end.
+     */
+    private static String readScheduleRef(Reader reader, int flags) {
+        if ((flags & FLAG_HAS_NOTIFICATION) != 0) {
+            reader.readVarlong();
+            for (int i = 0; i < 5; i++) {
+                reader.readVarlong();
+            }
+            int vibrateLength = reader.readVarint();
+            for (int i = 1; i < vibrateLength; i++) {
+                reader.readVarlong();
+            }
+        }
+        if ((flags & FLAG_HAS_POLYGON) != 0) {
+            int length = reader.readVarint();
+            for (int i = 0; i + 1 < length; i += 2) {
+                reader.readVarlong();
+                reader.readVarlong();
+            }
+        }
+        reader.readVarlong();
+        reader.readVarlong();
+        return reader.readStringRef();
+    }
+
+    private static String utf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Writer {
+        private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+        private byte[] buffer = new byte[128];
+        private int size = 0;
+
+        Writer() {
+            buffer[size++] = (byte) VERSION_3;
+        }
+
+        void intern(String string) {
+            if (string != null && !stringIndexes.containsKey(string)) {
+                stringIndexes.put(string, strings.size() + 1);
+                strings.add(string);
+            }
+        }
+
+        void writeStringTable() {
+            writeVarint(strings.size());
+            for (String string : strings) {
+                byte[] bytes = utf8(string);
+                writeVarint(bytes.length);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, size, bytes.length);
+                size += bytes.length;
+            }
+        }
+
+        void writeStringRef(String string) {
+            writeVarint(string == null ? 0 : stringIndexes.get(string));
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xFFFFFFFFL);
+        }
+
+        void writeSignedVarlong(long value) {
+            writeVarlong((value << 1) ^ (value >> 63));
+        }
+
+        void writeVarlong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buffer;
+        private int position;
+        private int[] stringOffsets;
+        private int[] stringLengths;
+        private String[] strings;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        /**
+         * Strings are only decoded when referenced.
+         */
+        void readStringTable() {
+            int count = readVarint();
+            stringOffsets = new int[count];
+            stringLengths = new int[count];
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                int length = readVarint();
+                stringOffsets[i] = position;
+                stringLengths[i] = length;
+                position += length;
+            }
+        }
+
+        String readStringRef() {
+            int index = readVarint();
+            if (index == 0) {
+                return null;
+            }
+            String string = strings[index - 1];
+            if (string == null) {
+                string = utf8(buffer, stringOffsets[index - 1], stringLengths[index - 1]);
+                strings[index - 1] = string;
+            }
+            return string;
+        }
+
+        int readVarint() {
+            return (int) readVarlong();
+        }
+
+        long readSignedVarlong() {
+            long value = readVarlong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readVarlong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.github.orhan.geofencer;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.location.Location;
 import android.util.Log;
 
 import com.facebook.react.bridge.*;
@@ -11,41 +12,395 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.location.Geofence;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class GeoNotificationManager {
+    /**
+     * Runs registration retries and records registration states, which
+     * would otherwise be written on the main thread.
+     */
+    private static final ScheduledExecutorService registrationExecutor =
+        Executors.newSingleThreadScheduledExecutor(TransitionReceiver.daemonThreads("GeofencerRegistration"));
+
+    private static GeoNotificationManager instance;
+
     private Context context;
     private GeoNotificationStore geoNotificationStore;
     private Logger logger;
     private List<Geofence> geoFences;
     private PendingIntent pendingIntent;
     private GoogleServiceCommandExecutor googleServiceCommandExecutor;
+    private RegistrationScheduler registrationScheduler;
+    private boolean useLocalGeofencing;
+    /**
+     * The table registrations were last chosen from, kept for its metrics.
+     */
+    private volatile FenceTable loadedTable;
+
+    /**
+     * What {@link #addGeoNotifications} did with the fences it was given.
+     */
+    public static class UpsertCounts {
+        public int added;
+        public int updated;
+        public int payloadOnly;
+        public int unchanged;
+
+        public WritableMap toWritableMap() {
+            WritableMap map = new WritableNativeMap();
+            map.putInt("added", added);
+            map.putInt("updated", updated);
+            map.putInt("payloadOnly", payloadOnly);
+            map.putInt("unchanged", unchanged);
+            return map;
+        }
+    }
+
+    /**
+     * Returns the manager of the process. The module, the receivers and the
+     * transition processor share it, so all Play Services requests go
+     * through one command queue and registration retries are not lost with
+     * a short-lived manager.
+     */
+    public static synchronized GeoNotificationManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new GeoNotificationManager(context.getApplicationContext());
+        }
+        return instance;
+    }
 
-    public GeoNotificationManager(Context context) {
+    private GeoNotificationManager(Context context) {
         this.context = context;
         geoNotificationStore = new GeoNotificationStore(context);
         logger = Logger.getLogger();
         googleServiceCommandExecutor = new GoogleServiceCommandExecutor();
         pendingIntent = getTransitionPendingIntent();
+        registrationScheduler = createRegistrationScheduler();
         if (areGoogleServicesAvailable()) {
             logger.log(Log.DEBUG, "Google play services available");
         } else {
-            logger.log(Log.WARN, "Google play services not available. Geofence plugin will not work correctly.");
+            useLocalGeofencing = true;
+            logger.log(Log.WARN, "Google play services not available. Falling back to local geofence evaluation.");
         }
     }
 
     public void loadFromStorageAndInitializeGeofences() {
-        List<GeoNotification> geoNotifications = geoNotificationStore.getAll();
-        geoFences = new ArrayList<Geofence>();
-        for (GeoNotification geo : geoNotifications) {
-            geoFences.add(geo.toGeofence());
+        if (useLocalGeofencing) {
+            LocalGeofencing.updateLocationRequests(context, LocalGeofencing.getEngine(context));
+            return;
         }
-        if (!geoFences.isEmpty()) {
-            googleServiceCommandExecutor.QueueToExecute(
-                new AddGeofenceCommand(context, pendingIntent, geoFences)
-            );
+        long now = System.currentTimeMillis();
+        FenceTable table = loadTable();
+        if (ClusteredRegistration.isEnabled(context)) {
+            updateClusteredRegistrations(ClusteredRegistration.getClusters(table), null, null);
+        } else {
+            geoFences = getRegistrations(table);
+            registrationScheduler.add(geoFences, null);
         }
+        RegistrationSchedule.setLastCheck(context, now);
+        RegistrationSchedule.schedule(context, table.nextBoundary(now));
+    }
+
+    /**
+     * Registers the fences whose time window opened since the last check
+     * and unregisters the ones whose window closed, then sets the alarm for
+     * the next window boundary. Clustered, the children to register are
+     * chosen again, parents cover fences regardless of windows.
+     *
+     * @param done
+     *            invoked once the removes and the first add request
+     *            completed, may be null
+     */
+    public void onWindowBoundary(Callback done) {
+        if (useLocalGeofencing) {
+            // Windows are checked when the local engine fires
+            RegistrationSchedule.cancel(context);
+            if (done != null) {
+                done.invoke();
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long lastCheck = RegistrationSchedule.getLastCheck(context, now);
+        FenceTable table = loadTable();
+        if (ClusteredRegistration.isEnabled(context)) {
+            updateClusteredRegistrations(ClusteredRegistration.getClusters(table),
+                Collections.<String>emptySet(), done);
+            RegistrationSchedule.setLastCheck(context, now);
+            RegistrationSchedule.schedule(context, table.nextBoundary(now));
+            return;
+        }
+
+        List<Geofence> toAdd = new ArrayList<Geofence>();
+        List<String> toRemove = new ArrayList<String>();
+        for (int row = 0; row < table.size(); row++) {
+            boolean open = table.shouldFire(row, now);
+            if (open == table.shouldFire(row, lastCheck)) {
+                continue;
+            }
+            String id = table.id(row);
+            if (open) {
+                toAdd.add(table.toGeofence(row));
+            } else {
+                toRemove.add(id);
+            }
+        }
+        logger.log(Log.INFO, "Geofence windows changed: " + toAdd.size() + " opened, "
+            + toRemove.size() + " closed");
+        queueRegistrationChanges(toAdd, toRemove, done);
+        RegistrationSchedule.setLastCheck(context, now);
+        RegistrationSchedule.schedule(context, table.nextBoundary(now));
+    }
+
+    /**
+     * Adds geofences through the command executor, so adds stay ordered
+     * with removes, and stores the outcome with every fence.
+     */
+    private RegistrationScheduler createRegistrationScheduler() {
+        return new RegistrationScheduler(
+            new RegistrationScheduler.Backend() {
+                @Override
+                public void addGeofences(List<Geofence> geofences, final RegistrationScheduler.ResultListener listener) {
+                    final AddGeofenceCommand command = new AddGeofenceCommand(context, pendingIntent, geofences);
+                    command.addListener(new IGoogleServiceCommandListener() {
+                        @Override
+                        public void onCommandExecuted() {
+                            listener.onResult(command.getStatusCode());
+                        }
+                    });
+                    googleServiceCommandExecutor.QueueToExecute(command);
+                }
+            },
+            new RegistrationScheduler.Timer() {
+                @Override
+                public void schedule(Runnable task, long delayMillis) {
+                    registrationExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            },
+            new RegistrationScheduler.StateListener() {
+                @Override
+                public void onStateChanged(final List<String> ids, final int state, final int statusCode) {
+                    registrationExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Cluster parents are not stored and are skipped
+                            geoNotificationStore.setRegistrationState(ids, state, statusCode);
+                        }
+                    });
+                }
+            },
+            new Random());
+    }
+
+    /**
+     * Returns the table registrations were last chosen from, null before
+     * the first registration in this process.
+     */
+    FenceTable getLoadedTable() {
+        return loadedTable;
+    }
+
+    private FenceTable loadTable() {
+        FenceTable loaded = geoNotificationStore.loadTable();
+        loadedTable = loaded;
+        return loaded;
+    }
+
+    /**
+     * Geofences to register with Play Services when registering directly:
+     * every stored fence whose time window is open.
+     */
+    private List<Geofence> getRegistrations(FenceTable table) {
+        List<Geofence> registrations = new ArrayList<Geofence>();
+        for (int row : table.selectRegistrations(System.currentTimeMillis())) {
+            registrations.add(table.toGeofence(row));
+        }
+        return registrations;
+    }
+
+    /**
+     * Registers what {@link ClusteredRegistration#plan} chooses and
+     * unregisters what it no longer holds, keeping the registrations within
+     * the Play Services limit.
+     *
+     * @param changed
+     *            ids of registered clusters and fences to add again since
+     *            they changed, or null to add everything again
+     */
+    private synchronized void updateClusteredRegistrations(FenceClusters clusters, Set<String> changed,
+                                                           Callback success) {
+        Set<String> active = ClusteredRegistration.getActive(context);
+        for (String clusterId : new ArrayList<String>(active)) {
+            if (clusters.get(clusterId) == null) {
+                // Emptied, or replaced when the clusters grew
+                active.remove(clusterId);
+                ClusteredRegistration.setActive(context, clusterId, false);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final Map<String, Geofence> open = new HashMap<String, Geofence>();
+        ClusteredRegistration.Plan plan = ClusteredRegistration.plan(clusters, active,
+            ClusteredRegistration.getOrigin(context), new ClusteredRegistration.WindowCheck() {
+                @Override
+                public List<String> getOpen(List<String> ids) {
+                    List<String> openIds = new ArrayList<String>();
+                    for (GeoNotification geo : geoNotificationStore.getGeoNotifications(ids)) {
+                        if (geo.shouldFire(now)) {
+                            open.put(geo.id, geo.toGeofence());
+                            openIds.add(geo.id);
+                        }
+                    }
+                    return openIds;
+                }
+            });
+
+        Set<String> registered = ClusteredRegistration.getRegistered(context);
+        if (registered == null) {
+            // Not known what is registered, e.g. when clustering was just turned on
+            queueRemoveAll();
+            registered = new HashSet<String>();
+        }
+        List<Geofence> toAdd = new ArrayList<Geofence>();
+        for (FenceClusters.Cluster parent : plan.parents) {
+            if (changed == null || changed.contains(parent.id) || !registered.contains(parent.id)) {
+                toAdd.add(ClusteredRegistration.toGeofence(parent));
+            }
+        }
+        for (String id : plan.children) {
+            if (changed == null || changed.contains(id) || !registered.contains(id)) {
+                toAdd.add(open.get(id));
+            }
+        }
+        if (plan.refresh != null) {
+            // Centered on the latest location
+            toAdd.add(ClusteredRegistration.toRefreshGeofence(plan.refresh));
+        }
+        Set<String> planned = plan.getIds();
+        List<String> toRemove = new ArrayList<String>();
+        for (String id : registered) {
+            if (!planned.contains(id)) {
+                toRemove.add(id);
+            }
+        }
+        logger.log(Log.DEBUG, "Clustered: " + plan.parents.size() + " clusters, " + plan.children.size()
+            + " fences, " + toAdd.size() + " to add, " + toRemove.size() + " to remove");
+        ClusteredRegistration.setRegistered(context, planned);
+        queueRegistrationChanges(toAdd, toRemove, success);
+    }
+
+    /**
+     * Switches between direct and clustered registration when the catalog
+     * crosses the threshold, replacing everything registered so far.
+     *
+     * @return whether the registrations were replaced
+     */
+    private boolean updateClusteringMode(final Callback success) {
+        boolean clustering = ClusteredRegistration.shouldCluster(geoNotificationStore.getAllIds().size());
+        if (clustering == ClusteredRegistration.isEnabled(context)) {
+            return false;
+        }
+        logger.log(Log.INFO, clustering
+            ? "Geofence catalog too large, registering clusters instead"
+            : "Geofence catalog small enough, registering fences directly");
+        ClusteredRegistration.setEnabled(context, clustering);
+        replaceRegistrations(success);
+        return true;
+    }
+
+    /**
+     * Unregisters everything and registers again in the current mode.
+     */
+    private void replaceRegistrations(Callback success) {
+        if (ClusteredRegistration.isEnabled(context)) {
+            // Turning clustering on forgot what was registered, so this removes all first
+            updateClusteredRegistrations(ClusteredRegistration.getClusters(geoNotificationStore), null, success);
+        } else {
+            queueRemoveAll();
+            queueRegistrationChanges(getRegistrations(loadTable()), null, success);
+        }
+    }
+
+    private void queueRemoveAll() {
+        registrationScheduler.cancelAll();
+        googleServiceCommandExecutor.QueueToExecute(new RemoveGeofenceCommand(context, pendingIntent));
+    }
+
+    /**
+     * Queues the removes, then the adds. {@code success} is invoked once the
+     * first add request completed, retries of failed fences continue after.
+     */
+    private void queueRegistrationChanges(List<Geofence> toAdd, List<String> toRemove, final Callback success) {
+        boolean adding = toAdd != null && !toAdd.isEmpty();
+        if (toRemove != null && !toRemove.isEmpty()) {
+            registrationScheduler.cancel(toRemove);
+            RemoveGeofenceCommand command = new RemoveGeofenceCommand(context, toRemove);
+            if (success != null && !adding) {
+                // Listen before queueing, the command may complete on another thread
+                command.addListener(new IGoogleServiceCommandListener() {
+                    @Override
+                    public void onCommandExecuted() {
+                        success.invoke();
+                    }
+                });
+            }
+            googleServiceCommandExecutor.QueueToExecute(command);
+            if (!adding) {
+                return;
+            }
+        }
+        registrationScheduler.add(adding ? toAdd : new ArrayList<Geofence>(), success == null ? null : new Runnable() {
+            @Override
+            public void run() {
+                success.invoke();
+            }
+        });
+    }
+
+    /**
+     * Marks clusters entered or left, then chooses the children to register
+     * again. Leaving the refresh fence only moves the location they are
+     * chosen from.
+     *
+     * @param location
+     *            the triggering location, may be null
+     */
+    public void onClusterTransition(int transitionType, List<String> clusterIds, Location location) {
+        FenceClusters clusters = ClusteredRegistration.getClusters(geoNotificationStore);
+        if (location != null) {
+            ClusteredRegistration.setOrigin(context, location.getLatitude(), location.getLongitude());
+        }
+        for (String clusterId : clusterIds) {
+            if (ClusteredRegistration.REFRESH_ID.equals(clusterId)) {
+                logger.log(Log.DEBUG, "Left the refresh fence, choosing the nearest fences again");
+            } else if (clusters.get(clusterId) == null) {
+                // Parent left over from before the cluster emptied, unregistered below
+                ClusteredRegistration.setActive(context, clusterId, false);
+            } else if (transitionType == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                logger.log(Log.DEBUG, "Entered " + clusterId + ", watching its fences");
+                ClusteredRegistration.setActive(context, clusterId, true);
+            } else if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                logger.log(Log.DEBUG, "Left " + clusterId + ", no longer watching its fences");
+                ClusteredRegistration.setActive(context, clusterId, false);
+            }
+        }
+        updateClusteredRegistrations(clusters, Collections.<String>emptySet(), null);
+    }
+
+    public List<GeoNotification> getWatchedPage(String afterId, int limit) {
+        return geoNotificationStore.getPage(afterId, limit);
     }
 
     public List<GeoNotification> getWatched() {
@@ -64,32 +419,256 @@ public class GeoNotificationManager {
         }
     }
 
-    public void addGeoNotifications(List<GeoNotification> geoNotifications,
+    /**
+     * Diffs every fence against the stored one: unchanged fences are skipped,
+     * payload-only changes are only written, and just new fences or changed
+     * registrations reach Play Services. {@code success} receives the counts
+     * as {@code added}, {@code updated}, {@code payloadOnly} and {@code unchanged}.
+     *
+     * @return the counts, known before the registration completes
+     */
+    public UpsertCounts addGeoNotifications(List<GeoNotification> geoNotifications,
                                     final Callback success) {
+        List<String> ids = new ArrayList<String>(geoNotifications.size());
+        for (GeoNotification geo : geoNotifications) {
+            geo.applyPolygonBounds();
+            ids.add(geo.id);
+        }
+        Map<String, GeoNotification> stored = new HashMap<String, GeoNotification>();
+        for (GeoNotification geo : geoNotificationStore.getGeoNotifications(ids)) {
+            stored.put(geo.id, geo);
+        }
+
+        List<GeoNotification> toWrite = new ArrayList<GeoNotification>();
+        List<GeoNotification> toRegister = new ArrayList<GeoNotification>();
+        final UpsertCounts counts = new UpsertCounts();
+        for (GeoNotification geo : geoNotifications) {
+            GeoNotification previous = stored.get(geo.id);
+            if (previous == null) {
+                counts.added++;
+                toWrite.add(geo);
+                toRegister.add(geo);
+            } else if (!geo.hasSameRegistration(previous)
+                    || previous.registrationState == GeoNotification.REGISTRATION_FAILED) {
+                // Adding a failed fence again retries it
+                counts.updated++;
+                toWrite.add(geo);
+                toRegister.add(geo);
+            } else if (!geo.hasSamePayload(previous)) {
+                // Only the payload changed, so the fence keeps its
+                // registration and whether it fired
+                counts.payloadOnly++;
+                geo.registrationState = previous.registrationState;
+                geo.registrationStatus = previous.registrationStatus;
+                geo.showedNotification = previous.showedNotification;
+                geo.lastFired = previous.lastFired;
+                toWrite.add(geo);
+            } else {
+                counts.unchanged++;
+            }
+        }
+        logger.log(Log.DEBUG, "addOrUpdate: " + counts.added + " added, " + counts.updated + " updated, "
+            + counts.payloadOnly + " payload only, " + counts.unchanged + " unchanged");
+
+        final Callback done = success == null ? null : new Callback() {
+            @Override
+            public void invoke(Object... args) {
+                success.invoke(counts.toWritableMap());
+            }
+        };
+
+        // Load the cluster index before the write so the new fences count as changes
+        FenceClusters clusters = !useLocalGeofencing && ClusteredRegistration.isEnabled(context)
+            ? ClusteredRegistration.getClusters(geoNotificationStore)
+            : null;
+        if (!toWrite.isEmpty()) {
+            geoNotificationStore.setGeoNotifications(toWrite);
+            prepareNotifications(toWrite);
+        }
+        if (toRegister.isEmpty()) {
+            if (done != null) {
+                done.invoke();
+            }
+            return counts;
+        }
+        if (useLocalGeofencing) {
+            LocalGeofencing.addOrUpdate(context, toRegister);
+            if (done != null) {
+                done.invoke();
+            }
+            return counts;
+        }
+        long now = System.currentTimeMillis();
+        long nextBoundary = FenceTable.NO_BOUNDARY;
+        for (GeoNotification geo : toWrite) {
+            nextBoundary = Math.min(nextBoundary, geo.nextWindowBoundary(now));
+        }
+        RegistrationSchedule.scheduleEarlier(context, nextBoundary);
+
+        // Changed fences and parents are added again if they stay registered
+        Set<String> changed = new LinkedHashSet<String>();
+        if (clusters != null) {
+            for (GeoNotification geo : toRegister) {
+                changed.addAll(clusters.addOrUpdate(geo.id, geo.latitude, geo.longitude, geo.radius));
+                changed.add(geo.id);
+            }
+        }
+        if (updateClusteringMode(done)) {
+            return counts;
+        }
+        if (clusters != null) {
+            updateClusteredRegistrations(clusters, changed, done);
+            return counts;
+        }
+        // Fences whose window is not open wait for the schedule, and leave
+        // Play Services if they were registered before the update
         List<Geofence> newGeofences = new ArrayList<Geofence>();
+        List<String> closed = new ArrayList<String>();
+        for (GeoNotification geo : toRegister) {
+            if (geo.shouldFire(now)) {
+                newGeofences.add(geo.toGeofence());
+            } else {
+                closed.add(geo.id);
+            }
+        }
+        queueRegistrationChanges(newGeofences, closed, done);
+        return counts;
+    }
+
+    /**
+     * Resolves the notification templates ahead of the first transition.
+     */
+    private void prepareNotifications(List<GeoNotification> geoNotifications) {
+        NotificationTemplates templates = NotificationTemplates.getInstance(context);
         for (GeoNotification geo : geoNotifications) {
-            geoNotificationStore.setGeoNotification(geo);
-            newGeofences.add(geo.toGeofence());
+            if (geo.notification != null) {
+                templates.prepare(geo.notification);
+            }
         }
+    }
 
-        AddGeofenceCommand geoFenceCmd = new AddGeofenceCommand(
-            context,
-            pendingIntent,
-            newGeofences
-        );
+    public int exportSnapshot(File file) throws IOException {
+        return geoNotificationStore.exportSnapshot(file);
+    }
 
-        if (success != null) {
-            geoFenceCmd.addListener(new IGoogleServiceCommandListener() {
-                @Override
-                public void onCommandExecuted() {
-                    success.invoke();
+    /**
+     * Replaces all fences with the ones of a snapshot, then updates the
+     * registrations once. Registered directly, only the fences that are new,
+     * register differently or had failed are added, the others keep their
+     * registration state, and the missing ones are removed. Clustered, or when the snapshot crosses the clustering threshold,
+     * everything is registered again from the restored store.
+     * {@code success} receives the number of fences restored and the time
+     * the restore of the store took in milliseconds.
+     */
+    public void restoreSnapshot(File file, final Callback success) throws IOException {
+        final boolean wasClustering = !useLocalGeofencing && ClusteredRegistration.isEnabled(context);
+        final Map<String, GeoNotification> previous = new HashMap<String, GeoNotification>();
+        if (!useLocalGeofencing && !wasClustering) {
+            // Registered directly, so there are few of them
+            for (GeoNotification geo : geoNotificationStore.getAll()) {
+                previous.put(geo.id, geo);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final long[] nextBoundary = { FenceTable.NO_BOUNDARY };
+        final List<Geofence> toAdd = new ArrayList<Geofence>();
+        final List<String> closed = new ArrayList<String>();
+        final Set<String> restoredIds = new HashSet<String>();
+        final Map<String, Notification> notifications = new HashMap<String, Notification>();
+
+        long start = Metrics.now();
+        final int count = geoNotificationStore.restoreSnapshot(file, new GeoNotificationStore.RestoreListener() {
+            @Override
+            public void onRestored(GeoNotification geo) {
+                if (geo.notification != null) {
+                    // One per distinct set of icons is enough to prepare the templates
+                    Notification notification = geo.notification;
+                    notifications.put(notification.icon + '\n' + notification.smallIcon
+                        + '\n' + notification.openAppOnClick, notification);
                 }
-            });
+                nextBoundary[0] = Math.min(nextBoundary[0], geo.nextWindowBoundary(now));
+                if (useLocalGeofencing || wasClustering
+                        || ClusteredRegistration.shouldCluster(restoredIds.size())) {
+                    return;
+                }
+                restoredIds.add(geo.id);
+                GeoNotification before = previous.get(geo.id);
+                if (!geo.shouldFire(now)) {
+                    if (before != null) {
+                        closed.add(geo.id);
+                    }
+                } else if (before == null || !geo.hasSameRegistration(before)
+                        || before.registrationState == GeoNotification.REGISTRATION_FAILED) {
+                    toAdd.add(geo.toGeofence());
+                } else {
+                    // Stays registered as it was
+                    geo.registrationState = before.registrationState;
+                    geo.registrationStatus = before.registrationStatus;
+                }
+            }
+        });
+        final double durationMs = (Metrics.now() - start) / 1e6;
+        logger.log(Log.INFO, "Restored " + count + " geofences from " + file + " in " + durationMs + "ms");
+        final Callback done = success == null ? null : new Callback() {
+            @Override
+            public void invoke(Object... args) {
+                success.invoke(count, durationMs);
+            }
+        };
+
+        NotificationTemplates templates = NotificationTemplates.getInstance(context);
+        for (Notification notification : notifications.values()) {
+            templates.prepare(notification);
+        }
+        ClusteredRegistration.invalidate();
+
+        if (useLocalGeofencing) {
+            LocalGeofencing.reload(context);
+            if (done != null) {
+                done.invoke();
+            }
+            return;
+        }
+        RegistrationSchedule.setLastCheck(context, now);
+        RegistrationSchedule.schedule(context, nextBoundary[0]);
+        boolean clustering = ClusteredRegistration.shouldCluster(count);
+        if (clustering || wasClustering) {
+            ClusteredRegistration.setEnabled(context, clustering);
+            replaceRegistrations(done);
+            return;
         }
-        googleServiceCommandExecutor.QueueToExecute(geoFenceCmd);
+        List<String> toRemove = new ArrayList<String>(closed);
+        for (String id : previous.keySet()) {
+            if (!restoredIds.contains(id)) {
+                toRemove.add(id);
+            }
+        }
+        queueRegistrationChanges(toAdd, toRemove, done);
     }
 
     public void removeGeoNotifications(List<String> ids, final Callback success) {
+        if (useLocalGeofencing) {
+            geoNotificationStore.remove(ids);
+            LocalGeofencing.remove(context, ids);
+            if (success != null) {
+                success.invoke();
+            }
+            return;
+        }
+        if (ClusteredRegistration.isEnabled(context)) {
+            FenceClusters clusters = ClusteredRegistration.getClusters(geoNotificationStore);
+            geoNotificationStore.remove(ids);
+            Set<String> changed = new LinkedHashSet<String>();
+            for (String id : ids) {
+                changed.addAll(clusters.remove(id));
+            }
+            if (updateClusteringMode(success)) {
+                return;
+            }
+            updateClusteredRegistrations(clusters, changed, success);
+            return;
+        }
+        registrationScheduler.cancel(ids);
         RemoveGeofenceCommand cmd = new RemoveGeofenceCommand(context, ids);
         if (success != null) {
             cmd.addListener(new IGoogleServiceCommandListener() {
@@ -100,30 +679,25 @@ public class GeoNotificationManager {
             });
         }
 
-        for (String id : ids) {
-            geoNotificationStore.remove(id);
-        }
+        geoNotificationStore.remove(ids);
 
         googleServiceCommandExecutor.QueueToExecute(cmd);
     }
 
     public void removeAllGeoNotifications(final Callback success) {
-        List<GeoNotification> geoNotifications = geoNotificationStore.getAll();
-        List<String> geoNotificationsIds = new ArrayList<String>();
-        for (GeoNotification geo : geoNotifications) {
-            geoNotificationsIds.add(geo.id);
-        }
-        removeGeoNotifications(geoNotificationsIds, success);
+        NotificationTemplates.getInstance(context).clear();
+        RegistrationSchedule.cancel(context);
+        removeGeoNotifications(geoNotificationStore.getAllIds(), success);
     }
 
     /*
-     * Create a PendingIntent that triggers an IntentService in your app when a
-     * geofence transition occurs.
+     * Create a PendingIntent that delivers geofence transitions to
+     * TransitionReceiver.
      */
     private PendingIntent getTransitionPendingIntent() {
-        Intent intent = new Intent(context, ReceiveTransitionsIntentService.class);
+        Intent intent = new Intent(context, TransitionReceiver.class);
         logger.log(Log.DEBUG, "Geofence Intent created!");
-        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
 }
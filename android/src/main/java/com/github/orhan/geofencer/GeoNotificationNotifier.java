@@ -3,50 +3,41 @@ package com.github.orhan.geofencer;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
 import android.util.Log;
 
 public class GeoNotificationNotifier {
     private NotificationManager notificationManager;
     private Context context;
     private BeepHelper beepHelper;
+    private NotificationTemplates templates;
     private Logger logger;
 
     public GeoNotificationNotifier(NotificationManager notificationManager, Context context) {
         this.notificationManager = notificationManager;
         this.context = context;
         this.beepHelper = new BeepHelper();
+        this.templates = NotificationTemplates.getInstance(context);
         this.logger = Logger.getLogger();
     }
 
-    public void notify(Notification notification) {
-        notification.setContext(context);
+    public void notify(final Notification notification) {
+        long start = Metrics.now();
+        NotificationTemplates.Template template = templates.get(notification);
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(context)
-            .setVibrate(notification.getVibrate())
-            .setSmallIcon(notification.getSmallIcon())
-            .setLargeIcon(notification.getLargeIcon())
+            .setVibrate(template.vibrate)
+            .setSmallIcon(template.smallIcon)
+            .setLargeIcon(template.largeIcon)
             .setAutoCancel(true)
             .setContentTitle(notification.getTitle())
             .setContentText(notification.getText());
 
-        if (notification.openAppOnClick) {
-            String packageName = context.getPackageName();
-            Intent resultIntent = context.getPackageManager()
-                .getLaunchIntentForPackage(packageName);
-
-            if (notification.data != null) {
-                resultIntent.putExtra("geofence.notification.data", notification.getDataJson());
-            }
-
-            TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-            stackBuilder.addNextIntent(resultIntent);
-            PendingIntent resultPendingIntent = stackBuilder.getPendingIntent(
-                notification.id, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (template.contentIntent != null) {
+            PendingIntent resultPendingIntent = PendingIntent.getActivity(context,
+                notification.id, template.contentIntent, PendingIntent.FLAG_UPDATE_CURRENT);
             mBuilder.setContentIntent(resultPendingIntent);
         }
         try {
@@ -58,6 +49,12 @@ public class GeoNotificationNotifier {
             e.printStackTrace();
         }
         notificationManager.notify(notification.id, mBuilder.build());
-        logger.log(Log.DEBUG, notification.toString());
+        Metrics.recordSince(Metrics.NOTIFICATION_BUILD, start);
+        logger.log(Log.DEBUG, new Logger.Message() {
+            @Override
+            public String get() {
+                return notification.toString();
+            }
+        });
     }
 }
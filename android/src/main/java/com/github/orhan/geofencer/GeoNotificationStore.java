@@ -2,10 +2,24 @@ package com.github.orhan.geofencer;
 
 import android.content.Context;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GeoNotificationStore {
+    private static final int SNAPSHOT_PAGE_SIZE = 1000;
+
+    /**
+     * Sees every fence of a snapshot while it is restored, and may change
+     * its registration state before it is written.
+     */
+    public interface RestoreListener {
+        void onRestored(GeoNotification geoNotification);
+    }
+
     private LocalStorage storage;
 
     public GeoNotificationStore(Context context) {
@@ -13,28 +27,260 @@ public class GeoNotificationStore {
     }
 
     public void setGeoNotification(GeoNotification geoNotification) {
-        storage.setItem(geoNotification.id, Gson.get().toJson(geoNotification));
+        long start = Metrics.now();
+        storage.setItem(geoNotification.id, GeoNotificationCodec.encode(geoNotification));
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    public void setGeoNotifications(List<GeoNotification> geoNotifications) {
+        Map<String, byte[]> items = new LinkedHashMap<String, byte[]>();
+        for (GeoNotification geoNotification : geoNotifications) {
+            items.put(geoNotification.id, GeoNotificationCodec.encode(geoNotification));
+        }
+        long start = Metrics.now();
+        storage.setItems(items);
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    /**
+     * Records that the fence fired, keeping any definition written since it
+     * was read.
+     */
+    public void markFired(String id, long firedAt) {
+        long start = Metrics.now();
+        storage.updateItem(id, firedUpdater(firedAt));
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    /**
+     * Same as {@link #markFired(String, long)} for several fences, in one
+     * transaction.
+     */
+    public void markFired(List<String> ids, long firedAt) {
+        long start = Metrics.now();
+        storage.updateItems(ids, firedUpdater(firedAt));
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    /**
+     * Records the registration state of the fences, skipping removed ones.
+     */
+    public void setRegistrationState(List<String> ids, final int state, final int statusCode) {
+        long start = Metrics.now();
+        storage.updateItems(ids, new LocalStorage.Updater() {
+            @Override
+            public byte[] update(byte[] current) {
+                GeoNotification geo = GeoNotificationCodec.decode(current);
+                if (geo == null || (geo.registrationState == state && geo.registrationStatus == statusCode)) {
+                    return null;
+                }
+                geo.registrationState = state;
+                geo.registrationStatus = statusCode;
+                return GeoNotificationCodec.encode(geo);
+            }
+        });
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
     }
 
     public GeoNotification getGeoNotification(String id) {
-        String objectJson = storage.getItem(id);
-        return GeoNotification.fromJson(objectJson);
+        long start = Metrics.now();
+        byte[] record = storage.getItemBytes(id);
+        Metrics.recordSince(Metrics.STORE_READ, start);
+        return GeoNotificationCodec.decode(record);
+    }
+
+    /**
+     * Returns the stored fences among {@code ids} in the order of
+     * {@code ids}, skipping unknown ones. All ids are read with one query.
+     */
+    public List<GeoNotification> getGeoNotifications(List<String> ids) {
+        long start = Metrics.now();
+        Map<String, byte[]> records = storage.getItemsBytes(ids);
+        Metrics.recordSince(Metrics.STORE_READ, start);
+        List<GeoNotification> result = new ArrayList<GeoNotification>(records.size());
+        for (String id : ids) {
+            byte[] record = records.get(id);
+            if (record != null) {
+                result.add(GeoNotificationCodec.decode(record));
+            }
+        }
+        return result;
     }
 
     public List<GeoNotification> getAll() {
-        List<String> objectJsonList = storage.getAllItems();
-        List<GeoNotification> result = new ArrayList<GeoNotification>();
-        for (String json : objectJsonList) {
-            result.add(GeoNotification.fromJson(json));
+        long start = Metrics.now();
+        List<byte[]> records = storage.getAllItemsBytes();
+        Metrics.recordSince(Metrics.STORE_READ, start);
+        List<GeoNotification> result = new ArrayList<GeoNotification>(records.size());
+        for (byte[] record : records) {
+            result.add(GeoNotificationCodec.decode(record));
         }
         return result;
     }
 
+    /**
+     * Returns up to {@code limit} fences ordered by id, following
+     * {@code afterId} or from the start if it is null.
+     */
+    public List<GeoNotification> getPage(String afterId, int limit) {
+        long start = Metrics.now();
+        List<byte[]> records = storage.getItemsBytesAfter(afterId, limit);
+        Metrics.recordSince(Metrics.STORE_READ, start);
+        List<GeoNotification> result = new ArrayList<GeoNotification>(records.size());
+        for (byte[] record : records) {
+            result.add(GeoNotificationCodec.decode(record));
+        }
+        return result;
+    }
+
+    /**
+     * Reads every stored fence into a {@link FenceTable}, a page of records
+     * at a time.
+     */
+    public FenceTable loadTable() {
+        long start = Metrics.now();
+        FenceTable table = new FenceTable(SNAPSHOT_PAGE_SIZE);
+        String afterKey = null;
+        Map<String, byte[]> page;
+        do {
+            page = storage.getItemsAfter(afterKey, SNAPSHOT_PAGE_SIZE);
+            for (Map.Entry<String, byte[]> item : page.entrySet()) {
+                GeoNotificationCodec.decodeInto(item.getValue(), table);
+                afterKey = item.getKey();
+            }
+        } while (page.size() == SNAPSHOT_PAGE_SIZE);
+        Metrics.recordSince(Metrics.FENCE_TABLE_LOAD, start);
+        return table;
+    }
+
+    public List<String> getAllIds() {
+        long start = Metrics.now();
+        List<String> ids = storage.getAllKeys();
+        Metrics.recordSince(Metrics.STORE_READ, start);
+        return ids;
+    }
+
     public void remove(String id) {
+        long start = Metrics.now();
         storage.removeItem(id);
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    public void remove(List<String> ids) {
+        long start = Metrics.now();
+        storage.removeItems(ids);
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
     }
 
     public void clear() {
+        long start = Metrics.now();
         storage.clear();
+        Metrics.recordSince(Metrics.STORE_WRITE, start);
+    }
+
+    /**
+     * Writes every stored fence to a {@link StoreSnapshot} file, reading the
+     * store a page at a time.
+     *
+     * @return the number of fences written
+     */
+    public int exportSnapshot(File file) throws IOException {
+        long start = Metrics.now();
+        StoreSnapshot.Writer writer = new StoreSnapshot.Writer(file);
+        try {
+            String afterKey = null;
+            Map<String, byte[]> page;
+            do {
+                page = storage.getItemsAfter(afterKey, SNAPSHOT_PAGE_SIZE);
+                for (Map.Entry<String, byte[]> item : page.entrySet()) {
+                    writer.add(item.getKey(), item.getValue());
+                    afterKey = item.getKey();
+                }
+            } while (page.size() == SNAPSHOT_PAGE_SIZE);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        Metrics.recordSince(Metrics.SNAPSHOT_EXPORT, start);
+        return writer.getCount();
+    }
+
+    /**
+     * Replaces all stored fences with the ones of a {@link StoreSnapshot}
+     * file in one transaction. The store is left untouched if the file is
+     * corrupt or holds a record that does not decode, but the listener may
+     * have seen some of its fences by then.
+     *
+     * Registration states are those of the device the snapshot was taken
+     * on, so every fence is restored as pending unless the listener says
+     * otherwise. Records are only encoded again when that changes them.
+     *
+     * @return the number of fences restored
+     */
+    public int restoreSnapshot(File file, final RestoreListener listener) throws IOException {
+        long start = Metrics.now();
+        final StoreSnapshot.Reader reader = new StoreSnapshot.Reader(file);
+        int count;
+        try {
+            count = storage.replaceAll(new LocalStorage.ItemSource() {
+                private byte[] value;
+
+                @Override
+                public boolean next() throws IOException {
+                    if (!reader.next()) {
+                        return false;
+                    }
+                    value = reader.value();
+                    GeoNotification geo;
+                    try {
+                        geo = GeoNotificationCodec.decode(value);
+                    } catch (RuntimeException e) {
+                        throw new IOException("Snapshot contains an unreadable fence " + reader.key(), e);
+                    }
+                    if (geo == null) {
+                        throw new IOException("Snapshot contains an empty fence " + reader.key());
+                    }
+                    int state = geo.registrationState;
+                    int status = geo.registrationStatus;
+                    geo.registrationState = GeoNotification.REGISTRATION_PENDING;
+                    geo.registrationStatus = 0;
+                    listener.onRestored(geo);
+                    if (geo.registrationState != state || geo.registrationStatus != status) {
+                        value = GeoNotificationCodec.encode(geo);
+                    }
+                    return true;
+                }
+
+                @Override
+                public String key() {
+                    return reader.key();
+                }
+
+                @Override
+                public byte[] value() {
+                    return value;
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        Metrics.recordSince(Metrics.SNAPSHOT_RESTORE, start);
+        return count;
+    }
+
+    private static LocalStorage.Updater firedUpdater(final long firedAt) {
+        return new LocalStorage.Updater() {
+            @Override
+            public byte[] update(byte[] current) {
+                GeoNotification geo = GeoNotificationCodec.decode(current);
+                if (geo == null) {
+                    // Removed in the meantime
+                    return null;
+                }
+                geo.showedNotification = true;
+                geo.lastFired = firedAt;
+                return GeoNotificationCodec.encode(geo);
+            }
+        };
     }
 }
@@ -0,0 +1,306 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming replacement for the reflective adapter of {@link GeoNotification}.
+ * Output matches the reflective one: fields in declaration order and null
+ * fields omitted. The registration state is not part of it, like every
+ * field without {@code @Expose}, JS reads it through getWatched.
+ */
+public class GeoNotificationTypeAdapter extends TypeAdapter<GeoNotification> {
+    public static final TypeAdapterFactory FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(com.google.gson.Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != GeoNotification.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new GeoNotificationTypeAdapter(gson.getAdapter(Notification.class));
+        }
+    };
+
+    private final TypeAdapter<Notification> notificationAdapter;
+
+    GeoNotificationTypeAdapter(TypeAdapter<Notification> notificationAdapter) {
+        this.notificationAdapter = notificationAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, GeoNotification value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(value.id);
+        out.name("latitude").value(value.latitude);
+        out.name("longitude").value(value.longitude);
+        out.name("radius").value(value.radius);
+        out.name("transitionType").value(value.transitionType);
+        out.name("startTime").value(value.startTime);
+        out.name("endTime").value(value.endTime);
+        out.name("lastFired").value(value.lastFired);
+        out.name("showedNotification").value(value.showedNotification);
+        out.name("happensOnce").value(value.happensOnce);
+        out.name("notification");
+        notificationAdapter.write(out, value.notification);
+        out.name("polygon");
+        writePolygon(out, value.polygon);
+        out.name("schedule");
+        writeSchedule(out, value.schedule);
+        out.endObject();
+    }
+
+    @Override
+    public GeoNotification read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        GeoNotification geo = new GeoNotification();
+        String startTime = null;
+        String endTime = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL && isPrimitive(name)) {
+                in.nextNull();
+            } else if (name.equals("id")) {
+                geo.id = readString(in);
+            } else if (name.equals("latitude")) {
+                geo.latitude = in.nextDouble();
+            } else if (name.equals("longitude")) {
+                geo.longitude = in.nextDouble();
+            } else if (name.equals("radius")) {
+                geo.radius = in.nextInt();
+            } else if (name.equals("transitionType")) {
+                geo.transitionType = in.nextInt();
+            } else if (name.equals("startTime")) {
+                startTime = readString(in);
+            } else if (name.equals("endTime")) {
+                endTime = readString(in);
+            } else if (name.equals("lastFired")) {
+                geo.lastFired = in.nextLong();
+            } else if (name.equals("showedNotification")) {
+                geo.showedNotification = in.nextBoolean();
+            } else if (name.equals("happensOnce")) {
+                geo.happensOnce = in.nextBoolean();
+            } else if (name.equals("notification")) {
+                geo.notification = notificationAdapter.read(in);
+            } else if (name.equals("polygon")) {
+                geo.polygon = readPolygon(in);
+            } else if (name.equals("schedule")) {
+                geo.schedule = readSchedule(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        geo.setTimeRange(startTime, endTime);
+        return geo;
+    }
+
+    /**
+     * Polygons are written as a list of {latitude, longitude} objects.
+     */
+    private static void writePolygon(JsonWriter out, double[] polygon) throws IOException {
+        if (polygon == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (int i = 0; i + 1 < polygon.length; i += 2) {
+            out.beginObject();
+            out.name("latitude").value(polygon[i]);
+            out.name("longitude").value(polygon[i + 1]);
+            out.endObject();
+        }
+        out.endArray();
+    }
+
+    private static double[] readPolygon(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        double[] polygon = new double[16];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            double latitude = 0, longitude = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("latitude")) {
+                    latitude = in.nextDouble();
+                } else if (name.equals("longitude")) {
+                    longitude = in.nextDouble();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (size + 2 > polygon.length) {
+                polygon = Arrays.copyOf(polygon, polygon.length * 2);
+            }
+            polygon[size++] = latitude;
+            polygon[size++] = longitude;
+        }
+        in.endArray();
+        return Arrays.copyOf(polygon, size);
+    }
+
+    /**
+     * Schedules are written as {timeZone, weekly: [{days, start, end}],
+     * exceptions} with times as "HH:mm" and dates as "yyyy-MM-dd".
+     */
+    private static void writeSchedule(JsonWriter out, RecurringSchedule schedule) throws IOException {
+        if (schedule == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("timeZone").value(schedule.getTimeZone());
+        out.name("weekly").beginArray();
+        for (int[] range : schedule.getRanges()) {
+            out.beginObject();
+            out.name("days").beginArray().value(range[0]).endArray();
+            out.name("start").value(formatTime(range[1]));
+            out.name("end").value(formatTime(range[2]));
+            out.endObject();
+        }
+        out.endArray();
+        out.name("exceptions").beginArray();
+        for (String date : schedule.getExceptions()) {
+            out.value(date);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    /**
+     * Reads and compiles a schedule.
+     *
+     * @throws IllegalArgumentException
+     *             if the schedule is invalid
+     */
+    private static RecurringSchedule readSchedule(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String timeZone = null;
+        List<int[]> ranges = new ArrayList<int[]>();
+        List<String> exceptions = new ArrayList<String>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("timeZone")) {
+                timeZone = readString(in);
+            } else if (name.equals("weekly")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    readRanges(in, ranges);
+                }
+                in.endArray();
+            } else if (name.equals("exceptions")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    exceptions.add(readString(in));
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return RecurringSchedule.compile(timeZone, ranges, exceptions);
+    }
+
+    private static void readRanges(JsonReader in, List<int[]> ranges) throws IOException {
+        List<Integer> days = new ArrayList<Integer>();
+        String start = null, end = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("days")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    days.add(in.nextInt());
+                }
+                in.endArray();
+            } else if (name.equals("start")) {
+                start = readString(in);
+            } else if (name.equals("end")) {
+                end = readString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        int startMinute = parseTime(start);
+        int endMinute = parseTime(end);
+        for (int day : days) {
+            ranges.add(new int[] { day, startMinute, endMinute });
+        }
+    }
+
+    /**
+     * Minutes since midnight of "HH:mm", up to "24:00".
+     */
+    private static int parseTime(String time) {
+        int colon = time == null ? -1 : time.indexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("invalid schedule time " + time);
+        }
+        try {
+            int hours = Integer.parseInt(time.substring(0, colon));
+            int minutes = Integer.parseInt(time.substring(colon + 1));
+            if (hours < 0 || minutes < 0 || minutes > 59 || hours * 60 + minutes > 24 * 60) {
+                throw new IllegalArgumentException("invalid schedule time " + time);
+            }
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid schedule time " + time);
+        }
+    }
+
+    static String formatTime(int minutes) {
+        return String.format(Locale.US, "%02d:%02d", minutes / 60, minutes % 60);
+    }
+
+    private static boolean isPrimitive(String name) {
+        return name.equals("latitude") || name.equals("longitude")
+            || name.equals("radius") || name.equals("transitionType")
+            || name.equals("lastFired") || name.equals("showedNotification")
+            || name.equals("happensOnce");
+    }
+
+    /**
+     * Reads a string the way Gson's reflective adapter does, accepting
+     * numbers and booleans as their textual form.
+     */
+    static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+}
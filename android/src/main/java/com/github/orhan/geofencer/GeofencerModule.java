@@ -13,13 +13,24 @@ import com.google.gson.*;
 import com.facebook.react.bridge.*;
 import com.facebook.react.modules.core.RCTNativeAppEventEmitter;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class GeofencerModule extends ReactContextBaseJavaModule {
     public static final String TAG = "RNGeofencer";
     private GeoNotificationManager geoNotificationManager;
+    private static final int MAX_CHUNKS_IN_FLIGHT = 2;
+    private static final int CHUNK_ACK_TIMEOUT_SECONDS = 30;
+
+    private ModuleTaskQueue taskQueue;
+    private final Map<String, Semaphore> chunkCredits = new ConcurrentHashMap<String, Semaphore>();
     private static ReactContext context;
 
     @Override
@@ -33,8 +44,9 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
     public GeofencerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         context = reactContext;
-        Logger.setLogger(new Logger(TAG, context, false));
-        geoNotificationManager = new GeoNotificationManager(context);
+        Logger.initLogger(reactContext.getApplicationContext());
+        geoNotificationManager = GeoNotificationManager.getInstance(context);
+        taskQueue = new ModuleTaskQueue();
     }
 
     private GeoNotification parseFromJSONObject(ReadableMap object) throws Exception {
@@ -43,19 +55,24 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
     }
 
     public static void onTransitionReceived(List<GeoNotification> notifications) {
-        Log.d(TAG, "Transition Event Received!");
+        onTransitionReceived(notifications, Metrics.now());
+    }
 
-        WritableArray array = new WritableNativeArray();
+    /**
+     * @param receivedAt
+     *            {@link Metrics#now()} when the transition reached the plugin
+     */
+    public static void onTransitionReceived(List<GeoNotification> notifications, long receivedAt) {
+        Logger.getLogger().log(Log.DEBUG, "Transition Event Received!");
 
         try {
-            for (GeoNotification notification : notifications) {
-                WritableMap notificationMap = convertJsonToMap(new JSONObject(Gson.get().toJson(notification)));
-                array.pushMap(notificationMap);
-            }
+            WritableArray array = toWritableArray(notifications);
 
             context.getJSModule(RCTNativeAppEventEmitter.class).emit("GeofencerOnTransitionReceived", array);
+            Metrics.recordSince(Metrics.TRANSITION_TO_EMIT, receivedAt);
+            Metrics.add(Metrics.TRANSITIONS_EMITTED, notifications.size());
         } catch (Exception e) {
-            // EMPTY!
+            Metrics.increment(Metrics.EMIT_FAILURES);
         }
     }
 
@@ -79,51 +96,474 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void addOrUpdate(ReadableArray geofences, Callback success, Callback error) {
+        long start = Metrics.now();
+        queueAddOrUpdate(geofences, ModuleTaskQueue.Reply.of(success, error));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    @ReactMethod
+    public void addOrUpdateAsync(ReadableArray geofences, Promise promise) {
+        long start = Metrics.now();
+        queueAddOrUpdate(geofences, ModuleTaskQueue.Reply.of(promise));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    private void queueAddOrUpdate(ReadableArray geofences, ModuleTaskQueue.Reply reply) {
+        taskQueue.submitBatch("addOrUpdate", Collections.singletonList(geofences), reply,
+            new ModuleTaskQueue.BatchTask<ReadableArray>() {
+                @Override
+                public void run(List<ReadableArray> calls, Callback done) throws Exception {
+                    List<GeoNotification> geoNotifications = new ArrayList<GeoNotification>();
+
+                    for (ReadableArray geofences : calls) {
+                        for (int i = 0; i < geofences.size(); i++) {
+                            GeoNotification not = parseFromJSONObject(geofences.getMap(i));
+                            if (not != null) {
+                                geoNotifications.add(not);
+                            }
+                        }
+                    }
+
+                    geoNotificationManager.addGeoNotifications(geoNotifications, done);
+                }
+
+                @Override
+                protected Object toReply(Object result) {
+                    ReadableMap counts = (ReadableMap) result;
+                    WritableMap copy = new WritableNativeMap();
+                    copy.putInt("added", counts.getInt("added"));
+                    copy.putInt("updated", counts.getInt("updated"));
+                    copy.putInt("payloadOnly", counts.getInt("payloadOnly"));
+                    copy.putInt("unchanged", counts.getInt("unchanged"));
+                    return copy;
+                }
+            });
+    }
+
+    @ReactMethod
+    public void remove(ReadableArray removeIds, Callback success, Callback error) {
+        long start = Metrics.now();
+        queueRemove(removeIds, ModuleTaskQueue.Reply.of(success, error));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    @ReactMethod
+    public void removeAsync(ReadableArray removeIds, Promise promise) {
+        long start = Metrics.now();
+        queueRemove(removeIds, ModuleTaskQueue.Reply.of(promise));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    private void queueRemove(ReadableArray removeIds, ModuleTaskQueue.Reply reply) {
+        taskQueue.submitBatch("remove", Collections.singletonList(removeIds), reply,
+            new ModuleTaskQueue.BatchTask<ReadableArray>() {
+                @Override
+                public void run(List<ReadableArray> calls, Callback done) {
+                    List<String> ids = new ArrayList<String>();
+
+                    for (ReadableArray removeIds : calls) {
+                        for (int i = 0; i < removeIds.size(); i++) {
+                            ids.add(removeIds.getString(i));
+                        }
+                    }
+
+                    geoNotificationManager.removeGeoNotifications(ids, done);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void removeAll(Callback success, Callback error) {
+        long start = Metrics.now();
+        queueRemoveAll(ModuleTaskQueue.Reply.of(success, error));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    @ReactMethod
+    public void removeAllAsync(Promise promise) {
+        long start = Metrics.now();
+        queueRemoveAll(ModuleTaskQueue.Reply.of(promise));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    private void queueRemoveAll(ModuleTaskQueue.Reply reply) {
+        taskQueue.submitBatch("removeAll", Collections.<Void>emptyList(), reply,
+            new ModuleTaskQueue.BatchTask<Void>() {
+                @Override
+                public void run(List<Void> calls, Callback done) {
+                    geoNotificationManager.removeAllGeoNotifications(done);
+                }
+            });
+    }
+
+    @ReactMethod
+    public void getWatched(Callback success, Callback error) {
+        long start = Metrics.now();
+        queueGetWatched(null, ModuleTaskQueue.Reply.of(success, error));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    /**
+     * @param requestId
+     *            id to cancel the read with through {@link #cancelRead}, may be null
+     */
+    @ReactMethod
+    public void getWatchedAsync(String requestId, Promise promise) {
+        long start = Metrics.now();
+        queueGetWatched(requestId, ModuleTaskQueue.Reply.of(promise));
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    private void queueGetWatched(String requestId, ModuleTaskQueue.Reply reply) {
+        taskQueue.submitRead(requestId, reply, new ModuleTaskQueue.CancellableTask() {
+            @Override
+            public Object run(ModuleTaskQueue.Cancellation cancellation) throws Exception {
+                List<GeoNotification> geoNotifications = geoNotificationManager.getWatched();
+                cancellation.check();
+                return toWritableArray(geoNotifications);
+            }
+        });
+    }
+
+    /**
+     * Delivers the watched fences as a sequence of
+     * {@code GeofencerWatchedChunk} events of {@code {requestId, index, items, last}},
+     * reading one page of the store per chunk. At most
+     * {@link #MAX_CHUNKS_IN_FLIGHT} chunks are sent ahead of the ones JS
+     * acknowledged through {@link #ackWatchedChunk}, so neither side holds
+     * more than a few chunks however large the store is. Resolves to the
+     * number of fences sent. The requestId is required, it tells the
+     * chunks and acknowledgements of concurrent reads apart.
+     */
+    @ReactMethod
+    public void getWatchedChunked(final String requestId, final int chunkSize, Promise promise) {
+        if (requestId == null) {
+            promise.reject(ModuleTaskQueue.E_FAILED, "getWatchedChunked needs a requestId");
+            return;
+        }
+        long start = Metrics.now();
+        final Semaphore credits = new Semaphore(MAX_CHUNKS_IN_FLIGHT);
+        chunkCredits.put(requestId, credits);
+        taskQueue.submitRead(requestId, ModuleTaskQueue.Reply.of(promise), new ModuleTaskQueue.CancellableTask() {
+            @Override
+            public Object run(ModuleTaskQueue.Cancellation cancellation) throws Exception {
+                try {
+                    int limit = Math.max(1, chunkSize);
+                    String afterId = null;
+                    int index = 0, sent = 0;
+                    boolean last = false;
+                    while (!last) {
+                        List<GeoNotification> page = geoNotificationManager.getWatchedPage(afterId, limit);
+                        last = page.size() < limit;
+                        awaitCredit(credits, cancellation);
+
+                        WritableMap chunk = new WritableNativeMap();
+                        chunk.putString("requestId", requestId);
+                        chunk.putInt("index", index++);
+                        chunk.putArray("items", toWritableArray(page));
+                        chunk.putBoolean("last", last);
+                        context.getJSModule(RCTNativeAppEventEmitter.class).emit("GeofencerWatchedChunk", chunk);
+
+                        sent += page.size();
+                        if (!page.isEmpty()) {
+                            afterId = page.get(page.size() - 1).id;
+                        }
+                    }
+                    return sent;
+                } finally {
+                    chunkCredits.remove(requestId);
+                }
+            }
+        });
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    /**
+     * Lets {@link #getWatchedChunked} send the next chunk.
+     */
+    @ReactMethod
+    public void ackWatchedChunk(String requestId) {
+        Semaphore credits = chunkCredits.get(requestId);
+        if (credits != null) {
+            credits.release();
+        }
+    }
+
+    private static void awaitCredit(Semaphore credits, ModuleTaskQueue.Cancellation cancellation)
+            throws Exception {
+        long waited = 0;
+        while (!credits.tryAcquire(1, TimeUnit.SECONDS)) {
+            cancellation.check();
+            if (++waited >= CHUNK_ACK_TIMEOUT_SECONDS) {
+                throw new Exception("No acknowledgement for watched chunk in " + waited + "s");
+            }
+        }
+    }
+
+    /**
+     * Imports fences from a GeoJSON FeatureCollection or NDJSON file without
+     * passing them through the bridge, see {@link FenceImporter}. Relative
+     * paths are resolved against the app's files directory.
+     *
+     * Options are {@code format} ("geojson" or "ndjson", by file extension
+     * otherwise), {@code batchSize}, {@code transitionType} for records
+     * without one, and {@code requestId} to tell the progress events apart
+     * and cancel the import through {@link #cancelRead}. Batches written
+     * before a cancellation or a syntax error stay imported.
+     *
+     * Emits "GeofencerImportProgress" after every batch and resolves to the
+     * summary.
+     */
+    @ReactMethod
+    public void importFromFile(String path, ReadableMap options, Promise promise) {
+        if (!checkPath(path, promise)) {
+            return;
+        }
+        long start = Metrics.now();
+        final File file = resolveFile(path);
+        final String requestId = getString(options, "requestId", path);
+        String formatName = getString(options, "format", null);
+        final FenceImporter.Format format;
         try {
-            List<GeoNotification> geoNotifications = new ArrayList<GeoNotification>();
+            format = formatName != null
+                ? FenceImporter.Format.valueOf(formatName.toUpperCase(Locale.US))
+                : FenceImporter.detectFormat(file.getName());
+        } catch (IllegalArgumentException e) {
+            promise.reject(ModuleTaskQueue.E_FAILED, "Unknown import format " + formatName);
+            return;
+        }
+        final int batchSize = getInt(options, "batchSize", FenceImporter.DEFAULT_BATCH_SIZE);
+        final int transitionType = getInt(options, "transitionType", 0);
+
+        taskQueue.submitWrite(requestId, ModuleTaskQueue.Reply.of(promise), new ModuleTaskQueue.CancellableTask() {
+            @Override
+            public Object run(ModuleTaskQueue.Cancellation cancellation) throws Exception {
+                FenceImporter importer = new FenceImporter(new FenceImporter.Listener() {
+                    @Override
+                    public GeoNotificationManager.UpsertCounts upsert(List<GeoNotification> batch) {
+                        return geoNotificationManager.addGeoNotifications(batch, null);
+                    }
+
+                    @Override
+                    public void onProgress(FenceImporter.Summary summary, long bytesRead, long totalBytes) {
+                        WritableMap progress = toWritableMap(summary);
+                        progress.putString("requestId", requestId);
+                        progress.putDouble("bytesRead", bytesRead);
+                        progress.putDouble("totalBytes", totalBytes);
+                        context.getJSModule(RCTNativeAppEventEmitter.class).emit("GeofencerImportProgress", progress);
+                    }
+                }, batchSize, transitionType);
+
+                FenceImporter.Summary summary = importer.importFile(file, format, cancellation);
+                Logger.getLogger().log(Log.INFO, "Imported " + file + ": " + summary.imported + " added, "
+                    + summary.updated + " updated, " + summary.rejected + " rejected");
+                WritableMap result = toWritableMap(summary);
+                WritableArray errors = new WritableNativeArray();
+                for (String error : summary.errors) {
+                    errors.pushString(error);
+                }
+                result.putArray("errors", errors);
+                return result;
+            }
+        });
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
+
+    /**
+     * Writes all fences to a checksummed snapshot file, see
+     * {@link StoreSnapshot}. Resolves to {@code {fences, bytes, durationMs}}.
+     */
+    @ReactMethod
+    public void exportSnapshot(String path, Promise promise) {
+        if (!checkPath(path, promise)) {
+            return;
+        }
+        long start = Metrics.now();
+        final File file = resolveFile(path);
+        taskQueue.submitRead(null, ModuleTaskQueue.Reply.of(promise), new ModuleTaskQueue.CancellableTask() {
+            @Override
+            public Object run(ModuleTaskQueue.Cancellation cancellation) throws Exception {
+                long started = Metrics.now();
+                int count = geoNotificationManager.exportSnapshot(file);
+                WritableMap result = new WritableNativeMap();
+                result.putInt("fences", count);
+                result.putDouble("bytes", file.length());
+                result.putDouble("durationMs", (Metrics.now() - started) / 1e6);
+                return result;
+            }
+        });
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
 
-            for (int i = 0; i < geofences.size(); i++) {
-                GeoNotification not = parseFromJSONObject(geofences.getMap(i));
-                if (not != null) {
-                    geoNotifications.add(not);
+    /**
+     * Replaces all fences with the ones of a snapshot written by
+     * {@link #exportSnapshot} in one transaction, then updates the
+     * registrations once. Nothing changes if the file is corrupt. Resolves
+     * to {@code {fences, durationMs}} once registered, the duration covering
+     * the restore of the store.
+     */
+    @ReactMethod
+    public void importSnapshot(String path, Promise promise) {
+        if (!checkPath(path, promise)) {
+            return;
+        }
+        long start = Metrics.now();
+        final File file = resolveFile(path);
+        final ModuleTaskQueue.Reply reply = ModuleTaskQueue.Reply.of(promise);
+        taskQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    geoNotificationManager.restoreSnapshot(file, new Callback() {
+                        @Override
+                        public void invoke(Object... args) {
+                            WritableMap result = new WritableNativeMap();
+                            result.putInt("fences", (Integer) args[0]);
+                            result.putDouble("durationMs", (Double) args[1]);
+                            reply.resolve(result);
+                        }
+                    });
+                } catch (Exception e) {
+                    Logger.getLogger().log("Restoring snapshot " + file + " failed", e);
+                    reply.reject(ModuleTaskQueue.E_FAILED, e.getMessage());
                 }
             }
+        });
+        Metrics.recordSince(Metrics.MODULE_THREAD_BLOCKED, start);
+    }
 
-            geoNotificationManager.addGeoNotifications(geoNotifications, success);
-        } catch(Exception e) {
-            error.invoke(e.getMessage());
+    /**
+     * Rejects a missing path before anything is queued.
+     */
+    private static boolean checkPath(String path, Promise promise) {
+        if (path == null || path.trim().isEmpty()) {
+            promise.reject(ModuleTaskQueue.E_INVALID_ARGUMENT, "A file path is required");
+            return false;
         }
+        return true;
+    }
+
+    private static File resolveFile(String path) {
+        if (path.startsWith("file://")) {
+            path = path.substring("file://".length());
+        }
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(context.getFilesDir(), path);
+    }
+
+    private static WritableMap toWritableMap(FenceImporter.Summary summary) {
+        WritableMap map = new WritableNativeMap();
+        map.putInt("records", summary.records);
+        map.putInt("imported", summary.imported);
+        map.putInt("updated", summary.updated);
+        map.putInt("unchanged", summary.unchanged);
+        map.putInt("rejected", summary.rejected);
+        return map;
+    }
+
+    private static String getString(ReadableMap map, String key, String fallback) {
+        return map != null && map.hasKey(key) && !map.isNull(key) ? map.getString(key) : fallback;
+    }
+
+    private static int getInt(ReadableMap map, String key, int fallback) {
+        return map != null && map.hasKey(key) && !map.isNull(key) ? map.getInt(key) : fallback;
+    }
+
+    /**
+     * Cancels a read that is still waiting or running, its promise is then
+     * rejected with {@link ModuleTaskQueue#E_CANCELLED}.
+     */
+    @ReactMethod
+    public void cancelRead(String requestId, Promise promise) {
+        promise.resolve(taskQueue.cancel(requestId));
     }
 
     @ReactMethod
-    public void remove(ReadableArray removeIds, Callback success, Callback error) {
+    public void getMetrics(Callback success, Callback error) {
         try {
-            List<String> ids = new ArrayList<String>();
+            WritableMap timers = new WritableNativeMap();
+            for (int i = 0; i < Metrics.timerCount(); i++) {
+                WritableMap timer = new WritableNativeMap();
+                timer.putDouble("count", Metrics.getCount(i));
+                timer.putDouble("totalMs", Metrics.getTotalNanos(i) / 1e6);
+                timer.putDouble("maxMs", Metrics.getMaxNanos(i) / 1e6);
+                timer.putDouble("p50Ms", Metrics.getPercentileNanos(i, 0.5) / 1e6);
+                timer.putDouble("p95Ms", Metrics.getPercentileNanos(i, 0.95) / 1e6);
+                timer.putDouble("p99Ms", Metrics.getPercentileNanos(i, 0.99) / 1e6);
+                timers.putMap(Metrics.timerName(i), timer);
+            }
 
-            for (int i = 0; i < removeIds.size(); i++) {
-                ids.add(removeIds.getString(i));
+            WritableMap counters = new WritableNativeMap();
+            for (int i = 0; i < Metrics.counterCount(); i++) {
+                counters.putDouble(Metrics.counterName(i), Metrics.getCounter(i));
             }
 
-            geoNotificationManager.removeGeoNotifications(ids, success);
+            WritableMap fenceTable = new WritableNativeMap();
+            FenceTable table = geoNotificationManager.getLoadedTable();
+            fenceTable.putInt("fences", table == null ? 0 : table.size());
+            fenceTable.putDouble("heapBytes", table == null ? 0 : table.heapBytes());
+            fenceTable.putDouble("heapBytesPer10k", table == null ? 0 : table.heapBytesPer10k());
+
+            WritableMap metrics = new WritableNativeMap();
+            metrics.putMap("timers", timers);
+            metrics.putMap("counters", counters);
+            metrics.putMap("fenceTable", fenceTable);
+            success.invoke(metrics);
         } catch(Exception e) {
             error.invoke(e.getMessage());
         }
     }
 
+    /**
+     * Updates the settings of the {@link TransitionFilter} given in
+     * {@code options} and resolves with all of them.
+     */
     @ReactMethod
-    public void removeAll(Callback success, Callback error) {
+    public void setTransitionFilter(ReadableMap options, Promise promise) {
         try {
-            geoNotificationManager.removeAllGeoNotifications(success);
-        } catch(Exception e) {
-            error.invoke(e.getMessage());
+            TransitionFilter.Config config = TransitionFilter.getConfig(context);
+            if (options.hasKey("enabled")) {
+                config.enabled = options.getBoolean("enabled");
+            }
+            if (options.hasKey("dropBelow")) {
+                config.dropBelow = options.getDouble("dropBelow");
+            }
+            if (options.hasKey("deferBelow")) {
+                config.deferBelow = options.getDouble("deferBelow");
+            }
+            if (options.hasKey("deferSeconds")) {
+                config.deferMillis = Math.round(options.getDouble("deferSeconds") * 1000);
+            }
+            TransitionFilter.setConfig(context, config);
+
+            WritableMap result = new WritableNativeMap();
+            result.putBoolean("enabled", config.enabled);
+            result.putDouble("dropBelow", config.dropBelow);
+            result.putDouble("deferBelow", config.deferBelow);
+            result.putDouble("deferSeconds", config.deferMillis / 1000.0);
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject(ModuleTaskQueue.E_FAILED, e.getMessage());
         }
     }
 
     @ReactMethod
-    public void getWatched(Callback success, Callback error) {
+    public void setLogLevel(int level) {
+        Logger.getLogger().setMinLevel(level);
+    }
+
+    @ReactMethod
+    public void getLogs(Callback success, Callback error) {
         try {
-            List<GeoNotification> geoNotifications = geoNotificationManager.getWatched();
-            success.invoke(Gson.get().toJson(geoNotifications));
+            WritableArray entries = new WritableNativeArray();
+            for (Logger.Entry entry : Logger.getLogger().getRecentEntries()) {
+                WritableMap map = new WritableNativeMap();
+                map.putDouble("time", entry.time);
+                map.putInt("level", entry.priority);
+                map.putString("message", entry.message);
+                entries.pushMap(map);
+            }
+            success.invoke(entries);
         } catch(Exception e) {
             error.invoke(e.getMessage());
         }
@@ -142,16 +582,116 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
         return hasAllPermissions;
     }
 
-    private boolean hasPermission(Context context, String permission) {
-        int res = context.checkCallingOrSelfPermission(permission);
+    private boolean hasPermission(Context context, final String permission) {
+        final int res = context.checkCallingOrSelfPermission(permission);
 
-        Log.v(TAG, "permission: " + permission + " = \t\t" +
-                (res == PackageManager.PERMISSION_GRANTED ? "GRANTED" : "DENIED"));
+        Logger.getLogger().log(Log.VERBOSE, new Logger.Message() {
+            @Override
+            public String get() {
+                return "permission: " + permission + " = \t\t" +
+                        (res == PackageManager.PERMISSION_GRANTED ? "GRANTED" : "DENIED");
+            }
+        });
 
         return res == PackageManager.PERMISSION_GRANTED;
     }
 
-    private JSONObject toJSONObject(ReadableMap readableMap) throws JSONException {
+    /**
+     * Converts fences straight into bridge maps, with the same keys as their
+     * JSON form and nulls left out.
+     */
+    static WritableArray toWritableArray(List<GeoNotification> geoNotifications) {
+        WritableArray array = new WritableNativeArray();
+        for (GeoNotification geo : geoNotifications) {
+            array.pushMap(toWritableMap(geo));
+        }
+        return array;
+    }
+
+    static WritableMap toWritableMap(GeoNotification geo) {
+        WritableMap map = new WritableNativeMap();
+        putString(map, "id", geo.id);
+        map.putDouble("latitude", geo.latitude);
+        map.putDouble("longitude", geo.longitude);
+        map.putInt("radius", geo.radius);
+        map.putInt("transitionType", geo.transitionType);
+        putString(map, "startTime", geo.startTime);
+        putString(map, "endTime", geo.endTime);
+        map.putDouble("lastFired", geo.lastFired);
+        map.putBoolean("showedNotification", geo.showedNotification);
+        map.putBoolean("happensOnce", geo.happensOnce);
+        if (geo.notification != null) {
+            map.putMap("notification", toWritableMap(geo.notification));
+        }
+        if (geo.polygon != null) {
+            WritableArray polygon = new WritableNativeArray();
+            for (int i = 0; i + 1 < geo.polygon.length; i += 2) {
+                WritableMap vertex = new WritableNativeMap();
+                vertex.putDouble("latitude", geo.polygon[i]);
+                vertex.putDouble("longitude", geo.polygon[i + 1]);
+                polygon.pushMap(vertex);
+            }
+            map.putArray("polygon", polygon);
+        }
+        if (geo.schedule != null) {
+            map.putMap("schedule", toWritableMap(geo.schedule));
+        }
+        map.putString("registrationState", GeoNotification.registrationStateName(geo.registrationState));
+        map.putInt("registrationStatus", geo.registrationStatus);
+        return map;
+    }
+
+    static WritableMap toWritableMap(RecurringSchedule schedule) {
+        WritableMap map = new WritableNativeMap();
+        map.putString("timeZone", schedule.getTimeZone());
+        WritableArray weekly = new WritableNativeArray();
+        for (int[] range : schedule.getRanges()) {
+            WritableMap entry = new WritableNativeMap();
+            WritableArray days = new WritableNativeArray();
+            days.pushInt(range[0]);
+            entry.putArray("days", days);
+            entry.putString("start", GeoNotificationTypeAdapter.formatTime(range[1]));
+            entry.putString("end", GeoNotificationTypeAdapter.formatTime(range[2]));
+            weekly.pushMap(entry);
+        }
+        map.putArray("weekly", weekly);
+        WritableArray exceptions = new WritableNativeArray();
+        for (String date : schedule.getExceptions()) {
+            exceptions.pushString(date);
+        }
+        map.putArray("exceptions", exceptions);
+        return map;
+    }
+
+    static WritableMap toWritableMap(Notification notification) {
+        WritableMap map = new WritableNativeMap();
+        map.putInt("id", notification.id);
+        putString(map, "title", notification.title);
+        putString(map, "text", notification.text);
+        if (notification.vibrate != null) {
+            WritableArray vibrate = new WritableNativeArray();
+            for (long duration : notification.vibrate) {
+                vibrate.pushDouble(duration);
+            }
+            map.putArray("vibrate", vibrate);
+        }
+        putString(map, "icon", notification.icon);
+        putString(map, "smallIcon", notification.smallIcon);
+        if (notification.data != null) {
+            // Parsed by the JS side when read, see withLazyData in index.js
+            map.putString("dataJson", notification.data.toString());
+        }
+        map.putBoolean("openAppOnClick", notification.openAppOnClick);
+        return map;
+    }
+
+    private static void putString(WritableMap map, String key, String value) {
+        if (value != null) {
+            map.putString(key, value);
+        }
+    }
+
+    static JSONObject toJSONObject(ReadableMap readableMap) throws JSONException {
         JSONObject jsonObject = new JSONObject();
 
         ReadableMapKeySetIterator iterator = readableMap.keySetIterator();
@@ -185,7 +725,7 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
         return jsonObject;
     }
 
-    private JSONArray toJSONArray(ReadableArray readableArray) throws JSONException {
+    static JSONArray toJSONArray(ReadableArray readableArray) throws JSONException {
         JSONArray jsonArray = new JSONArray();
 
         for (int i = 0; i < readableArray.size(); i++) {
@@ -216,109 +756,4 @@ public class GeofencerModule extends ReactContextBaseJavaModule {
         return jsonArray;
     }
 
-    private static WritableMap convertJsonToMap(JSONObject jsonObject) throws JSONException {
-        WritableMap map = new WritableNativeMap();
-
-        Iterator<String> iterator = jsonObject.keys();
-        while (iterator.hasNext()) {
-            String key = iterator.next();
-            Object value = jsonObject.get(key);
-            if (value instanceof JSONObject) {
-                map.putMap(key, convertJsonToMap((JSONObject) value));
-            } else if (value instanceof  JSONArray) {
-                map.putArray(key, convertJsonToArray((JSONArray) value));
-            } else if (value instanceof  Boolean) {
-                map.putBoolean(key, (Boolean) value);
-            } else if (value instanceof  Integer) {
-                map.putInt(key, (Integer) value);
-            } else if (value instanceof  Double) {
-                map.putDouble(key, (Double) value);
-            } else if (value instanceof String)  {
-                map.putString(key, (String) value);
-            } else {
-                map.putString(key, value.toString());
-            }
-        }
-        return map;
-    }
-
-    private static WritableArray convertJsonToArray(JSONArray jsonArray) throws JSONException {
-        WritableArray array = new WritableNativeArray();
-
-        for (int i = 0; i < jsonArray.length(); i++) {
-            Object value = jsonArray.get(i);
-            if (value instanceof JSONObject) {
-                array.pushMap(convertJsonToMap((JSONObject) value));
-            } else if (value instanceof  JSONArray) {
-                array.pushArray(convertJsonToArray((JSONArray) value));
-            } else if (value instanceof  Boolean) {
-                array.pushBoolean((Boolean) value);
-            } else if (value instanceof  Integer) {
-                array.pushInt((Integer) value);
-            } else if (value instanceof  Double) {
-                array.pushDouble((Double) value);
-            } else if (value instanceof String)  {
-                array.pushString((String) value);
-            } else {
-                array.pushString(value.toString());
-            }
-        }
-        return array;
-    }
-
-    private static JSONObject convertMapToJson(ReadableMap readableMap) throws JSONException {
-        JSONObject object = new JSONObject();
-        ReadableMapKeySetIterator iterator = readableMap.keySetIterator();
-        while (iterator.hasNextKey()) {
-            String key = iterator.nextKey();
-            switch (readableMap.getType(key)) {
-                case Null:
-                    object.put(key, JSONObject.NULL);
-                    break;
-                case Boolean:
-                    object.put(key, readableMap.getBoolean(key));
-                    break;
-                case Number:
-                    object.put(key, readableMap.getDouble(key));
-                    break;
-                case String:
-                    object.put(key, readableMap.getString(key));
-                    break;
-                case Map:
-                    object.put(key, convertMapToJson(readableMap.getMap(key)));
-                    break;
-                case Array:
-                    object.put(key, convertArrayToJson(readableMap.getArray(key)));
-                    break;
-            }
-        }
-        return object;
-    }
-
-    private static JSONArray convertArrayToJson(ReadableArray readableArray) throws JSONException {
-        JSONArray array = new JSONArray();
-        for (int i = 0; i < readableArray.size(); i++) {
-            switch (readableArray.getType(i)) {
-                case Null:
-                    break;
-                case Boolean:
-                    array.put(readableArray.getBoolean(i));
-                    break;
-                case Number:
-                    array.put(readableArray.getDouble(i));
-                    break;
-                case String:
-                    array.put(readableArray.getString(i));
-                    break;
-                case Map:
-                    array.put(convertMapToJson(readableArray.getMap(i)));
-                    break;
-                case Array:
-                    array.put(convertArrayToJson(readableArray.getArray(i)));
-                    break;
-            }
-        }
-        return array;
-    }
-
 }
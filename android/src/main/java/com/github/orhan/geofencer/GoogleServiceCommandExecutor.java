@@ -1,17 +1,23 @@
 package com.github.orhan.geofencer;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
 
+/**
+ * Runs Play Services commands one after the other. Commands are queued from
+ * the module's background thread and complete on the main thread.
+ */
 public class GoogleServiceCommandExecutor implements IGoogleServiceCommandListener {
     private Queue<AbstractGoogleServiceCommand> commandsToExecute;
     private boolean isExecuting = false;
+    private long executionStartedAt;
 
     public GoogleServiceCommandExecutor() {
-        commandsToExecute = new LinkedList<AbstractGoogleServiceCommand>();
+        commandsToExecute = new ArrayDeque<AbstractGoogleServiceCommand>();
     }
 
-    public void QueueToExecute(AbstractGoogleServiceCommand command) {
+    public synchronized void QueueToExecute(AbstractGoogleServiceCommand command) {
+        command.queuedAt = Metrics.now();
         commandsToExecute.add(command);
         if (!isExecuting) ExecuteNext();
     }
@@ -20,13 +26,15 @@ public class GoogleServiceCommandExecutor implements IGoogleServiceCommandListen
         if (commandsToExecute.isEmpty()) return;
         isExecuting = true;
         AbstractGoogleServiceCommand command = commandsToExecute.poll();
+        executionStartedAt = Metrics.now();
+        Metrics.record(Metrics.COMMAND_QUEUE_WAIT, executionStartedAt - command.queuedAt);
         command.addListener(this);
         command.Execute();
     }
 
     @Override
-    public void onCommandExecuted() {
-        // TODO Auto-generated method stub
+    public synchronized void onCommandExecuted() {
+        Metrics.recordSince(Metrics.COMMAND_EXECUTION, executionStartedAt);
         isExecuting = false;
         ExecuteNext();
     }
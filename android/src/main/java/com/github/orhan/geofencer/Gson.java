@@ -6,7 +6,11 @@ public class Gson {
     private static final com.google.gson.Gson gson;
 
     static {
-        gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+        gson = new GsonBuilder()
+            .excludeFieldsWithoutExposeAnnotation()
+            .registerTypeAdapterFactory(NotificationTypeAdapter.FACTORY)
+            .registerTypeAdapterFactory(GeoNotificationTypeAdapter.FACTORY)
+            .create();
     }
 
     public static com.google.gson.Gson get() {
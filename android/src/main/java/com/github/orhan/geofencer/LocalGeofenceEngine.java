@@ -0,0 +1,357 @@
+package com.github.orhan.geofencer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates circular fences against a stream of locations without Play
+ * Services. Plain Java so it can run and be measured on any JVM.
+ *
+ * Fences are bucketed into a grid of fixed-size cells, so an update only
+ * tests the fences of the cell the location falls into plus the fences the
+ * device is currently inside. Distances use the haversine formula with the
+ * cosine of every fence latitude precomputed, compared against the
+ * precomputed haversine value of the radius to avoid asin and sqrt.
+ */
+public class LocalGeofenceEngine {
+    public static final int TRANSITION_ENTER = 1;
+    public static final int TRANSITION_EXIT = 2;
+    public static final int TRANSITION_DWELL = 4;
+
+    public interface Listener {
+        void onTransition(int transitionType, List<String> fenceIds);
+    }
+
+    /**
+     * A fence the device is inside, kept across processes so a fresh
+     * engine does not report ENTER again.
+     */
+    public static class Inside {
+        public final String id;
+        public final long since;
+        public final boolean dwellReported;
+
+        public Inside(String id, long since, boolean dwellReported) {
+            this.id = id;
+            this.since = since;
+            this.dwellReported = dwellReported;
+        }
+    }
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double DEFAULT_CELL_SIZE_METERS = 2000;
+    // Fences covering more cells than this are checked on every update instead
+    private static final int MAX_CELLS_PER_FENCE = 64;
+
+    private static class Fence {
+        final String id;
+        final double latitude;
+        final double longitude;
+        final double radius;
+        final int transitionTypes;
+
+        Fence(String id, double latitude, double longitude, double radius, int transitionTypes) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.transitionTypes = transitionTypes;
+        }
+    }
+
+    private final double cellSizeDegrees;
+    private final long dwellMillis;
+    private final Map<String, Fence> fences = new LinkedHashMap<String, Fence>();
+    private final Map<String, Inside> restored = new HashMap<String, Inside>();
+    private boolean dirty = true;
+    private boolean insideChanged;
+
+    // Compiled fence table, rebuilt when the fence set changes
+    private String[] ids = new String[0];
+    private double[] latRad = new double[0];
+    private double[] lngRad = new double[0];
+    private double[] cosLat = new double[0];
+    private double[] radiusHaversine = new double[0];
+    private int[] transitionTypes = new int[0];
+    private boolean[] inside = new boolean[0];
+    private long[] insideSince = new long[0];
+    private boolean[] dwellReported = new boolean[0];
+    private Map<Long, int[]> grid = new HashMap<Long, int[]>();
+    private int[] largeFences = new int[0];
+
+    private int[] insideIndexes = new int[16];
+    private int insideCount = 0;
+    private int[] checkedStamp = new int[0];
+    private int stamp = 0;
+
+    private final List<String> entered = new ArrayList<String>();
+    private final List<String> exited = new ArrayList<String>();
+    private final List<String> dwelled = new ArrayList<String>();
+
+    public LocalGeofenceEngine() {
+        this(DEFAULT_CELL_SIZE_METERS, 0);
+    }
+
+    /**
+     * @param cellSizeMeters
+     *            edge of a grid cell, roughly the typical fence diameter
+     * @param dwellMillis
+     *            time inside a fence before DWELL is reported, 0 disables it
+     */
+    public LocalGeofenceEngine(double cellSizeMeters, long dwellMillis) {
+        this.cellSizeDegrees = Math.toDegrees(cellSizeMeters / EARTH_RADIUS_METERS);
+        this.dwellMillis = dwellMillis;
+    }
+
+    public synchronized void addOrUpdate(String id, double latitude, double longitude,
+                                         double radius, int transitionTypes) {
+        fences.put(id, new Fence(id, latitude, longitude, radius, transitionTypes));
+        dirty = true;
+    }
+
+    public synchronized void addOrUpdate(GeoNotification geo) {
+        addOrUpdate(geo.id, geo.latitude, geo.longitude, geo.radius, geo.transitionType);
+    }
+
+    public synchronized void remove(String id) {
+        if (fences.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    public synchronized void clear() {
+        fences.clear();
+        dirty = true;
+    }
+
+    public synchronized int size() {
+        return fences.size();
+    }
+
+    /**
+     * Restores the inside state saved from {@link #getInside()}. Entries of
+     * unknown fences are ignored.
+     */
+    public synchronized void restoreInside(List<Inside> state) {
+        for (Inside entry : state) {
+            restored.put(entry.id, entry);
+        }
+        dirty = true;
+    }
+
+    public synchronized List<Inside> getInside() {
+        if (dirty) {
+            compile();
+        }
+        List<Inside> state = new ArrayList<Inside>(insideCount);
+        for (int i = 0; i < insideCount; i++) {
+            int index = insideIndexes[i];
+            state.add(new Inside(ids[index], insideSince[index], dwellReported[index]));
+        }
+        return state;
+    }
+
+    /**
+     * Evaluates a location fix and reports transitions grouped by type, in
+     * the order EXIT, ENTER, DWELL.
+     *
+     * @return whether the inside state changed, including transitions the
+     *         fences do not report
+     */
+    public synchronized boolean onLocation(double latitude, double longitude, long timeMillis,
+                                           Listener listener) {
+        if (dirty) {
+            compile();
+        }
+        insideChanged = false;
+        entered.clear();
+        exited.clear();
+        dwelled.clear();
+
+        double pointLat = Math.toRadians(latitude);
+        double pointLng = Math.toRadians(longitude);
+        double pointCosLat = Math.cos(pointLat);
+        if (++stamp == 0) {
+            Arrays.fill(checkedStamp, 0);
+            stamp = 1;
+        }
+
+        // Fences the device was inside may have been left from another cell
+        int previouslyInside = insideCount;
+        for (int i = previouslyInside - 1; i >= 0; i--) {
+            evaluate(insideIndexes[i], pointLat, pointLng, pointCosLat, timeMillis);
+        }
+
+        for (int index : largeFences) {
+            evaluate(index, pointLat, pointLng, pointCosLat, timeMillis);
+        }
+
+        int[] candidates = grid.get(cellKey(cellOf(latitude), cellOf(longitude)));
+        if (candidates != null) {
+            for (int index : candidates) {
+                evaluate(index, pointLat, pointLng, pointCosLat, timeMillis);
+            }
+        }
+
+        if (listener != null) {
+            if (!exited.isEmpty()) listener.onTransition(TRANSITION_EXIT, new ArrayList<String>(exited));
+            if (!entered.isEmpty()) listener.onTransition(TRANSITION_ENTER, new ArrayList<String>(entered));
+            if (!dwelled.isEmpty()) listener.onTransition(TRANSITION_DWELL, new ArrayList<String>(dwelled));
+        }
+        return insideChanged;
+    }
+
+    private void evaluate(int index, double pointLat, double pointLng, double pointCosLat, long timeMillis) {
+        if (checkedStamp[index] == stamp) {
+            return;
+        }
+        checkedStamp[index] = stamp;
+
+        double sinHalfDLat = Math.sin((pointLat - latRad[index]) * 0.5);
+        double sinHalfDLng = Math.sin((pointLng - lngRad[index]) * 0.5);
+        double a = sinHalfDLat * sinHalfDLat + pointCosLat * cosLat[index] * sinHalfDLng * sinHalfDLng;
+        boolean isInside = a <= radiusHaversine[index];
+
+        if (isInside && !inside[index]) {
+            inside[index] = true;
+            insideSince[index] = timeMillis;
+            dwellReported[index] = false;
+            addInside(index);
+            insideChanged = true;
+            if ((transitionTypes[index] & TRANSITION_ENTER) != 0) entered.add(ids[index]);
+        } else if (!isInside && inside[index]) {
+            inside[index] = false;
+            removeInside(index);
+            insideChanged = true;
+            if ((transitionTypes[index] & TRANSITION_EXIT) != 0) exited.add(ids[index]);
+        } else if (isInside && dwellMillis > 0 && !dwellReported[index]
+                && timeMillis - insideSince[index] >= dwellMillis) {
+            dwellReported[index] = true;
+            insideChanged = true;
+            if ((transitionTypes[index] & TRANSITION_DWELL) != 0) dwelled.add(ids[index]);
+        }
+    }
+
+    private void addInside(int index) {
+        if (insideCount == insideIndexes.length) {
+            insideIndexes = Arrays.copyOf(insideIndexes, insideCount * 2);
+        }
+        insideIndexes[insideCount++] = index;
+    }
+
+    private void removeInside(int index) {
+        for (int i = 0; i < insideCount; i++) {
+            if (insideIndexes[i] == index) {
+                insideIndexes[i] = insideIndexes[--insideCount];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the fence table and the grid, keeping the inside state of
+     * fences that still exist or were restored.
+     */
+    private void compile() {
+        Map<String, Integer> previous = new HashMap<String, Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            previous.put(ids[i], i);
+        }
+        boolean[] oldInside = inside;
+        long[] oldInsideSince = insideSince;
+        boolean[] oldDwellReported = dwellReported;
+
+        int count = fences.size();
+        ids = new String[count];
+        latRad = new double[count];
+        lngRad = new double[count];
+        cosLat = new double[count];
+        radiusHaversine = new double[count];
+        transitionTypes = new int[count];
+        inside = new boolean[count];
+        insideSince = new long[count];
+        dwellReported = new boolean[count];
+        checkedStamp = new int[count];
+        stamp = 0;
+        insideCount = 0;
+
+        Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+        List<Integer> large = new ArrayList<Integer>();
+        int index = 0;
+        for (Fence fence : fences.values()) {
+            ids[index] = fence.id;
+            latRad[index] = Math.toRadians(fence.latitude);
+            lngRad[index] = Math.toRadians(fence.longitude);
+            cosLat[index] = Math.cos(latRad[index]);
+            double halfAngle = Math.min(fence.radius / EARTH_RADIUS_METERS, Math.PI) * 0.5;
+            radiusHaversine[index] = Math.sin(halfAngle) * Math.sin(halfAngle);
+            transitionTypes[index] = fence.transitionTypes;
+
+            Integer old = previous.get(fence.id);
+            Inside saved = restored.get(fence.id);
+            if (old != null && oldInside[old]) {
+                inside[index] = true;
+                insideSince[index] = oldInsideSince[old];
+                dwellReported[index] = oldDwellReported[old];
+                addInside(index);
+            } else if (saved != null) {
+                inside[index] = true;
+                insideSince[index] = saved.since;
+                dwellReported[index] = saved.dwellReported;
+                addInside(index);
+            }
+
+            double latSpan = Math.toDegrees(fence.radius / EARTH_RADIUS_METERS);
+            double lngSpan = cosLat[index] < 1e-6 ? 180 : Math.min(180, latSpan / cosLat[index]);
+            int minLatCell = cellOf(fence.latitude - latSpan);
+            int maxLatCell = cellOf(fence.latitude + latSpan);
+            int minLngCell = cellOf(fence.longitude - lngSpan);
+            int maxLngCell = cellOf(fence.longitude + lngSpan);
+            if ((long) (maxLatCell - minLatCell + 1) * (maxLngCell - minLngCell + 1) > MAX_CELLS_PER_FENCE) {
+                large.add(index);
+                index++;
+                continue;
+            }
+            for (int latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+                for (int lngCell = minLngCell; lngCell <= maxLngCell; lngCell++) {
+                    Long key = cellKey(latCell, lngCell);
+                    List<Integer> cell = cells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<Integer>(4);
+                        cells.put(key, cell);
+                    }
+                    cell.add(index);
+                }
+            }
+            index++;
+        }
+
+        largeFences = new int[large.size()];
+        for (int i = 0; i < largeFences.length; i++) {
+            largeFences[i] = large.get(i);
+        }
+        grid = new HashMap<Long, int[]>(cells.size() * 2);
+        for (Map.Entry<Long, List<Integer>> cell : cells.entrySet()) {
+            List<Integer> members = cell.getValue();
+            int[] packed = new int[members.size()];
+            for (int i = 0; i < packed.length; i++) {
+                packed[i] = members.get(i);
+            }
+            grid.put(cell.getKey(), packed);
+        }
+        restored.clear();
+        dirty = false;
+    }
+
+    private int cellOf(double degrees) {
+        return (int) Math.floor(degrees / cellSizeDegrees);
+    }
+
+    private static long cellKey(int latCell, int lngCell) {
+        return ((long) latCell << 32) | (lngCell & 0xFFFFFFFFL);
+    }
+}
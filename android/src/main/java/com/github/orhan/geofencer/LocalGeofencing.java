@@ -0,0 +1,167 @@
+package com.github.orhan.geofencer;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fallback geofencing for devices without Google Play Services. Location
+ * updates from the platform {@link LocationManager} are delivered to
+ * {@link LocationUpdateReceiver} and evaluated by a process wide
+ * {@link LocalGeofenceEngine} loaded from the store.
+ *
+ * The fences the device is inside are kept in shared preferences, since
+ * updates may be delivered to a fresh process that would otherwise report
+ * ENTER again.
+ */
+public class LocalGeofencing {
+    private static final long MIN_UPDATE_INTERVAL_MILLIS = 30 * 1000;
+    private static final float MIN_UPDATE_DISTANCE_METERS = 25;
+
+    private static final String PREFERENCES = "com.github.orhan.geofencer.local";
+    private static final String KEY_INSIDE = "inside";
+
+    private static LocalGeofenceEngine engine;
+    private static final Object mutex = new Object();
+
+    private LocalGeofencing() {
+    }
+
+    /**
+     * Returns the shared engine, loading all stored fences on first use.
+     */
+    public static LocalGeofenceEngine getEngine(Context context) {
+        synchronized (mutex) {
+            if (engine == null) {
+                LocalGeofenceEngine created = new LocalGeofenceEngine();
+                FenceTable table = new GeoNotificationStore(context).loadTable();
+                for (int row = 0; row < table.size(); row++) {
+                    created.addOrUpdate(table.id(row), table.latitude(row), table.longitude(row),
+                        table.radius(row), table.transitionTypes(row));
+                }
+                created.restoreInside(loadInside(context));
+                engine = created;
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Reloads the engine from the store, e.g. after the store was replaced.
+     */
+    public static void reload(Context context) {
+        synchronized (mutex) {
+            engine = null;
+        }
+        updateLocationRequests(context, getEngine(context));
+    }
+
+    public static void addOrUpdate(Context context, List<GeoNotification> geoNotifications) {
+        LocalGeofenceEngine engine = getEngine(context);
+        for (GeoNotification geo : geoNotifications) {
+            engine.addOrUpdate(geo);
+        }
+        updateLocationRequests(context, engine);
+    }
+
+    public static void remove(Context context, List<String> ids) {
+        LocalGeofenceEngine engine = getEngine(context);
+        for (String id : ids) {
+            engine.remove(id);
+        }
+        updateLocationRequests(context, engine);
+    }
+
+    /**
+     * Requests location updates while there are fences to watch and stops
+     * them otherwise.
+     */
+    public static void updateLocationRequests(Context context, LocalGeofenceEngine engine) {
+        Logger logger = Logger.getLogger();
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        PendingIntent pendingIntent = getLocationPendingIntent(context);
+
+        try {
+            if (engine.size() == 0) {
+                logger.log(Log.DEBUG, "No local geofences left, stopping location updates");
+                locationManager.removeUpdates(pendingIntent);
+                return;
+            }
+            String provider = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)
+                ? LocationManager.NETWORK_PROVIDER
+                : LocationManager.GPS_PROVIDER;
+            logger.log(Log.DEBUG, "Requesting location updates for local geofences from " + provider);
+            locationManager.requestLocationUpdates(provider, MIN_UPDATE_INTERVAL_MILLIS,
+                MIN_UPDATE_DISTANCE_METERS, pendingIntent);
+        } catch (SecurityException e) {
+            logger.log("Location permission missing, local geofences disabled", e);
+        } catch (IllegalArgumentException e) {
+            logger.log("No location provider available, local geofences disabled", e);
+        }
+    }
+
+    static void onLocation(Context context, final Location location) {
+        final long receivedAt = Metrics.now();
+        final TransitionProcessor processor = new TransitionProcessor(context, new GeoNotificationStore(context));
+        LocalGeofenceEngine engine = getEngine(context);
+        boolean changed = engine.onLocation(location.getLatitude(), location.getLongitude(), location.getTime(),
+            new LocalGeofenceEngine.Listener() {
+                @Override
+                public void onTransition(int transitionType, List<String> fenceIds) {
+                    processor.process(transitionType, fenceIds, location, receivedAt);
+                }
+            });
+        if (changed) {
+            saveInside(context, engine.getInside());
+        }
+    }
+
+    /**
+     * Entries are stored as "since:dwellReported:id".
+     */
+    static List<LocalGeofenceEngine.Inside> loadInside(Context context) {
+        Set<String> entries = getPreferences(context).getStringSet(KEY_INSIDE, Collections.<String>emptySet());
+        List<LocalGeofenceEngine.Inside> state = new ArrayList<LocalGeofenceEngine.Inside>(entries.size());
+        for (String entry : entries) {
+            int first = entry.indexOf(':');
+            int second = entry.indexOf(':', first + 1);
+            if (first < 0 || second < 0) {
+                continue;
+            }
+            try {
+                state.add(new LocalGeofenceEngine.Inside(entry.substring(second + 1),
+                    Long.parseLong(entry.substring(0, first)), entry.charAt(first + 1) == '1'));
+            } catch (NumberFormatException e) {
+                // Skip the entry, the fence is then entered again
+            }
+        }
+        return state;
+    }
+
+    static void saveInside(Context context, List<LocalGeofenceEngine.Inside> state) {
+        Set<String> entries = new HashSet<String>(state.size() * 2);
+        for (LocalGeofenceEngine.Inside inside : state) {
+            entries.add(inside.since + ":" + (inside.dwellReported ? '1' : '0') + ":" + inside.id);
+        }
+        getPreferences(context).edit().putStringSet(KEY_INSIDE, entries).apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static PendingIntent getLocationPendingIntent(Context context) {
+        Intent intent = new Intent(context, LocationUpdateReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
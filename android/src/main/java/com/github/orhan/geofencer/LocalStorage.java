@@ -5,34 +5,157 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is used as a substitution of the local storage in Android webviews
  *
+ * Instances hold no connection state and may be used from any thread. Every
+ * multi-row write runs in a single transaction, and read-modify-write cycles
+ * must go through {@link #updateItem(String, Updater)}.
+ *
  * @author Diane taken from
  *         https://github.com/didimoo/AndroidLocalStorage/blob/master
  *         /src/com/example/androidlocalstorage/MainFragment.java
  */
 public class LocalStorage {
+    private static final String[] VALUE_COLUMN = { LocalStorageDBHelper.LOCALSTORAGE_VALUE };
+    private static final String[] ID_COLUMN = { LocalStorageDBHelper.LOCALSTORAGE_ID };
+    private static final String[] ID_VALUE_COLUMNS = {
+        LocalStorageDBHelper.LOCALSTORAGE_ID, LocalStorageDBHelper.LOCALSTORAGE_VALUE };
+    private static final String ID_SELECTION = LocalStorageDBHelper.LOCALSTORAGE_ID + " = ?";
+
+    /**
+     * Keys bound per IN query, below SQLite's default limit of 999 host
+     * parameters.
+     */
+    static final int MAX_KEYS_PER_QUERY = 500;
+
+    /**
+     * Computes the new value of an item from its current one.
+     */
+    public interface Updater {
+        /**
+         * @param current
+         *            : the stored value, null if there is none
+         * @return the value to store, or null to leave the item unchanged
+         */
+        byte[] update(byte[] current);
+    }
+
+    /**
+     * Supplies items one at a time, so they need not all be in memory.
+     */
+    public interface ItemSource {
+        /**
+         * Moves to the next item.
+         *
+         * @return false once there are no more items
+         */
+        boolean next() throws IOException;
+
+        String key();
+
+        byte[] value();
+    }
+
     private Context mContext;
     private LocalStorageDBHelper localStorageDBHelper;
-    private SQLiteDatabase database;
 
     public LocalStorage(Context c) {
         mContext = c;
         localStorageDBHelper = LocalStorageDBHelper.getInstance(mContext);
     }
 
+    /**
+     * Returns all stored values as raw bytes. Text values are returned as
+     * their UTF-8 encoding.
+     */
+    public List<byte[]> getAllItemsBytes() {
+        ArrayList<byte[]> results = new ArrayList<byte[]>();
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+        Cursor cursor = database.query(
+                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN, null, null,
+                null, null, null);
+        while (cursor.moveToNext()) {
+            results.add(getBytes(cursor, 0));
+        }
+        cursor.close();
+        return results;
+    }
+
+    /**
+     * Returns up to {@code limit} values in key order, starting after
+     * {@code afterKey}, or from the first key if it is null. Paging by key
+     * keeps every page an index lookup, however deep into the table.
+     */
+    public List<byte[]> getItemsBytesAfter(String afterKey, int limit) {
+        ArrayList<byte[]> results = new ArrayList<byte[]>();
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+        Cursor cursor = database.query(
+                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN,
+                afterKey == null ? null : LocalStorageDBHelper.LOCALSTORAGE_ID + " > ?",
+                afterKey == null ? null : new String[] { afterKey },
+                null, null, LocalStorageDBHelper.LOCALSTORAGE_ID, String.valueOf(limit));
+        while (cursor.moveToNext()) {
+            results.add(getBytes(cursor, 0));
+        }
+        cursor.close();
+        return results;
+    }
+
+    /**
+     * Same as {@link #getItemsBytesAfter(String, int)} but returns the keys
+     * along with the values, in key order.
+     */
+    public Map<String, byte[]> getItemsAfter(String afterKey, int limit) {
+        Map<String, byte[]> results = new LinkedHashMap<String, byte[]>();
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+        Cursor cursor = database.query(
+                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, ID_VALUE_COLUMNS,
+                afterKey == null ? null : LocalStorageDBHelper.LOCALSTORAGE_ID + " > ?",
+                afterKey == null ? null : new String[] { afterKey },
+                null, null, LocalStorageDBHelper.LOCALSTORAGE_ID, String.valueOf(limit));
+        try {
+            while (cursor.moveToNext()) {
+                results.put(cursor.getString(0), getBytes(cursor, 1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
     public List<String> getAllItems() {
         ArrayList<String> results = new ArrayList<String>();
-        database = localStorageDBHelper.getReadableDatabase();
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
         Cursor cursor = database.query(
-                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, null, null, null,
+                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN, null, null,
                 null, null, null);
         while (cursor.moveToNext()) {
-            results.add(cursor.getString(1));
+            results.add(cursor.getString(0));
+        }
+        cursor.close();
+        return results;
+    }
+
+    /**
+     * Returns the keys of all stored items without reading their values.
+     */
+    public List<String> getAllKeys() {
+        ArrayList<String> results = new ArrayList<String>();
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+        Cursor cursor = database.query(
+                LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, ID_COLUMN, null, null,
+                null, null, null);
+        while (cursor.moveToNext()) {
+            results.add(cursor.getString(0));
         }
         cursor.close();
         return results;
@@ -48,19 +171,65 @@ public class LocalStorage {
     public String getItem(String key) {
         String value = null;
         if (key != null) {
-            database = localStorageDBHelper.getReadableDatabase();
+            SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
             Cursor cursor = database.query(
-                    LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, null,
-                    LocalStorageDBHelper.LOCALSTORAGE_ID + " = ?",
-                    new String[] { key }, null, null, null);
+                    LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN,
+                    ID_SELECTION, new String[] { key }, null, null, null);
             if (cursor.moveToFirst()) {
-                value = cursor.getString(1);
+                value = cursor.getString(0);
             }
             cursor.close();
         }
         return value;
     }
 
+    /**
+     * Same as {@link #getItem(String)} but returns the raw bytes of the value.
+     */
+    public byte[] getItemBytes(String key) {
+        byte[] value = null;
+        if (key != null) {
+            SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+            Cursor cursor = database.query(
+                    LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN,
+                    ID_SELECTION, new String[] { key }, null, null, null);
+            if (cursor.moveToFirst()) {
+                value = getBytes(cursor, 0);
+            }
+            cursor.close();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values of all given keys that exist, using one
+     * {@code IN (...)} query per {@link #MAX_KEYS_PER_QUERY} keys.
+     *
+     * @return values by key, unknown keys are absent
+     */
+    public Map<String, byte[]> getItemsBytes(List<String> keys) {
+        Map<String, byte[]> results = new HashMap<String, byte[]>(keys.size() * 2);
+        if (keys.isEmpty()) {
+            return results;
+        }
+        SQLiteDatabase database = localStorageDBHelper.getReadableDatabase();
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_QUERY) {
+            List<String> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_QUERY));
+            Cursor cursor = database.query(
+                    LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, ID_VALUE_COLUMNS,
+                    inSelection(chunk.size()), chunk.toArray(new String[chunk.size()]),
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    results.put(cursor.getString(0), getBytes(cursor, 1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return results;
+    }
+
     /**
      * set the value for the given key, or create the set of datas if the key
      * does not exist already.
@@ -70,19 +239,169 @@ public class LocalStorage {
      */
     public void setItem(String key, String value) {
         if (key != null && value != null) {
-            String oldValue = getItem(key);
-            database = localStorageDBHelper.getWritableDatabase();
+            SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
             ContentValues values = new ContentValues();
             values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, key);
             values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, value);
-            if (oldValue != null) {
-                database.update(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
-                        values, LocalStorageDBHelper.LOCALSTORAGE_ID + "='"
-                                + key + "'", null);
-            } else {
-                database.insert(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
-                        null, values);
+            database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                    null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Same as {@link #setItem(String, String)} but stores the value as a blob.
+     */
+    public void setItem(String key, byte[] value) {
+        if (key != null && value != null) {
+            SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, key);
+            values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, value);
+            database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                    null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * set the values for all given keys in a single transaction.
+     *
+     * @param items
+     *            : key/value pairs to write, in iteration order
+     */
+    public void setItems(Map<String, byte[]> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        database.beginTransactionNonExclusive();
+        try {
+            for (Map.Entry<String, byte[]> item : items.entrySet()) {
+                if (item.getKey() == null || item.getValue() == null) {
+                    continue;
+                }
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, item.getKey());
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, item.getValue());
+                database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                        null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces all items with the ones of the source in a single
+     * transaction. Nothing changes if the source fails.
+     *
+     * @return the number of items written
+     */
+    public int replaceAll(ItemSource source) throws IOException {
+        int written = 0;
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        database.beginTransactionNonExclusive();
+        try {
+            database.delete(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, null, null);
+            while (source.next()) {
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, source.key());
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, source.value());
+                database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                        null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                written++;
+            }
+            database.setTransactionSuccessful();
+            return written;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Reads and rewrites an item within one write transaction, so no other
+     * write can land between the read and the write.
+     *
+     * @return whether the item was written
+     */
+    public boolean updateItem(String key, Updater updater) {
+        if (key == null) {
+            return false;
+        }
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            byte[] current = null;
+            Cursor cursor = database.query(
+                    LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN,
+                    ID_SELECTION, new String[] { key }, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    current = getBytes(cursor, 0);
+                }
+            } finally {
+                cursor.close();
+            }
+            byte[] value = updater.update(current);
+            if (value != null) {
+                ContentValues values = new ContentValues();
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, key);
+                values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, value);
+                database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                        null, values, SQLiteDatabase.CONFLICT_REPLACE);
             }
+            database.setTransactionSuccessful();
+            return value != null;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Same as {@link #updateItem(String, Updater)} for several items, all
+     * within one write transaction.
+     *
+     * @return the number of items written
+     */
+    public int updateItems(List<String> keys, Updater updater) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        int written = 0;
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        String[] args = new String[1];
+        database.beginTransactionNonExclusive();
+        try {
+            for (String key : keys) {
+                if (key == null) {
+                    continue;
+                }
+                byte[] current = null;
+                args[0] = key;
+                Cursor cursor = database.query(
+                        LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, VALUE_COLUMN,
+                        ID_SELECTION, args, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        current = getBytes(cursor, 0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                byte[] value = updater.update(current);
+                if (value != null) {
+                    values.put(LocalStorageDBHelper.LOCALSTORAGE_ID, key);
+                    values.put(LocalStorageDBHelper.LOCALSTORAGE_VALUE, value);
+                    database.insertWithOnConflict(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                            null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    written++;
+                }
+            }
+            database.setTransactionSuccessful();
+            return written;
+        } finally {
+            database.endTransaction();
         }
     }
 
@@ -93,18 +412,65 @@ public class LocalStorage {
      */
     public void removeItem(String key) {
         if (key != null) {
-            database = localStorageDBHelper.getWritableDatabase();
+            SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
             database.delete(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
-                    LocalStorageDBHelper.LOCALSTORAGE_ID + "='" + key + "'",
-                    null);
+                    ID_SELECTION, new String[] { key });
+        }
+    }
+
+    /**
+     * removes the items corresponding to the given keys in a single
+     * transaction.
+     *
+     * @param keys
+     */
+    public void removeItems(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
+        String[] args = new String[1];
+        database.beginTransactionNonExclusive();
+        try {
+            for (String key : keys) {
+                if (key == null) {
+                    continue;
+                }
+                args[0] = key;
+                database.delete(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME,
+                        ID_SELECTION, args);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static String inSelection(int count) {
+        StringBuilder selection = new StringBuilder(LocalStorageDBHelper.LOCALSTORAGE_ID)
+            .append(" IN (?");
+        for (int i = 1; i < count; i++) {
+            selection.append(",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    private static byte[] getBytes(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_STRING) {
+            try {
+                return cursor.getString(column).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
         }
+        return cursor.getBlob(column);
     }
 
     /**
      * clears all the local storage.
      */
     public void clear() {
-        database = localStorageDBHelper.getWritableDatabase();
+        SQLiteDatabase database = localStorageDBHelper.getWritableDatabase();
         database.delete(LocalStorageDBHelper.LOCALSTORAGE_TABLE_NAME, null,
                 null);
     }
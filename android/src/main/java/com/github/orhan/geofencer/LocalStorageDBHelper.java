@@ -37,21 +37,27 @@ public class LocalStorageDBHelper extends SQLiteOpenHelper {
 
     private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "geonotifications.db";
-    private static final String DICTIONARY_TABLE_CREATE = "CREATE TABLE "
+    static final String DICTIONARY_TABLE_CREATE = "CREATE TABLE "
             + LOCALSTORAGE_TABLE_NAME + " (" + LOCALSTORAGE_ID
             + " TEXT PRIMARY KEY, " + LOCALSTORAGE_VALUE + " TEXT NOT NULL);";
 
     /**
      * Returns an instance of LocalStorage
      * 
+     * The module thread, the transition service and the boot receiver all
+     * share this instance, and so its single connection for writes. SQLite
+     * serializes writers on that connection, while with write-ahead logging
+     * readers work on their own snapshot and never wait for a writer, even
+     * during a long bulk transaction.
+     * 
      * @param ctx
      *            : a Context used to create the database
      * @return the instance of LocalStorage of the application or a new one if
      *         it has not been created before.
      */
-    public static LocalStorageDBHelper getInstance(Context ctx) {
+    public static synchronized LocalStorageDBHelper getInstance(Context ctx) {
         if (mInstance == null) {
-            mInstance = new LocalStorageDBHelper(ctx);
+            mInstance = new LocalStorageDBHelper(ctx.getApplicationContext());
         }
         return mInstance;
     }
@@ -60,6 +66,11 @@ public class LocalStorageDBHelper extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(DICTIONARY_TABLE_CREATE);
@@ -0,0 +1,73 @@
+package com.github.orhan.geofencer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationManager;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Receives platform location updates for the local geofencing fallback, the
+ * fixes requested to check deferred transitions, and the alarm for when
+ * deferred transitions expire.
+ *
+ * Deferred transitions and local fences are evaluated off the main thread,
+ * in the order the updates arrive, keeping the broadcast alive meanwhile.
+ */
+public class LocationUpdateReceiver extends BroadcastReceiver {
+    private static final ExecutorService jobs = Executors.newSingleThreadExecutor(
+        TransitionReceiver.daemonThreads("GeofencerLocations"));
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (TransitionFilter.ACTION_EXPIRE.equals(intent.getAction())) {
+            onExpire(context.getApplicationContext());
+            return;
+        }
+        final Location location = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+        if (location == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        final boolean recheck = TransitionFilter.ACTION_RECHECK.equals(intent.getAction());
+        Logger.initLogger(appContext);
+        final PendingResult result = goAsync();
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (TransitionFilter.hasDeferred(appContext)) {
+                        TransitionFilter.onLocation(appContext, location);
+                    }
+                    if (!recheck) {
+                        LocalGeofencing.onLocation(appContext, location);
+                    }
+                } catch (RuntimeException e) {
+                    Logger.getLogger().log("Evaluating location update failed", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private void onExpire(final Context appContext) {
+        Logger.initLogger(appContext);
+        final PendingResult result = goAsync();
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TransitionFilter.onExpired(appContext);
+                } catch (RuntimeException e) {
+                    Logger.getLogger().log("Expiring deferred transitions failed", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+}
@@ -4,23 +4,80 @@ import android.content.Context;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Logger {
+    /**
+     * Builds a log message only when its level is enabled.
+     */
+    public interface Message {
+        String get();
+    }
+
+    public static class Entry {
+        public final long time;
+        public final int priority;
+        public final String message;
+
+        Entry(long time, int priority, String message) {
+            this.time = time;
+            this.priority = priority;
+            this.message = message;
+        }
+    }
+
+    public static final int DEFAULT_MIN_LEVEL = Log.INFO;
+    private static final int RECENT_ENTRIES_CAPACITY = 256;
+
     protected String TAG;
     protected Context context;
-    protected boolean isToastEnabled;
+    protected final boolean isToastEnabled;
+    private volatile int minLevel = DEFAULT_MIN_LEVEL;
+
+    private final long[] recentTimes = new long[RECENT_ENTRIES_CAPACITY];
+    private final int[] recentPriorities = new int[RECENT_ENTRIES_CAPACITY];
+    private final String[] recentMessages = new String[RECENT_ENTRIES_CAPACITY];
+    private int recentNext = 0;
+    private int recentSize = 0;
 
     public Logger(String TAG, Context context, boolean isToastEnabled) {
         this.TAG = TAG;
         this.context = context;
-        this.isToastEnabled = isToastEnabled;
+        this.isToastEnabled = isToastEnabled && context != null;
+    }
+
+    public void setMinLevel(int minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    public boolean isLoggable(int priority) {
+        return priority >= minLevel;
     }
 
     public void log(int priority, String message) {
-        Log.println(priority, TAG, message);
-        showOnToastIfEnabled(message);
+        if (priority < minLevel) {
+            return;
+        }
+        write(priority, message);
+    }
+
+    public void log(int priority, Message message) {
+        if (priority < minLevel) {
+            return;
+        }
+        write(priority, message.get());
     }
 
     public void log(String message, Throwable exception) {
+        if (Log.ERROR < minLevel) {
+            return;
+        }
+        remember(Log.ERROR, message + ": " + exception);
         Log.e(TAG, message, exception);
         showOnToastIfEnabled(message);
     }
@@ -31,11 +88,76 @@ public class Logger {
         }
     }
 
-    private static Logger logger = null;
+    /**
+     * Returns the most recent logged entries, oldest first.
+     */
+    public synchronized List<Entry> getRecentEntries() {
+        List<Entry> entries = new ArrayList<Entry>(recentSize);
+        int first = (recentNext - recentSize + RECENT_ENTRIES_CAPACITY) % RECENT_ENTRIES_CAPACITY;
+        for (int i = 0; i < recentSize; i++) {
+            int index = (first + i) % RECENT_ENTRIES_CAPACITY;
+            entries.add(new Entry(recentTimes[index], recentPriorities[index], recentMessages[index]));
+        }
+        return entries;
+    }
+
+    public synchronized void clearRecentEntries() {
+        for (int i = 0; i < RECENT_ENTRIES_CAPACITY; i++) {
+            recentMessages[i] = null;
+        }
+        recentNext = 0;
+        recentSize = 0;
+    }
+
+    private void write(int priority, String message) {
+        remember(priority, message);
+        Log.println(priority, TAG, message);
+        showOnToastIfEnabled(message);
+    }
+
+    private synchronized void remember(int priority, String message) {
+        recentTimes[recentNext] = System.currentTimeMillis();
+        recentPriorities[recentNext] = priority;
+        recentMessages[recentNext] = message;
+        recentNext = (recentNext + 1) % RECENT_ENTRIES_CAPACITY;
+        if (recentSize < RECENT_ENTRIES_CAPACITY) {
+            recentSize++;
+        }
+    }
+
+    private static volatile Logger logger = null;
     private static Object mutex = new Object();
 
+    /**
+     * Returns the shared logger, creating a context-less one if the plugin
+     * was not initialized yet.
+     */
     public static Logger getLogger() {
-        return logger;
+        Logger current = logger;
+        if (current != null) {
+            return current;
+        }
+        synchronized (mutex) {
+            if (logger == null) {
+                logger = new Logger(GeofencerModule.TAG, null, false);
+            }
+            return logger;
+        }
+    }
+
+    /**
+     * Creates the shared logger once per process. Later calls keep the
+     * existing instance together with its level and recent entries.
+     */
+    public static Logger initLogger(Context context) {
+        synchronized (mutex) {
+            if (logger == null) {
+                logger = new Logger(GeofencerModule.TAG, context, false);
+            } else if (logger.context == null) {
+                logger.context = context;
+            }
+            return logger;
+        }
     }
 
     public static void setLogger(Logger logger) {
@@ -0,0 +1,224 @@
+package com.github.orhan.geofencer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters and latency histograms for the plugin.
+ *
+ * Timers are recorded into fixed power-of-two microsecond buckets held in
+ * preallocated atomic arrays, so recording never allocates and costs a few
+ * atomic adds. Metric ids are plain int constants for the same reason.
+ */
+public final class Metrics {
+    public interface Listener {
+        /**
+         * Called on the recording thread for every timer sample. Keep it cheap.
+         */
+        void onTimerRecorded(int timer, long nanos);
+
+        void onCounterIncremented(int counter, long delta);
+    }
+
+    public static final int PLAY_SERVICES_CONNECT = 0;
+    public static final int COMMAND_QUEUE_WAIT = 1;
+    public static final int COMMAND_EXECUTION = 2;
+    public static final int STORE_READ = 3;
+    public static final int STORE_WRITE = 4;
+    public static final int TRANSITION_TO_EMIT = 5;
+    public static final int NOTIFICATION_BUILD = 6;
+    public static final int MODULE_THREAD_BLOCKED = 7;
+    public static final int MODULE_TASK_WAIT = 8;
+    public static final int MODULE_TASK = 9;
+    public static final int TRANSITION_TO_NOTIFY = 10;
+    public static final int SNAPSHOT_EXPORT = 11;
+    public static final int SNAPSHOT_RESTORE = 12;
+    public static final int FENCE_TABLE_LOAD = 13;
+
+    private static final String[] TIMER_NAMES = {
+        "playServicesConnect",
+        "commandQueueWait",
+        "commandExecution",
+        "storeRead",
+        "storeWrite",
+        "transitionToEmit",
+        "notificationBuild",
+        "moduleThreadBlocked",
+        "moduleTaskWait",
+        "moduleTask",
+        "transitionToNotify",
+        "snapshotExport",
+        "snapshotRestore",
+        "fenceTableLoad"
+    };
+
+    public static final int CONNECTION_FAILURES = 0;
+    public static final int TRANSITIONS_RECEIVED = 1;
+    public static final int TRANSITIONS_EMITTED = 2;
+    public static final int EMIT_FAILURES = 3;
+    public static final int POLYGON_TRANSITIONS_SUPPRESSED = 4;
+    public static final int CLUSTER_TRANSITIONS = 5;
+    public static final int MERGED_MODULE_CALLS = 6;
+    public static final int CANCELLED_READS = 7;
+    public static final int TRANSITION_BUDGET_EXCEEDED = 8;
+    public static final int TRANSITION_TASKS_TIMED_OUT = 9;
+    public static final int REGISTRATION_RETRIES = 10;
+    public static final int REGISTRATION_BISECTIONS = 11;
+    public static final int REGISTRATION_FAILURES = 12;
+    public static final int TRANSITIONS_FILTERED = 13;
+    public static final int TRANSITIONS_DEFERRED = 14;
+    public static final int DEFERRED_TRANSITIONS_CONFIRMED = 15;
+    public static final int DEFERRED_TRANSITIONS_DROPPED = 16;
+
+    private static final String[] COUNTER_NAMES = {
+        "connectionFailures",
+        "transitionsReceived",
+        "transitionsEmitted",
+        "emitFailures",
+        "polygonTransitionsSuppressed",
+        "clusterTransitions",
+        "mergedModuleCalls",
+        "cancelledReads",
+        "transitionBudgetExceeded",
+        "transitionTasksTimedOut",
+        "registrationRetries",
+        "registrationBisections",
+        "registrationFailures",
+        "transitionsFiltered",
+        "transitionsDeferred",
+        "deferredTransitionsConfirmed",
+        "deferredTransitionsDropped"
+    };
+
+    /**
+     * Bucket i holds samples below 2^i microseconds, the last one is open ended.
+     */
+    private static final int BUCKETS = 32;
+
+    private static final AtomicLongArray histograms = new AtomicLongArray(TIMER_NAMES.length * BUCKETS);
+    private static final AtomicLongArray totals = new AtomicLongArray(TIMER_NAMES.length);
+    private static final AtomicLongArray maxima = new AtomicLongArray(TIMER_NAMES.length);
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private static volatile Listener listener;
+
+    private Metrics() {
+    }
+
+    public static void setListener(Listener listener) {
+        Metrics.listener = listener;
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link #now()}.
+     */
+    public static void recordSince(int timer, long startNanos) {
+        record(timer, System.nanoTime() - startNanos);
+    }
+
+    public static void record(int timer, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        histograms.incrementAndGet(timer * BUCKETS + bucketOf(nanos));
+        totals.addAndGet(timer, nanos);
+        long max = maxima.get(timer);
+        while (nanos > max && !maxima.compareAndSet(timer, max, nanos)) {
+            max = maxima.get(timer);
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.onTimerRecorded(timer, nanos);
+        }
+    }
+
+    public static void increment(int counter) {
+        add(counter, 1);
+    }
+
+    public static void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+        Listener current = listener;
+        if (current != null) {
+            current.onCounterIncremented(counter, delta);
+        }
+    }
+
+    public static int timerCount() {
+        return TIMER_NAMES.length;
+    }
+
+    public static String timerName(int timer) {
+        return TIMER_NAMES[timer];
+    }
+
+    public static int counterCount() {
+        return COUNTER_NAMES.length;
+    }
+
+    public static String counterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    public static long getCounter(int counter) {
+        return counters.get(counter);
+    }
+
+    public static long getCount(int timer) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histograms.get(timer * BUCKETS + i);
+        }
+        return count;
+    }
+
+    public static long getTotalNanos(int timer) {
+        return totals.get(timer);
+    }
+
+    public static long getMaxNanos(int timer) {
+        return maxima.get(timer);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile
+     * (0 to 1), or 0 if nothing was recorded.
+     */
+    public static long getPercentileNanos(int timer, double percentile) {
+        long count = getCount(timer);
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histograms.get(timer * BUCKETS + i);
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? getMaxNanos(timer) : Math.min((1L << i) * 1000L, getMaxNanos(timer));
+            }
+        }
+        return getMaxNanos(timer);
+    }
+
+    public static void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+        for (int i = 0; i < TIMER_NAMES.length; i++) {
+            totals.set(i, 0);
+            maxima.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+}
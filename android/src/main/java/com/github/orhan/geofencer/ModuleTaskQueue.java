@@ -0,0 +1,306 @@
+package com.github.orhan.geofencer;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.Promise;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serial background executor for the storage and registration work of
+ * {@link GeofencerModule}, so the React native-modules thread only hands off
+ * its arguments.
+ *
+ * Bulk calls of the same kind that arrive while the previous one has not
+ * started yet are merged into it and answered together. Any other task
+ * closes the open batch, so calls still run in the order they were made.
+ * Reads and long writes carry a request id and can be cancelled until they
+ * finish.
+ */
+public class ModuleTaskQueue {
+    public static final String E_CANCELLED = "E_CANCELLED";
+    public static final String E_FAILED = "E_FAILED";
+    public static final String E_INVALID_ARGUMENT = "E_INVALID_ARGUMENT";
+
+    /**
+     * Answers one JS call, either through its callbacks or its promise.
+     */
+    public static abstract class Reply {
+        public abstract void resolve(Object value);
+
+        public abstract void reject(String code, String message);
+
+        public static Reply of(final Callback success, final Callback error) {
+            return new Reply() {
+                @Override
+                public void resolve(Object value) {
+                    if (value == null) {
+                        success.invoke();
+                    } else {
+                        success.invoke(value);
+                    }
+                }
+
+                @Override
+                public void reject(String code, String message) {
+                    error.invoke(message);
+                }
+            };
+        }
+
+        public static Reply of(final Promise promise) {
+            return new Reply() {
+                @Override
+                public void resolve(Object value) {
+                    promise.resolve(value);
+                }
+
+                @Override
+                public void reject(String code, String message) {
+                    promise.reject(code, message);
+                }
+            };
+        }
+    }
+
+    /**
+     * Work over the items of all merged calls. {@code done} must be invoked
+     * exactly once, with the result as its only argument if there is one.
+     */
+    public static abstract class BatchTask<T> {
+        public abstract void run(List<T> items, Callback done) throws Exception;
+
+        /**
+         * Converts the result for one caller. Values handed to JS can only be
+         * sent once, so merged batches need a fresh copy per caller.
+         */
+        protected Object toReply(Object result) {
+            return result;
+        }
+    }
+
+    public interface CancellableTask {
+        /**
+         * @param cancellation
+         *            checked between steps, throw {@link Cancelled} or return
+         *            early when set
+         */
+        Object run(Cancellation cancellation) throws Exception;
+    }
+
+    public interface Cancellation {
+        /**
+         * @throws Cancelled
+         *             if the task was cancelled
+         */
+        void check() throws Cancelled;
+    }
+
+    public static class Cancelled extends Exception {
+        public Cancelled() {
+            super("Cancelled");
+        }
+    }
+
+    private static class Batch<T> {
+        final String kind;
+        final List<T> items = new ArrayList<T>();
+        final List<Reply> replies = new ArrayList<Reply>();
+
+        Batch(String kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Logger logger;
+    private Batch<?> openBatch;
+    private final Set<String> pendingTasks = new HashSet<String>();
+    private final Set<String> cancelledTasks = new HashSet<String>();
+
+    public ModuleTaskQueue() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GeofencerModule");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger = Logger.getLogger();
+    }
+
+    /**
+     * Queues a bulk call, merging it into the previous one if that is of the
+     * same kind and has not started yet.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void submitBatch(String kind, List<T> items, Reply reply, final BatchTask<T> task) {
+        final Batch<T> batch;
+        synchronized (this) {
+            if (openBatch != null && openBatch.kind.equals(kind)) {
+                Batch<T> open = (Batch<T>) openBatch;
+                open.items.addAll(items);
+                open.replies.add(reply);
+                Metrics.increment(Metrics.MERGED_MODULE_CALLS);
+                return;
+            }
+            batch = new Batch<T>(kind);
+            batch.items.addAll(items);
+            batch.replies.add(reply);
+            openBatch = batch;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ModuleTaskQueue.this) {
+                    if (openBatch == batch) {
+                        openBatch = null;
+                    }
+                }
+                if (batch.replies.size() > 1) {
+                    logger.log(Log.DEBUG, "Merged " + batch.replies.size() + " " + batch.kind + " calls");
+                }
+                try {
+                    task.run(batch.items, new Callback() {
+                        @Override
+                        public void invoke(Object... args) {
+                            Object result = args.length > 0 ? args[0] : null;
+                            for (Reply reply : batch.replies) {
+                                reply.resolve(result == null ? null : task.toReply(result));
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    logger.log(batch.kind + " failed", e);
+                    for (Reply reply : batch.replies) {
+                        reply.reject(E_FAILED, e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a task that is never merged.
+     */
+    public void submit(Runnable task) {
+        synchronized (this) {
+            openBatch = null;
+        }
+        execute(task);
+    }
+
+    /**
+     * Queues a read that can be cancelled through {@link #cancel(String)}
+     * while it waits or runs.
+     *
+     * @param requestId
+     *            caller chosen id, null if the read will not be cancelled
+     */
+    public void submitRead(String requestId, Reply reply, CancellableTask task) {
+        submitCancellable(requestId, reply, task, false);
+    }
+
+    /**
+     * Queues a write that can be cancelled through {@link #cancel(String)}
+     * while it waits or runs. Unlike a read, a write that finished resolves
+     * even if it was cancelled meanwhile, since its changes are made.
+     *
+     * @param requestId
+     *            caller chosen id, null if the write will not be cancelled
+     */
+    public void submitWrite(String requestId, Reply reply, CancellableTask task) {
+        submitCancellable(requestId, reply, task, true);
+    }
+
+    private void submitCancellable(final String requestId, final Reply reply, final CancellableTask task,
+                                   final boolean write) {
+        synchronized (this) {
+            openBatch = null;
+            if (requestId != null) {
+                pendingTasks.add(requestId);
+            }
+        }
+        final Cancellation cancellation = new Cancellation() {
+            @Override
+            public void check() throws Cancelled {
+                if (requestId != null && isCancelled(requestId)) {
+                    throw new Cancelled();
+                }
+            }
+        };
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cancellation.check();
+                    Object result = task.run(cancellation);
+                    if (!write) {
+                        cancellation.check();
+                    }
+                    reply.resolve(result);
+                } catch (Cancelled e) {
+                    if (write) {
+                        reply.reject(E_CANCELLED, "Write " + requestId + " was cancelled");
+                    } else {
+                        Metrics.increment(Metrics.CANCELLED_READS);
+                        reply.reject(E_CANCELLED, "Read " + requestId + " was cancelled");
+                    }
+                } catch (Exception e) {
+                    if (write) {
+                        logger.log("Write " + requestId + " failed", e);
+                    }
+                    reply.reject(E_FAILED, e.getMessage());
+                } finally {
+                    if (requestId != null) {
+                        synchronized (ModuleTaskQueue.this) {
+                            pendingTasks.remove(requestId);
+                            cancelledTasks.remove(requestId);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether a read or write with that id was still waiting or running
+     */
+    public synchronized boolean cancel(String requestId) {
+        if (!pendingTasks.contains(requestId)) {
+            return false;
+        }
+        cancelledTasks.add(requestId);
+        return true;
+    }
+
+    private synchronized boolean isCancelled(String requestId) {
+        return cancelledTasks.contains(requestId);
+    }
+
+    private void execute(final Runnable task) {
+        final long queuedAt = Metrics.now();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.now();
+                Metrics.record(Metrics.MODULE_TASK_WAIT, start - queuedAt);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log("Module task failed", e);
+                } finally {
+                    Metrics.recordSince(Metrics.MODULE_TASK, start);
+                }
+            }
+        });
+    }
+}
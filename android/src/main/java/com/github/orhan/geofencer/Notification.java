@@ -6,6 +6,8 @@ import android.net.Uri;
 
 import com.google.gson.annotations.Expose;
 
+import java.util.Arrays;
+
 public class Notification {
     private Context context;
     private AssetUtil assets;
@@ -16,7 +18,7 @@ public class Notification {
     @Expose public long[] vibrate = new long[] { 1000 };
     @Expose public String icon = "";
     @Expose public String smallIcon = "";
-    @Expose public Object data;
+    @Expose public RawJson data;
     @Expose public boolean openAppOnClick;
 
     public void setContext(Context context) {
@@ -60,13 +62,36 @@ public class Notification {
             return "";
         }
 
-        return Gson.get().toJson(this.data);
+        return this.data.toString();
+    }
+
+    public void setDataJson(String json) {
+        this.data = json == null ? null : new RawJson(json);
     }
 
     public long[] getVibrate() {
         return concat(new long[] {0}, vibrate);
     }
 
+    /**
+     * Whether both notifications would be shown the same way.
+     */
+    public boolean hasSameContent(Notification other) {
+        return other != null
+            && id == other.id
+            && openAppOnClick == other.openAppOnClick
+            && equal(title, other.title)
+            && equal(text, other.text)
+            && equal(icon, other.icon)
+            && equal(smallIcon, other.smallIcon)
+            && equal(data, other.data)
+            && Arrays.equals(vibrate, other.vibrate);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     public String toString() {
         return "Notification title: " + getTitle() + " text: " + getText();
     }
@@ -0,0 +1,332 @@
+package com.github.orhan.geofencer;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the parts of a notification that stay the same between firings
+ * when its fence is added, so that showing it only builds and posts it.
+ *
+ * Resolved parts are cached by icon name, as many fences usually share the
+ * same icons: the small icon as its resource id, the large icon as a PNG
+ * downsampled to the large icon size, and the launch activity of the app.
+ * Icon names that resolve to no large icon get an empty marker file, so
+ * showing their notifications does not look them up again. The cache is
+ * persisted, so a transition waking up the process finds it too, and
+ * dropped when the app is updated because resource ids change.
+ */
+class NotificationTemplates {
+    private static final String PREFERENCES = "com.github.orhan.geofencer.templates";
+    private static final String KEY_APP_VERSION = "appVersion";
+    private static final String KEY_LAUNCH_COMPONENT = "launchComponent";
+    private static final String SMALL_ICON_PREFIX = "smallIcon:";
+    private static final String ICON_FOLDER = "geofence_notifications/templates";
+
+    private static NotificationTemplates instance;
+
+    /**
+     * What a notification needs at fire time besides its text.
+     */
+    static class Template {
+        int smallIcon;
+        Bitmap largeIcon;
+        long[] vibrate;
+        /**
+         * Null unless the notification opens the app on click.
+         */
+        Intent contentIntent;
+    }
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final File iconFolder;
+    private final Logger logger;
+    private final Map<String, Integer> smallIcons = new HashMap<String, Integer>();
+    private final Set<String> writtenIcons = new HashSet<String>();
+    private final Set<String> missingIcons = new HashSet<String>();
+    private ComponentName launchComponent;
+
+    private NotificationTemplates(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.iconFolder = new File(context.getFilesDir(), ICON_FOLDER);
+        this.logger = Logger.getLogger();
+        load();
+    }
+
+    static synchronized NotificationTemplates getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationTemplates(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Resolves and caches everything the notification will need, called
+     * when its fence is stored.
+     */
+    void prepare(Notification notification) {
+        getSmallIcon(notification.smallIcon);
+        String name = notification.icon == null ? "" : notification.icon;
+        synchronized (this) {
+            if (!writtenIcons.add(name)) {
+                name = null;
+            }
+        }
+        if (name != null) {
+            File icon = getIconFile(name);
+            if (!icon.exists() && !getMissingMarker(name).exists()) {
+                writeIcon(name, icon);
+            }
+        }
+        if (notification.openAppOnClick) {
+            getLaunchComponent();
+        }
+    }
+
+    /**
+     * Returns the template of the notification, resolving anything that was
+     * not prepared.
+     */
+    Template get(Notification notification) {
+        Template template = new Template();
+        template.smallIcon = getSmallIcon(notification.smallIcon);
+        template.largeIcon = getLargeIcon(notification.icon);
+        template.vibrate = notification.getVibrate();
+
+        if (notification.openAppOnClick) {
+            ComponentName component = getLaunchComponent();
+            if (component != null) {
+                Intent intent = new Intent(Intent.ACTION_MAIN)
+                    .addCategory(Intent.CATEGORY_LAUNCHER)
+                    .setComponent(component)
+                    // What TaskStackBuilder sets on the root of a new stack
+                    .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                        | Intent.FLAG_ACTIVITY_CLEAR_TASK
+                        | Intent.FLAG_ACTIVITY_TASK_ON_HOME);
+                if (notification.data != null) {
+                    intent.putExtra("geofence.notification.data", notification.getDataJson());
+                }
+                template.contentIntent = intent;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Drops all cached icons, e.g. once no fence is left.
+     */
+    synchronized void clear() {
+        smallIcons.clear();
+        writtenIcons.clear();
+        missingIcons.clear();
+        launchComponent = null;
+        preferences.edit().clear().putString(KEY_APP_VERSION, getAppVersion()).apply();
+        deleteIcons();
+    }
+
+    private synchronized void load() {
+        String appVersion = getAppVersion();
+        if (!appVersion.equals(preferences.getString(KEY_APP_VERSION, null))) {
+            preferences.edit().clear().putString(KEY_APP_VERSION, appVersion).apply();
+            deleteIcons();
+            return;
+        }
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(SMALL_ICON_PREFIX) && entry.getValue() instanceof Integer) {
+                smallIcons.put(entry.getKey().substring(SMALL_ICON_PREFIX.length()), (Integer) entry.getValue());
+            }
+        }
+        String launch = preferences.getString(KEY_LAUNCH_COMPONENT, null);
+        launchComponent = launch == null ? null : ComponentName.unflattenFromString(launch);
+    }
+
+    /**
+     * Identifies the installed APK without asking the package manager. An
+     * update installs the APK at a new path or at least with a new
+     * modification time.
+     */
+    private String getAppVersion() {
+        ApplicationInfo info = context.getApplicationInfo();
+        return info.sourceDir + ":" + new File(info.sourceDir).lastModified();
+    }
+
+    private int getSmallIcon(String name) {
+        String key = name == null ? "" : name;
+        synchronized (this) {
+            Integer cached = smallIcons.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        int resId = AssetUtil.getInstance(context).getResIdForDrawable(key);
+        if (resId == 0) {
+            resId = android.R.drawable.ic_menu_mylocation;
+        }
+
+        synchronized (this) {
+            smallIcons.put(key, resId);
+            preferences.edit().putInt(SMALL_ICON_PREFIX + key, resId).apply();
+        }
+        return resId;
+    }
+
+    private Bitmap getLargeIcon(String name) {
+        String key = name == null ? "" : name;
+        synchronized (this) {
+            if (missingIcons.contains(key)) {
+                return null;
+            }
+        }
+        // Most notifications have no large icon, so this is checked first
+        if (getMissingMarker(key).exists()) {
+            synchronized (this) {
+                missingIcons.add(key);
+            }
+            return null;
+        }
+        File icon = getIconFile(key);
+        Bitmap bitmap = icon.exists() ? BitmapFactory.decodeFile(icon.getPath()) : null;
+        if (bitmap == null) {
+            bitmap = writeIcon(key, icon);
+        }
+        return bitmap;
+    }
+
+    private synchronized ComponentName getLaunchComponent() {
+        if (launchComponent == null) {
+            Intent launchIntent = context.getPackageManager()
+                .getLaunchIntentForPackage(context.getPackageName());
+            if (launchIntent == null || launchIntent.getComponent() == null) {
+                return null;
+            }
+            launchComponent = launchIntent.getComponent();
+            preferences.edit().putString(KEY_LAUNCH_COMPONENT, launchComponent.flattenToString()).apply();
+        }
+        return launchComponent;
+    }
+
+    /**
+     * Decodes the icon like {@link Notification#getLargeIcon()} and stores
+     * it downsampled to the large icon size, or marks it missing.
+     *
+     * @return the downsampled icon, or null if there is none
+     */
+    private Bitmap writeIcon(String name, File file) {
+        String key = name == null ? "" : name;
+        Notification notification = new Notification();
+        notification.icon = key;
+        notification.setContext(context);
+        Bitmap bitmap = notification.getLargeIcon();
+        if (bitmap == null) {
+            markMissing(key);
+            return null;
+        }
+
+        Resources resources = context.getResources();
+        int width = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        int height = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        if (bitmap.getWidth() > width || bitmap.getHeight() > height) {
+            float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+
+        // Written aside and renamed, so a concurrent reader never sees half a file
+        File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            iconFolder.mkdirs();
+            out = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            logger.log("Caching notification icon failed", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    private void markMissing(String name) {
+        synchronized (this) {
+            missingIcons.add(name);
+        }
+        try {
+            iconFolder.mkdirs();
+            getMissingMarker(name).createNewFile();
+        } catch (IOException e) {
+            logger.log("Marking notification icon missing failed", e);
+        }
+    }
+
+    private File getIconFile(String name) {
+        return new File(iconFolder, sha1(name == null ? "" : name) + ".png");
+    }
+
+    private File getMissingMarker(String name) {
+        return new File(iconFolder, sha1(name == null ? "" : name) + ".none");
+    }
+
+    private void deleteIcons() {
+        File[] files = iconFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.log(Log.WARN, "Could not delete cached icon " + file);
+            }
+        }
+    }
+
+    private static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming replacement for the reflective adapter of {@link Notification}.
+ * Output matches the reflective one: fields in declaration order and null
+ * fields omitted.
+ */
+public class NotificationTypeAdapter extends TypeAdapter<Notification> {
+    public static final TypeAdapterFactory FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(com.google.gson.Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Notification.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new NotificationTypeAdapter(gson.getAdapter(JsonElement.class));
+        }
+    };
+
+    private final TypeAdapter<JsonElement> dataAdapter;
+
+    NotificationTypeAdapter(TypeAdapter<JsonElement> dataAdapter) {
+        this.dataAdapter = dataAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Notification value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(value.id);
+        out.name("title").value(value.title);
+        out.name("text").value(value.text);
+        out.name("vibrate");
+        writeLongArray(out, value.vibrate);
+        out.name("icon").value(value.icon);
+        out.name("smallIcon").value(value.smallIcon);
+        out.name("data");
+        writeRawJson(out, value.data);
+        out.name("openAppOnClick").value(value.openAppOnClick);
+        out.endObject();
+    }
+
+    @Override
+    public Notification read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Notification notification = new Notification();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            boolean isNull = in.peek() == JsonToken.NULL;
+            if (name.equals("id")) {
+                if (isNull) in.nextNull(); else notification.id = in.nextInt();
+            } else if (name.equals("title")) {
+                notification.title = GeoNotificationTypeAdapter.readString(in);
+            } else if (name.equals("text")) {
+                notification.text = GeoNotificationTypeAdapter.readString(in);
+            } else if (name.equals("vibrate")) {
+                notification.vibrate = readLongArray(in);
+            } else if (name.equals("icon")) {
+                notification.icon = GeoNotificationTypeAdapter.readString(in);
+            } else if (name.equals("smallIcon")) {
+                notification.smallIcon = GeoNotificationTypeAdapter.readString(in);
+            } else if (name.equals("data")) {
+                notification.data = readRawJson(in);
+            } else if (name.equals("openAppOnClick")) {
+                if (isNull) in.nextNull(); else notification.openAppOnClick = in.nextBoolean();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return notification;
+    }
+
+    /**
+     * Captures a JSON value as raw text. This is only reached when a fence
+     * comes from JS or from a legacy JSON row, stored records keep the text.
+     */
+    private RawJson readRawJson(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return new RawJson(dataAdapter.read(in).toString());
+    }
+
+    /**
+     * Streaming writers take the text as is. Others, like the tree writer of
+     * {@code toJsonTree}, do not support raw values, so the text is copied
+     * into them token by token.
+     */
+    private static void writeRawJson(JsonWriter out, RawJson value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (out.getClass() == JsonWriter.class) {
+            out.jsonValue(value.toString());
+        } else {
+            JsonReader in = new JsonReader(new StringReader(value.toString()));
+            copy(in, out);
+            in.close();
+        }
+    }
+
+    private static void copy(JsonReader in, JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case NUMBER:
+                    out.value(new LazilyParsedNumber(in.nextString()));
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                default:
+                    throw new IOException("unexpected end of raw JSON");
+            }
+        } while (depth > 0);
+    }
+
+    private static void writeLongArray(JsonWriter out, long[] values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (long value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    private static long[] readLongArray(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<Long> values = new ArrayList<Long>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(in.nextLong());
+        }
+        in.endArray();
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
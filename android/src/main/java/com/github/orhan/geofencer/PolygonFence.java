@@ -0,0 +1,147 @@
+package com.github.orhan.geofencer;
+
+import java.util.Random;
+
+/**
+ * Point-in-polygon test for polygon geofences, with the bounding box and
+ * per-edge slopes computed once so a containment check is a box test and a
+ * single pass of multiply-adds over the edges.
+ *
+ * Vertices are a flat array of latitude/longitude pairs. Polygons crossing
+ * the antimeridian are not supported.
+ */
+public class PolygonFence {
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    private final double minLat;
+    private final double maxLat;
+    private final double minLng;
+    private final double maxLng;
+    private final double[] edgeLat1;
+    private final double[] edgeLat2;
+    private final double[] edgeLng1;
+    private final double[] edgeSlope;
+
+    public PolygonFence(double[] vertices) {
+        int count = vertices.length / 2;
+        if (count < 3) {
+            throw new IllegalArgumentException("A polygon needs at least 3 vertices");
+        }
+        edgeLat1 = new double[count];
+        edgeLat2 = new double[count];
+        edgeLng1 = new double[count];
+        edgeSlope = new double[count];
+
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double lat1 = vertices[2 * i], lng1 = vertices[2 * i + 1];
+            int next = (i + 1) % count;
+            double lat2 = vertices[2 * next], lng2 = vertices[2 * next + 1];
+            edgeLat1[i] = lat1;
+            edgeLat2[i] = lat2;
+            edgeLng1[i] = lng1;
+            edgeSlope[i] = lat2 == lat1 ? 0 : (lng2 - lng1) / (lat2 - lat1);
+
+            minLat = Math.min(minLat, lat1);
+            maxLat = Math.max(maxLat, lat1);
+            minLng = Math.min(minLng, lng1);
+            maxLng = Math.max(maxLng, lng1);
+        }
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLng = minLng;
+        this.maxLng = maxLng;
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        if (latitude < minLat || latitude > maxLat || longitude < minLng || longitude > maxLng) {
+            return false;
+        }
+        boolean inside = false;
+        for (int i = 0; i < edgeLat1.length; i++) {
+            if ((edgeLat1[i] > latitude) != (edgeLat2[i] > latitude)
+                    && longitude < edgeLng1[i] + (latitude - edgeLat1[i]) * edgeSlope[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Computes the minimal circle enclosing all vertices, using Welzl's
+     * algorithm on a local equirectangular projection.
+     *
+     * @return latitude, longitude and radius in meters of the circle
+     */
+    public static double[] enclosingCircle(double[] vertices) {
+        int count = vertices.length / 2;
+        double originLat = 0, originLng = 0;
+        for (int i = 0; i < count; i++) {
+            originLat += vertices[2 * i];
+            originLng += vertices[2 * i + 1];
+        }
+        originLat /= count;
+        originLng /= count;
+        double lngScale = Math.cos(Math.toRadians(originLat)) * METERS_PER_DEGREE;
+
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = (vertices[2 * i + 1] - originLng) * lngScale;
+            y[i] = (vertices[2 * i] - originLat) * METERS_PER_DEGREE;
+        }
+        // Welzl's algorithm runs in expected linear time on shuffled input
+        Random random = new Random(count);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double tx = x[i]; x[i] = x[j]; x[j] = tx;
+            double ty = y[i]; y[i] = y[j]; y[j] = ty;
+        }
+
+        double cx = x[0], cy = y[0], r = 0;
+        for (int i = 1; i < count; i++) {
+            if (!inCircle(cx, cy, r, x[i], y[i])) {
+                cx = x[i]; cy = y[i]; r = 0;
+                for (int j = 0; j < i; j++) {
+                    if (!inCircle(cx, cy, r, x[j], y[j])) {
+                        cx = (x[i] + x[j]) / 2;
+                        cy = (y[i] + y[j]) / 2;
+                        r = Math.hypot(x[i] - cx, y[i] - cy);
+                        for (int k = 0; k < j; k++) {
+                            if (!inCircle(cx, cy, r, x[k], y[k])) {
+                                double[] circle = circumcircle(x[i], y[i], x[j], y[j], x[k], y[k]);
+                                cx = circle[0]; cy = circle[1]; r = circle[2];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return new double[] {
+            originLat + cy / METERS_PER_DEGREE,
+            originLng + cx / lngScale,
+            r
+        };
+    }
+
+    private static boolean inCircle(double cx, double cy, double r, double x, double y) {
+        return Math.hypot(x - cx, y - cy) <= r * (1 + 1e-9) + 1e-6;
+    }
+
+    private static double[] circumcircle(double ax, double ay, double bx, double by, double cx, double cy) {
+        double d = 2 * (ax * (by - cy) + bx * (cy - ay) + cx * (ay - by));
+        if (d == 0) {
+            // Collinear points, the farthest pair spans the circle
+            double ab = Math.hypot(ax - bx, ay - by), ac = Math.hypot(ax - cx, ay - cy), bc = Math.hypot(bx - cx, by - cy);
+            if (ab >= ac && ab >= bc) return new double[] { (ax + bx) / 2, (ay + by) / 2, ab / 2 };
+            if (ac >= bc) return new double[] { (ax + cx) / 2, (ay + cy) / 2, ac / 2 };
+            return new double[] { (bx + cx) / 2, (by + cy) / 2, bc / 2 };
+        }
+        double a2 = ax * ax + ay * ay, b2 = bx * bx + by * by, c2 = cx * cx + cy * cy;
+        double ux = (a2 * (by - cy) + b2 * (cy - ay) + c2 * (ay - by)) / d;
+        double uy = (a2 * (cx - bx) + b2 * (ax - cx) + c2 * (bx - ax)) / d;
+        return new double[] { ux, uy, Math.hypot(ax - ux, ay - uy) };
+    }
+}
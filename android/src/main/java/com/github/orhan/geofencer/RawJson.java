@@ -0,0 +1,32 @@
+package com.github.orhan.geofencer;
+
+/**
+ * An opaque, already serialized JSON value. It is stored, copied into
+ * intents, written into JSON output and passed to JS as is, native code
+ * never parses it.
+ */
+public final class RawJson {
+    private final String json;
+
+    public RawJson(String json) {
+        if (json == null) {
+            throw new NullPointerException("json");
+        }
+        this.json = json;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RawJson && json.equals(((RawJson) other).json);
+    }
+
+    @Override
+    public int hashCode() {
+        return json.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
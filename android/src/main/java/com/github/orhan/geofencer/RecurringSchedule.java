@@ -0,0 +1,527 @@
+package com.github.orhan.geofencer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Weekly opening hours of a fence in a time zone, closed on exception
+ * dates, compiled when the fence is added so that checks at fire time and
+ * the next boundary for registration take constant time and allocate
+ * nothing.
+ *
+ * The week is kept as the sorted minutes of week, from Monday 00:00 local
+ * time, at which it opens or closes, with an index of the first of them in
+ * every hour. Exception dates are a bitmap of local days. The offset of
+ * the time zone is cached for the period it is known not to change, so it
+ * is only looked up again around daylight saving changes or once a week.
+ *
+ * Schedules are immutable and shared between fences with the same hours,
+ * see {@link #fromKey(String)}.
+ */
+public final class RecurringSchedule {
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    static final int MAX_TOGGLES = 254;
+    static final int MAX_EXCEPTION_DAYS = 3660;
+
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long DAY_MS = MINUTES_PER_DAY * MINUTE_MS;
+    private static final long WEEK_MS = 7 * DAY_MS;
+    /**
+     * Day 0 of the epoch was a Thursday.
+     */
+    private static final int EPOCH_DAY_OF_WEEK = 3;
+    private static final int MAX_INTERNED = 256;
+
+    private static final Map<String, RecurringSchedule> interned =
+        new LinkedHashMap<String, RecurringSchedule>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RecurringSchedule> eldest) {
+                return size() > MAX_INTERNED;
+            }
+        };
+
+    private final String key;
+    private final TimeZone timeZone;
+    private final boolean openAtWeekStart;
+    private final short[] toggles;
+    /**
+     * Index into {@link #toggles} of the first toggle at or after every hour
+     * of the week, unsigned.
+     */
+    private final byte[] hourIndex;
+    private final boolean openAtWeekEnd;
+    private final int firstException;
+    private final int lastException;
+    private final long[] exceptions;
+
+    private volatile OffsetPeriod offsetPeriod;
+
+    /**
+     * Offset of the time zone, known to hold from {@code from} until before
+     * {@code until}.
+     */
+    private static final class OffsetPeriod {
+        final long from;
+        final long until;
+        final int offset;
+
+        OffsetPeriod(long from, long until, int offset) {
+            this.from = from;
+            this.until = until;
+            this.offset = offset;
+        }
+    }
+
+    private RecurringSchedule(String key, TimeZone timeZone, boolean openAtWeekStart,
+                              short[] toggles, int[] exceptionDays) {
+        this.key = key;
+        this.timeZone = timeZone;
+        this.openAtWeekStart = openAtWeekStart;
+        this.toggles = toggles;
+        this.openAtWeekEnd = openAtWeekStart ^ ((toggles.length & 1) != 0);
+
+        hourIndex = new byte[MINUTES_PER_WEEK / 60];
+        int index = 0;
+        for (int hour = 0; hour < hourIndex.length; hour++) {
+            while (index < toggles.length && toggles[index] < hour * 60) {
+                index++;
+            }
+            hourIndex[hour] = (byte) index;
+        }
+
+        if (exceptionDays.length == 0) {
+            firstException = 0;
+            lastException = -1;
+            exceptions = new long[0];
+        } else {
+            firstException = exceptionDays[0];
+            lastException = exceptionDays[exceptionDays.length - 1];
+            exceptions = new long[(lastException - firstException) / 64 + 1];
+            for (int day : exceptionDays) {
+                int bit = day - firstException;
+                exceptions[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Compiles weekly ranges into a schedule.
+     *
+     * @param timeZoneId
+     *            zone the ranges and dates are in, null for the zone of the
+     *            device
+     * @param ranges
+     *            {@code {day, startMinute, endMinute}} with days from Sunday
+     *            = 0 as in JavaScript. A range ending at or before its start
+     *            ends on the next day. No ranges means open all week.
+     * @param exceptionDates
+     *            local {@code yyyy-MM-dd} dates on which the fence is closed
+     * @throws IllegalArgumentException
+     *             for unknown time zones, invalid ranges or dates, or too
+     *             many of them
+     */
+    public static RecurringSchedule compile(String timeZoneId, List<int[]> ranges, List<String> exceptionDates) {
+        TimeZone timeZone = resolveTimeZone(timeZoneId);
+
+        boolean[] open = new boolean[MINUTES_PER_WEEK];
+        if (ranges.isEmpty()) {
+            Arrays.fill(open, true);
+        }
+        for (int[] range : ranges) {
+            int day = range[0], start = range[1], end = range[2];
+            if (day < 0 || day > 6) {
+                throw new IllegalArgumentException("invalid schedule day " + day);
+            }
+            if (start < 0 || start >= MINUTES_PER_DAY || end < 0 || end > MINUTES_PER_DAY) {
+                throw new IllegalArgumentException("invalid schedule time");
+            }
+            int weekStart = ((day + 6) % 7) * MINUTES_PER_DAY + start;
+            int length = end > start ? end - start : end + MINUTES_PER_DAY - start;
+            for (int i = 0; i < length; i++) {
+                open[(weekStart + i) % MINUTES_PER_WEEK] = true;
+            }
+        }
+
+        short[] toggles = new short[MAX_TOGGLES];
+        int count = 0;
+        for (int minute = 1; minute < MINUTES_PER_WEEK; minute++) {
+            if (open[minute] != open[minute - 1]) {
+                if (count == MAX_TOGGLES) {
+                    throw new IllegalArgumentException("schedule has too many ranges");
+                }
+                toggles[count++] = (short) minute;
+            }
+        }
+
+        int[] days = new int[exceptionDates.size()];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = parseDay(exceptionDates.get(i));
+        }
+        Arrays.sort(days);
+        if (days.length > 0 && days[days.length - 1] - days[0] >= MAX_EXCEPTION_DAYS) {
+            throw new IllegalArgumentException("schedule exceptions span more than "
+                + MAX_EXCEPTION_DAYS + " days");
+        }
+
+        return intern(timeZone, open[0], Arrays.copyOf(toggles, count), distinct(days));
+    }
+
+    /**
+     * Schedule of the compact form returned by {@link #getKey()}, shared
+     * with the fences already using it.
+     */
+    public static RecurringSchedule fromKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        synchronized (interned) {
+            RecurringSchedule schedule = interned.get(key);
+            if (schedule != null) {
+                return schedule;
+            }
+        }
+        String[] parts = key.split("\\|", -1);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid schedule " + key);
+        }
+        int[] toggles = parseInts(parts[2]);
+        short[] shortToggles = new short[toggles.length];
+        for (int i = 0; i < toggles.length; i++) {
+            shortToggles[i] = (short) toggles[i];
+        }
+        return intern(resolveTimeZone(parts[0]), "1".equals(parts[1]), shortToggles, parseInts(parts[3]));
+    }
+
+    private static RecurringSchedule intern(TimeZone timeZone, boolean openAtWeekStart,
+                                            short[] toggles, int[] exceptionDays) {
+        StringBuilder key = new StringBuilder(timeZone.getID())
+            .append('|').append(openAtWeekStart ? '1' : '0').append('|');
+        for (int i = 0; i < toggles.length; i++) {
+            key.append(i == 0 ? "" : ",").append(toggles[i]);
+        }
+        key.append('|');
+        for (int i = 0; i < exceptionDays.length; i++) {
+            key.append(i == 0 ? "" : ",").append(exceptionDays[i]);
+        }
+        String string = key.toString();
+        synchronized (interned) {
+            RecurringSchedule schedule = interned.get(string);
+            if (schedule == null) {
+                schedule = new RecurringSchedule(string, timeZone, openAtWeekStart, toggles, exceptionDays);
+                interned.put(string, schedule);
+            }
+            return schedule;
+        }
+    }
+
+    /**
+     * Compact form kept by the store: zone, whether the week starts open,
+     * the toggle minutes and the exception days since the epoch.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getTimeZone() {
+        return timeZone.getID();
+    }
+
+    /**
+     * Open ranges as {@code {day, startMinute, endMinute}}, split at
+     * midnight, in the form accepted by {@link #compile}.
+     */
+    public List<int[]> getRanges() {
+        List<int[]> ranges = new ArrayList<int[]>();
+        if (toggles.length == 0 && openAtWeekStart) {
+            // Open all week is written as no ranges
+            return ranges;
+        }
+        boolean open = openAtWeekStart;
+        int from = 0;
+        for (int i = 0; i <= toggles.length; i++) {
+            int to = i < toggles.length ? toggles[i] : MINUTES_PER_WEEK;
+            if (open) {
+                for (int start = from; start < to; start = (start / MINUTES_PER_DAY + 1) * MINUTES_PER_DAY) {
+                    int day = start / MINUTES_PER_DAY;
+                    int end = Math.min(to, (day + 1) * MINUTES_PER_DAY);
+                    ranges.add(new int[] {
+                        (day + 1) % 7, start - day * MINUTES_PER_DAY, end - day * MINUTES_PER_DAY
+                    });
+                }
+            }
+            open = !open;
+            from = to;
+        }
+        return ranges;
+    }
+
+    /**
+     * Exception dates as local {@code yyyy-MM-dd}.
+     */
+    public List<String> getExceptions() {
+        List<String> dates = new ArrayList<String>();
+        for (int day = firstException; day <= lastException; day++) {
+            if (isException(day)) {
+                dates.add(formatDay(day));
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * Whether the schedule is open at {@code now}.
+     */
+    public boolean isOpen(long now) {
+        long local = now + offsetAt(now);
+        long day = floorDiv(local, DAY_MS);
+        if (isException(day)) {
+            return false;
+        }
+        int minute = (int) (floorMod(day + EPOCH_DAY_OF_WEEK, 7) * MINUTES_PER_DAY
+            + floorMod(local, DAY_MS) / MINUTE_MS);
+        return openAtWeekStart ^ ((togglesUpTo(minute) & 1) != 0);
+    }
+
+    /**
+     * Next time after {@code now} at which the schedule may open or close,
+     * {@link FenceTable#NO_BOUNDARY} if it never does. Around daylight
+     * saving changes the boundary may come early; checking again then
+     * gives the following one.
+     */
+    public long nextBoundary(long now) {
+        OffsetPeriod period = offsetPeriod(now);
+        long local = now + period.offset;
+        long day = floorDiv(local, DAY_MS);
+        long boundary;
+        if (isException(day)) {
+            long reopens = day + 1;
+            while (isException(reopens)) {
+                reopens++;
+            }
+            boundary = reopens * DAY_MS - period.offset;
+        } else {
+            long msOfWeek = floorMod(day + EPOCH_DAY_OF_WEEK, 7) * DAY_MS + floorMod(local, DAY_MS);
+            int next = nextToggle((int) (msOfWeek / MINUTE_MS));
+            boundary = next < 0 ? FenceTable.NO_BOUNDARY : now + next * MINUTE_MS - msOfWeek;
+            long exception = nextException(day + 1);
+            if (exception >= 0) {
+                boundary = Math.min(boundary, exception * DAY_MS - period.offset);
+            }
+        }
+        if (boundary != FenceTable.NO_BOUNDARY && boundary >= period.until) {
+            // The offset may change before, so the boundary is not known yet
+            return Math.max(period.until, now + 1);
+        }
+        return boundary;
+    }
+
+    /**
+     * Number of toggles at or before the minute of week. Only the toggles
+     * within the hour are scanned.
+     */
+    private int togglesUpTo(int minute) {
+        int index = hourIndex[minute / 60] & 0xFF;
+        while (index < toggles.length && toggles[index] <= minute) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Minute of week of the next toggle after the minute, beyond the week
+     * when it comes after the week wraps, -1 if the week never changes.
+     */
+    private int nextToggle(int minute) {
+        int index = togglesUpTo(minute);
+        if (index < toggles.length) {
+            return toggles[index];
+        }
+        if (openAtWeekEnd != openAtWeekStart) {
+            return MINUTES_PER_WEEK;
+        }
+        return toggles.length == 0 ? -1 : toggles[0] + MINUTES_PER_WEEK;
+    }
+
+    private boolean isException(long day) {
+        if (day < firstException || day > lastException) {
+            return false;
+        }
+        int bit = (int) (day - firstException);
+        return (exceptions[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * First exception day at or after the day, -1 if there is none. Scans
+     * at most the words of the bitmap.
+     */
+    private long nextException(long day) {
+        if (day > lastException) {
+            return -1;
+        }
+        int bit = (int) Math.max(0, day - firstException);
+        int word = bit >>> 6;
+        long bits = exceptions[word] & (-1L << bit);
+        while (bits == 0) {
+            bits = exceptions[++word];
+        }
+        return firstException + word * 64L + Long.numberOfTrailingZeros(bits);
+    }
+
+    private int offsetAt(long now) {
+        return offsetPeriod(now).offset;
+    }
+
+    private OffsetPeriod offsetPeriod(long now) {
+        OffsetPeriod period = offsetPeriod;
+        if (period == null || now < period.from || now >= period.until) {
+            period = findOffsetPeriod(now);
+            offsetPeriod = period;
+        }
+        return period;
+    }
+
+    /**
+     * Probes the zone a day at a time for a week around {@code now}, and
+     * narrows down the change where the offset differs.
+     */
+    private OffsetPeriod findOffsetPeriod(long now) {
+        int offset = timeZone.getOffset(now);
+        long from = now;
+        while (from > now - WEEK_MS && timeZone.getOffset(from - DAY_MS) == offset) {
+            from -= DAY_MS;
+        }
+        if (from > now - WEEK_MS) {
+            from = findChange(from - DAY_MS, from, offset);
+        }
+        long until = now;
+        while (until < now + WEEK_MS && timeZone.getOffset(until + DAY_MS) == offset) {
+            until += DAY_MS;
+        }
+        if (until < now + WEEK_MS) {
+            until = findChange(until + DAY_MS, until, offset) + 1;
+        } else {
+            until += 1;
+        }
+        return new OffsetPeriod(from, until, offset);
+    }
+
+    /**
+     * Time between {@code differs} and {@code same} closest to
+     * {@code differs} that still has the offset.
+     */
+    private long findChange(long differs, long same, int offset) {
+        while (Math.abs(same - differs) > 1) {
+            long middle = differs + (same - differs) / 2;
+            if (timeZone.getOffset(middle) == offset) {
+                same = middle;
+            } else {
+                differs = middle;
+            }
+        }
+        return same;
+    }
+
+    private static TimeZone resolveTimeZone(String id) {
+        if (id == null) {
+            return TimeZone.getDefault();
+        }
+        TimeZone timeZone = TimeZone.getTimeZone(id);
+        // Unknown zones silently fall back to GMT
+        if (!timeZone.getID().equals(id)) {
+            throw new IllegalArgumentException("unknown schedule timeZone " + id);
+        }
+        return timeZone;
+    }
+
+    /**
+     * Days since the epoch of a {@code yyyy-MM-dd} date.
+     */
+    static int parseDay(String date) {
+        if (date == null || date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+            throw new IllegalArgumentException("invalid schedule exception " + date);
+        }
+        int year, month, day;
+        try {
+            year = Integer.parseInt(date.substring(0, 4));
+            month = Integer.parseInt(date.substring(5, 7));
+            day = Integer.parseInt(date.substring(8, 10));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid schedule exception " + date);
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            throw new IllegalArgumentException("invalid schedule exception " + date);
+        }
+        // Days from civil, proleptic Gregorian
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    static String formatDay(int epochDay) {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return String.format(Locale.US, "%04d-%02d-%02d", year, month, day);
+    }
+
+    private static int[] distinct(int[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    private static int[] parseInts(String list) {
+        if (list.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i]);
+        }
+        return values;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RecurringSchedule && key.equals(((RecurringSchedule) other).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
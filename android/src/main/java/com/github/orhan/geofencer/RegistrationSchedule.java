@@ -0,0 +1,100 @@
+package com.github.orhan.geofencer;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps fences registered with Play Services only while their time window
+ * is open. A single alarm is set for the next window boundary of all
+ * fences; {@link ScheduleReceiver} then registers the fences whose window
+ * opened since the last check, unregisters the ones whose window closed and
+ * sets the alarm for the following boundary.
+ *
+ * The boundary the alarm is set for and the time of the last check are kept
+ * in shared preferences, since the alarm may be delivered to a fresh
+ * process. The alarm is exact, as a window opening late misses the
+ * transitions in between.
+ */
+public class RegistrationSchedule {
+    private static final String PREFERENCES = "com.github.orhan.geofencer.schedule";
+    private static final String KEY_NEXT_BOUNDARY = "nextBoundary";
+    private static final String KEY_LAST_CHECK = "lastCheck";
+
+    private RegistrationSchedule() {
+    }
+
+    /**
+     * Time registrations were last brought up to date with the windows.
+     */
+    public static long getLastCheck(Context context, long fallback) {
+        return getPreferences(context).getLong(KEY_LAST_CHECK, fallback);
+    }
+
+    public static void setLastCheck(Context context, long time) {
+        getPreferences(context).edit().putLong(KEY_LAST_CHECK, time).apply();
+    }
+
+    /**
+     * Sets the alarm for the boundary, replacing the current one, or
+     * cancels it for {@link FenceTable#NO_BOUNDARY}.
+     */
+    public static synchronized void schedule(Context context, long boundary) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = getPendingIntent(context);
+        if (boundary == FenceTable.NO_BOUNDARY) {
+            alarmManager.cancel(pendingIntent);
+            getPreferences(context).edit().remove(KEY_NEXT_BOUNDARY).apply();
+            return;
+        }
+        Logger.getLogger().log(Log.DEBUG, "Next geofence window boundary at " + boundary);
+        setExact(alarmManager, boundary, pendingIntent);
+        getPreferences(context).edit().putLong(KEY_NEXT_BOUNDARY, boundary).apply();
+    }
+
+    /**
+     * Moves the alarm to the boundary if that comes before the one it is
+     * set for, e.g. after fences were added.
+     */
+    public static synchronized void scheduleEarlier(Context context, long boundary) {
+        if (boundary == FenceTable.NO_BOUNDARY) {
+            return;
+        }
+        long scheduled = getPreferences(context).getLong(KEY_NEXT_BOUNDARY, FenceTable.NO_BOUNDARY);
+        if (boundary < scheduled) {
+            schedule(context, boundary);
+        }
+    }
+
+    public static void cancel(Context context) {
+        schedule(context, FenceTable.NO_BOUNDARY);
+    }
+
+    /**
+     * Sets a wakeup alarm going off at the time. Since API 19 plain alarms
+     * are batched and may go off much later, since API 23 only alarms
+     * allowed while idle go off in Doze.
+     */
+    static void setExact(AlarmManager alarmManager, long triggerAtMillis, PendingIntent operation) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, triggerAtMillis, operation);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, triggerAtMillis, operation);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, triggerAtMillis, operation);
+        }
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, ScheduleReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,310 @@
+package com.github.orhan.geofencer;
+
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofenceStatusCodes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Adds geofences to Play Services and deals with failed requests according
+ * to their status code, see {@link Policy#forStatus(int)}:
+ *
+ * - transient failures retry the batch with exponential backoff and jitter,
+ * - failures caused by some fences of the batch bisect it until the fences
+ *   that cannot be added are isolated,
+ * - anything else fails the batch.
+ *
+ * The outcome for every fence is recorded through {@link StateListener}. A
+ * fence that is added again or removed while a retry is waiting drops out of
+ * that retry. Play Services and the clock are behind {@link Backend} and
+ * {@link Timer}, so the scheduler runs against fakes as well.
+ */
+public class RegistrationScheduler {
+    /**
+     * Issues one add request.
+     */
+    public interface Backend {
+        void addGeofences(List<Geofence> geofences, ResultListener listener);
+    }
+
+    public interface ResultListener {
+        void onResult(int statusCode);
+    }
+
+    /**
+     * Runs retries later.
+     */
+    public interface Timer {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    /**
+     * Receives the registration state of fences, see the
+     * {@code REGISTRATION_} constants of {@link GeoNotification}.
+     */
+    public interface StateListener {
+        void onStateChanged(List<String> ids, int state, int statusCode);
+    }
+
+    /**
+     * What to do after a request failed with a status code.
+     */
+    static class Policy {
+        enum Action { RETRY, BISECT, FAIL }
+
+        static final Policy TRANSIENT = new Policy(Action.RETRY, 5, 2000, 5 * 60 * 1000);
+        /**
+         * Location is off or geofencing is unavailable, which usually lasts.
+         */
+        static final Policy UNAVAILABLE = new Policy(Action.RETRY, 8, 30 * 1000, 30 * 60 * 1000);
+        static final Policy ISOLATE = new Policy(Action.BISECT, 0, 0, 0);
+        static final Policy PERMANENT = new Policy(Action.FAIL, 0, 0, 0);
+
+        final Action action;
+        final int maxAttempts;
+        final long baseDelayMillis;
+        final long maxDelayMillis;
+
+        Policy(Action action, int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            this.action = action;
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        static Policy forStatus(int statusCode) {
+            switch (statusCode) {
+                case CommonStatusCodes.NETWORK_ERROR:
+                case CommonStatusCodes.INTERNAL_ERROR:
+                case CommonStatusCodes.INTERRUPTED:
+                case CommonStatusCodes.TIMEOUT:
+                case CommonStatusCodes.API_NOT_CONNECTED:
+                    return TRANSIENT;
+                case GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE:
+                    return UNAVAILABLE;
+                case GeofenceStatusCodes.GEOFENCE_TOO_MANY_PENDING_INTENTS:
+                case CommonStatusCodes.SERVICE_DISABLED:
+                case CommonStatusCodes.SERVICE_VERSION_UPDATE_REQUIRED:
+                    return PERMANENT;
+                default:
+                    // Too many geofences, invalid fences and unknown errors:
+                    // whatever part of the batch can be added should be
+                    return ISOLATE;
+            }
+        }
+
+        /**
+         * Delay before the given retry, the first one being 1. Half of the
+         * exponential delay is fixed and the other half random, so failed
+         * requests of many batches do not retry in lockstep.
+         */
+        long delayMillis(int retry, Random random) {
+            long delay = maxDelayMillis;
+            if (retry - 1 < 32) {
+                delay = Math.min(maxDelayMillis, baseDelayMillis << (retry - 1));
+            }
+            long half = delay / 2;
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    private static class Attempt {
+        final List<Geofence> geofences;
+        final long generation;
+        final Policy policy;
+        final int retries;
+
+        Attempt(List<Geofence> geofences, long generation, Policy policy, int retries) {
+            this.geofences = geofences;
+            this.generation = generation;
+            this.policy = policy;
+            this.retries = retries;
+        }
+    }
+
+    private final Backend backend;
+    private final Timer timer;
+    private final StateListener states;
+    private final Random random;
+    private final Logger logger;
+    /**
+     * Generation of the latest add of every fence still in progress.
+     */
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+    private long nextGeneration = 1;
+
+    public RegistrationScheduler(Backend backend, Timer timer, StateListener states, Random random) {
+        this.backend = backend;
+        this.timer = timer;
+        this.states = states;
+        this.random = random;
+        this.logger = Logger.getLogger();
+    }
+
+    /**
+     * Adds the geofences, replacing any add of the same ids still in
+     * progress.
+     *
+     * @param firstAttemptDone
+     *            run once the first request completed, whatever its
+     *            outcome, may be null
+     */
+    public void add(List<Geofence> geofences, Runnable firstAttemptDone) {
+        if (geofences.isEmpty()) {
+            if (firstAttemptDone != null) {
+                firstAttemptDone.run();
+            }
+            return;
+        }
+        long generation;
+        synchronized (this) {
+            generation = nextGeneration++;
+            for (Geofence geofence : geofences) {
+                generations.put(geofence.getRequestId(), generation);
+            }
+        }
+        submit(new Attempt(new ArrayList<Geofence>(geofences), generation, null, 0), firstAttemptDone);
+    }
+
+    /**
+     * Stops retrying the given fences, e.g. because they were removed.
+     */
+    public synchronized void cancel(List<String> ids) {
+        for (String id : ids) {
+            generations.remove(id);
+        }
+    }
+
+    public synchronized void cancelAll() {
+        generations.clear();
+    }
+
+    private void submit(final Attempt attempt, final Runnable done) {
+        backend.addGeofences(attempt.geofences, new ResultListener() {
+            @Override
+            public void onResult(int statusCode) {
+                try {
+                    onAttemptResult(attempt, statusCode);
+                } finally {
+                    if (done != null) {
+                        done.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private void onAttemptResult(Attempt attempt, int statusCode) {
+        List<Geofence> current = getCurrent(attempt);
+        if (current.isEmpty()) {
+            return;
+        }
+        if (statusCode == CommonStatusCodes.SUCCESS) {
+            finish(current, attempt.generation, GeoNotification.REGISTRATION_REGISTERED, statusCode);
+            return;
+        }
+
+        Policy policy = Policy.forStatus(statusCode);
+        switch (policy.action) {
+            case RETRY:
+                Policy retryPolicy = attempt.policy != null && attempt.policy.action == Policy.Action.RETRY
+                    ? attempt.policy
+                    : policy;
+                int retries = retryPolicy == attempt.policy ? attempt.retries + 1 : 1;
+                if (retries > retryPolicy.maxAttempts) {
+                    logFailure(current, statusCode, "giving up after " + attempt.retries + " retries");
+                    finish(current, attempt.generation, GeoNotification.REGISTRATION_FAILED, statusCode);
+                    return;
+                }
+                long delay = retryPolicy.delayMillis(retries, random);
+                Metrics.increment(Metrics.REGISTRATION_RETRIES);
+                logFailure(current, statusCode, "retry " + retries + " in " + delay + "ms");
+                states.onStateChanged(getIds(current), GeoNotification.REGISTRATION_RETRYING, statusCode);
+                final Attempt retry = new Attempt(current, attempt.generation, retryPolicy, retries);
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Geofence> stillCurrent = getCurrent(retry);
+                        if (!stillCurrent.isEmpty()) {
+                            submit(new Attempt(stillCurrent, retry.generation, retry.policy, retry.retries), null);
+                        }
+                    }
+                }, delay);
+                return;
+            case BISECT:
+                if (current.size() > 1) {
+                    int middle = current.size() / 2;
+                    logFailure(current, statusCode, "bisecting");
+                    Metrics.increment(Metrics.REGISTRATION_BISECTIONS);
+                    // The halves keep the retries already spent, so transient
+                    // failures alternating with bisections still give up
+                    submit(new Attempt(new ArrayList<Geofence>(current.subList(0, middle)),
+                        attempt.generation, attempt.policy, attempt.retries), null);
+                    submit(new Attempt(new ArrayList<Geofence>(current.subList(middle, current.size())),
+                        attempt.generation, attempt.policy, attempt.retries), null);
+                    return;
+                }
+                logFailure(current, statusCode, "rejected");
+                finish(current, attempt.generation, GeoNotification.REGISTRATION_FAILED, statusCode);
+                return;
+            default:
+                logFailure(current, statusCode, "not retried");
+                finish(current, attempt.generation, GeoNotification.REGISTRATION_FAILED, statusCode);
+        }
+    }
+
+    /**
+     * The fences of the attempt that were neither added again nor removed.
+     */
+    private synchronized List<Geofence> getCurrent(Attempt attempt) {
+        List<Geofence> current = new ArrayList<Geofence>(attempt.geofences.size());
+        for (Geofence geofence : attempt.geofences) {
+            Long generation = generations.get(geofence.getRequestId());
+            if (generation != null && generation == attempt.generation) {
+                current.add(geofence);
+            }
+        }
+        return current;
+    }
+
+    private void finish(List<Geofence> geofences, long generation, int state, int statusCode) {
+        List<String> ids = getIds(geofences);
+        if (state == GeoNotification.REGISTRATION_FAILED) {
+            Metrics.add(Metrics.REGISTRATION_FAILURES, ids.size());
+        }
+        synchronized (this) {
+            for (String id : ids) {
+                Long current = generations.get(id);
+                if (current != null && current == generation) {
+                    generations.remove(id);
+                }
+            }
+        }
+        states.onStateChanged(ids, state, statusCode);
+    }
+
+    private void logFailure(final List<Geofence> geofences, final int statusCode, final String outcome) {
+        logger.log(Log.WARN, new Logger.Message() {
+            @Override
+            public String get() {
+                return "Adding " + geofences.size() + " geofences failed with status "
+                    + statusCode + ", " + outcome;
+            }
+        });
+    }
+
+    private static List<String> getIds(List<Geofence> geofences) {
+        List<String> ids = new ArrayList<String>(geofences.size());
+        for (Geofence geofence : geofences) {
+            ids.add(geofence.getRequestId());
+        }
+        return ids;
+    }
+}
@@ -26,11 +26,10 @@ public class RemoveGeofenceCommand extends AbstractGoogleServiceCommand {
 
     @Override
     protected void ExecuteCustomCode() {
-        // TODO: refactor
         if (pendingIntent != null) {
-            logger.log(Log.DEBUG, "Tried to remove Geofences in first if");
+            logger.log(Log.DEBUG, "Tried to remove all Geofences of the pending intent");
             LocationServices.GeofencingApi
-                .removeGeofences(mGoogleApiClient, geofencesIds)
+                .removeGeofences(mGoogleApiClient, pendingIntent)
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(Status status) {
@@ -0,0 +1,58 @@
+package com.github.orhan.geofencer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.facebook.react.bridge.Callback;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the alarm of {@link RegistrationSchedule} and updates the
+ * registrations off the main thread, keeping the broadcast alive until the
+ * queued requests completed, or for {@link #REGISTRATION_BUDGET_MILLIS} at
+ * most, staying clear of the receiver timeout. Otherwise the process may
+ * be killed before Play Services received the requests.
+ */
+public class ScheduleReceiver extends BroadcastReceiver {
+    static final long REGISTRATION_BUDGET_MILLIS = 8000;
+
+    private static final ExecutorService jobs = Executors.newSingleThreadExecutor(
+        TransitionReceiver.daemonThreads("GeofencerSchedule"));
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        Logger.initLogger(appContext);
+        final PendingResult result = goAsync();
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final CountDownLatch queued = new CountDownLatch(1);
+                    GeoNotificationManager.getInstance(appContext).onWindowBoundary(new Callback() {
+                        @Override
+                        public void invoke(Object... args) {
+                            queued.countDown();
+                        }
+                    });
+                    if (!queued.await(REGISTRATION_BUDGET_MILLIS, TimeUnit.MILLISECONDS)) {
+                        Logger.getLogger().log(Log.WARN, "Scheduled registration changes did not complete within "
+                            + REGISTRATION_BUDGET_MILLIS + "ms");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    Logger.getLogger().log("Updating scheduled geofences failed", e);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+}
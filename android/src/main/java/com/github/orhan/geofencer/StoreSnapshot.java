@@ -0,0 +1,184 @@
+package com.github.orhan.geofencer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Single file copy of the fence store, written and read sequentially.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by the
+ * stored items as length-prefixed UTF-8 key and raw record, as the store
+ * keeps them. A negative key length ends the items and is followed by the
+ * item count and the CRC32 of everything before it. Snapshots are written
+ * aside and renamed, so a target file is always complete.
+ */
+final class StoreSnapshot {
+    static final int MAGIC = 0x47465350;
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int END_OF_ITEMS = -1;
+    /**
+     * Rejects corrupt lengths before allocating for them.
+     */
+    private static final int MAX_ITEM_SIZE = 16 * 1024 * 1024;
+
+    private StoreSnapshot() {
+    }
+
+    static class Writer implements Closeable {
+        private final File target;
+        private final File temp;
+        private final FileOutputStream file;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private int count;
+        private boolean committed;
+
+        Writer(File target) throws IOException {
+            this.target = target;
+            this.temp = new File(target.getPath() + ".tmp");
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            this.file = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(file, BUFFER_SIZE), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        void add(String key, byte[] value) throws IOException {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(value.length);
+            out.write(value);
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Ends the snapshot and moves it to the target file.
+         */
+        void commit() throws IOException {
+            out.writeInt(END_OF_ITEMS);
+            out.writeInt(count);
+            // Covers the bytes up to here, the checksum itself is outside
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not move snapshot to " + target);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the items of a snapshot. {@link #next()} only returns false
+     * once the count and checksum matched, so a store filled from it can
+     * commit right after.
+     */
+    static class Reader implements LocalStorage.ItemSource, Closeable {
+        private final CRC32 crc = new CRC32();
+        private final DataInputStream in;
+        private int count;
+        private String key;
+        private byte[] value;
+
+        Reader(File source) throws IOException {
+            this.in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE), crc));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(source + " is not a geofence snapshot");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            try {
+                int keyLength = in.readInt();
+                if (keyLength == END_OF_ITEMS) {
+                    verifyTrailer();
+                    key = null;
+                    value = null;
+                    return false;
+                }
+                byte[] keyBytes = new byte[checkLength(keyLength)];
+                in.readFully(keyBytes);
+                key = new String(keyBytes, "UTF-8");
+                value = new byte[checkLength(in.readInt())];
+                in.readFully(value);
+                count++;
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Snapshot is truncated after " + count + " items");
+            }
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        private void verifyTrailer() throws IOException {
+            int expectedCount = in.readInt();
+            long actualCrc = crc.getValue();
+            long expectedCrc = in.readLong();
+            if (expectedCount != count || expectedCrc != actualCrc) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+        }
+
+        private static int checkLength(int length) throws IOException {
+            if (length < 0 || length > MAX_ITEM_SIZE) {
+                throw new IOException("Snapshot is corrupt, invalid length " + length);
+            }
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.github.orhan.geofencer;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters transitions triggered by inaccurate locations, e.g. cell or
+ * Wi-Fi fixes far from a small fence, before they fire.
+ *
+ * Every transition is scored with the probability that the device really
+ * is on the reported side of the fence, see {@link #confidence}. Below
+ * {@link Config#dropBelow} the transition is dropped. Below
+ * {@link Config#deferBelow} it is deferred and a fresh GPS fix requested,
+ * which confirms or drops it within {@link Config#deferMillis}. An alarm
+ * at the earliest expiry drops the transitions no fix confirmed in time,
+ * so none waits for a location that never comes. The filter is off by
+ * default. Settings and deferred transitions are kept in shared
+ * preferences, since transitions may be delivered to a fresh process.
+ */
+public class TransitionFilter {
+    public static final int PASS = 0;
+    public static final int DEFER = 1;
+    public static final int DROP = 2;
+
+    static final String ACTION_RECHECK = "com.github.orhan.geofencer.RECHECK_DEFERRED";
+    static final String ACTION_EXPIRE = "com.github.orhan.geofencer.EXPIRE_DEFERRED";
+
+    private static final String PREFERENCES = "com.github.orhan.geofencer.filter";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_DROP_BELOW = "dropBelow";
+    private static final String KEY_DEFER_BELOW = "deferBelow";
+    private static final String KEY_DEFER_MILLIS = "deferMillis";
+    private static final String KEY_DEFERRED = "deferred";
+
+    /**
+     * Android reports the radius of 68% confidence. For a circular normal
+     * error that radius is about 1.51 standard deviations.
+     */
+    private static final double ACCURACY_TO_SIGMA = 1 / 1.51;
+
+    public static class Config {
+        public boolean enabled = false;
+        public double dropBelow = 0.2;
+        public double deferBelow = 0.6;
+        public long deferMillis = 2 * 60 * 1000;
+    }
+
+    private TransitionFilter() {
+    }
+
+    public static Config getConfig(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        Config config = new Config();
+        config.enabled = preferences.getBoolean(KEY_ENABLED, config.enabled);
+        config.dropBelow = preferences.getFloat(KEY_DROP_BELOW, (float) config.dropBelow);
+        config.deferBelow = preferences.getFloat(KEY_DEFER_BELOW, (float) config.deferBelow);
+        config.deferMillis = preferences.getLong(KEY_DEFER_MILLIS, config.deferMillis);
+        return config;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the thresholds are not
+     *             probabilities or {@code dropBelow} exceeds
+     *             {@code deferBelow}, which would drop transitions meant
+     *             to be deferred
+     */
+    public static void setConfig(Context context, Config config) {
+        if (!(config.dropBelow >= 0 && config.dropBelow <= 1 && config.deferBelow >= 0 && config.deferBelow <= 1)) {
+            throw new IllegalArgumentException("dropBelow and deferBelow must be between 0 and 1");
+        }
+        if (config.dropBelow > config.deferBelow) {
+            throw new IllegalArgumentException("dropBelow " + config.dropBelow
+                + " must not exceed deferBelow " + config.deferBelow);
+        }
+        if (config.deferMillis < 0) {
+            throw new IllegalArgumentException("deferSeconds must not be negative");
+        }
+        SharedPreferences.Editor editor = getPreferences(context).edit()
+            .putBoolean(KEY_ENABLED, config.enabled)
+            .putFloat(KEY_DROP_BELOW, (float) config.dropBelow)
+            .putFloat(KEY_DEFER_BELOW, (float) config.deferBelow)
+            .putLong(KEY_DEFER_MILLIS, config.deferMillis);
+        if (!config.enabled) {
+            editor.remove(KEY_DEFERRED);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Probability that the device is inside the fence for an enter, or
+     * outside for an exit. The error of the location is taken as normal
+     * along the line to the fence center, so the score depends on the
+     * distance of the location to the fence edge relative to its accuracy.
+     * Polygons are scored by their enclosing circle, their own test runs
+     * separately. Locations without accuracy score 1.
+     */
+    public static double confidence(int transitionType, GeoNotification geo, Location location) {
+        if (location == null || !location.hasAccuracy()) {
+            return 1;
+        }
+        double distance = FenceClusters.distance(geo.latitude, geo.longitude,
+            location.getLatitude(), location.getLongitude());
+        // Positive outside the fence
+        double edgeDistance = distance - geo.radius;
+        double sigma = Math.max(1, location.getAccuracy()) * ACCURACY_TO_SIGMA;
+        double inside = normalCdf(-edgeDistance / sigma);
+        return transitionType == LocalGeofenceEngine.TRANSITION_EXIT ? 1 - inside : inside;
+    }
+
+    public static int decide(Config config, double confidence) {
+        if (confidence < config.dropBelow) {
+            return DROP;
+        }
+        if (confidence < config.deferBelow) {
+            return config.deferMillis > 0 ? DEFER : DROP;
+        }
+        return PASS;
+    }
+
+    /**
+     * Keeps the transitions until a better location arrives, replacing
+     * earlier deferred transitions of the same fences, and requests one.
+     */
+    static void defer(Context context, int transitionType, List<String> ids, Config config) {
+        long expiresAt = System.currentTimeMillis() + config.deferMillis;
+        synchronized (TransitionFilter.class) {
+            Map<String, String> deferred = getDeferred(context);
+            for (String id : ids) {
+                deferred.put(id, transitionType + ":" + expiresAt + ":" + id);
+            }
+            saveDeferred(context, deferred);
+            scheduleExpiry(context, deferred);
+        }
+        Metrics.add(Metrics.TRANSITIONS_DEFERRED, ids.size());
+        requestLocation(context);
+    }
+
+    /**
+     * Forgets deferred transitions of the fences, e.g. when they
+     * transitioned again.
+     */
+    static void cancelDeferred(Context context, List<String> ids) {
+        synchronized (TransitionFilter.class) {
+            Map<String, String> deferred = getDeferred(context);
+            int removed = 0;
+            for (String id : ids) {
+                if (deferred.remove(id) != null) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                Metrics.add(Metrics.DEFERRED_TRANSITIONS_DROPPED, removed);
+                saveDeferred(context, deferred);
+                scheduleExpiry(context, deferred);
+            }
+        }
+    }
+
+    /**
+     * Scores the deferred transitions again with a new location. Confirmed
+     * ones are processed, unlikely or expired ones dropped, the others wait
+     * for the next location.
+     */
+    static void onLocation(Context context, Location location) {
+        resolve(context, location);
+    }
+
+    /**
+     * Drops the deferred transitions that expired without a location
+     * confirming them, called by the expiry alarm.
+     */
+    static void onExpired(Context context) {
+        resolve(context, null);
+    }
+
+    /**
+     * @param location
+     *            null to only drop expired transitions
+     */
+    private static void resolve(Context context, Location location) {
+        long receivedAt = Metrics.now();
+        Config config = getConfig(context);
+        GeoNotificationStore store = new GeoNotificationStore(context);
+        Map<Integer, List<String>> confirmed = new LinkedHashMap<Integer, List<String>>();
+        boolean waiting;
+        synchronized (TransitionFilter.class) {
+            Map<String, String> deferred = getDeferred(context);
+            if (deferred.isEmpty()) {
+                return;
+            }
+            Map<String, Integer> types = new LinkedHashMap<String, Integer>();
+            long now = System.currentTimeMillis();
+            int dropped = 0;
+            for (String entry : new ArrayList<String>(deferred.values())) {
+                String[] parts = entry.split(":", 3);
+                if (!config.enabled || Long.parseLong(parts[1]) < now) {
+                    deferred.remove(parts[2]);
+                    dropped++;
+                } else {
+                    types.put(parts[2], Integer.parseInt(parts[0]));
+                }
+            }
+            if (location != null) {
+                Set<String> found = new HashSet<String>();
+                for (GeoNotification geo : store.getGeoNotifications(new ArrayList<String>(types.keySet()))) {
+                    found.add(geo.id);
+                    int transitionType = types.get(geo.id);
+                    double confidence = confidence(transitionType, geo, location);
+                    if (confidence >= config.deferBelow) {
+                        deferred.remove(geo.id);
+                        List<String> ids = confirmed.get(transitionType);
+                        if (ids == null) {
+                            ids = new ArrayList<String>();
+                            confirmed.put(transitionType, ids);
+                        }
+                        ids.add(geo.id);
+                    } else if (confidence < config.dropBelow) {
+                        deferred.remove(geo.id);
+                        dropped++;
+                    }
+                }
+                // Removed while deferred
+                for (String id : types.keySet()) {
+                    if (!found.contains(id)) {
+                        deferred.remove(id);
+                    }
+                }
+            }
+            saveDeferred(context, deferred);
+            scheduleExpiry(context, deferred);
+            waiting = !deferred.isEmpty();
+            Metrics.add(Metrics.DEFERRED_TRANSITIONS_DROPPED, dropped);
+        }
+
+        if (!confirmed.isEmpty()) {
+            TransitionProcessor processor = new TransitionProcessor(context, store);
+            for (Map.Entry<Integer, List<String>> entry : confirmed.entrySet()) {
+                Metrics.add(Metrics.DEFERRED_TRANSITIONS_CONFIRMED, entry.getValue().size());
+                processor.process(entry.getKey(), entry.getValue(), location, receivedAt, false);
+            }
+        }
+        if (waiting && location != null) {
+            requestLocation(context);
+        }
+    }
+
+    static boolean hasDeferred(Context context) {
+        return getPreferences(context).contains(KEY_DEFERRED);
+    }
+
+    /**
+     * Asks for one GPS fix, delivered to {@link LocationUpdateReceiver}.
+     */
+    private static void requestLocation(Context context) {
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        Intent intent = new Intent(context, LocationUpdateReceiver.class).setAction(ACTION_RECHECK);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        try {
+            locationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, pendingIntent);
+        } catch (SecurityException e) {
+            Logger.getLogger().log("Location permission missing, deferred transitions wait for the next location", e);
+        } catch (IllegalArgumentException e) {
+            Logger.getLogger().log(Log.WARN, "GPS unavailable, deferred transitions wait for the next location");
+        }
+    }
+
+    /**
+     * Sets the alarm for the earliest expiry of the deferred transitions.
+     * With none left, cancels it and the pending request for a fix.
+     */
+    private static void scheduleExpiry(Context context, Map<String, String> deferred) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, LocationUpdateReceiver.class).setAction(ACTION_EXPIRE);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (deferred.isEmpty()) {
+            alarmManager.cancel(pendingIntent);
+            LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+            locationManager.removeUpdates(PendingIntent.getBroadcast(context, 0,
+                new Intent(context, LocationUpdateReceiver.class).setAction(ACTION_RECHECK),
+                PendingIntent.FLAG_UPDATE_CURRENT));
+            return;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (String entry : deferred.values()) {
+            earliest = Math.min(earliest, Long.parseLong(entry.split(":", 3)[1]));
+        }
+        // Expired are those before now, so the alarm goes off just after
+        RegistrationSchedule.setExact(alarmManager, earliest + 1, pendingIntent);
+    }
+
+    /**
+     * Deferred transitions by fence id, as {@code type:expiresAt:id}.
+     */
+    private static Map<String, String> getDeferred(Context context) {
+        Map<String, String> deferred = new LinkedHashMap<String, String>();
+        for (String entry : getPreferences(context).getStringSet(KEY_DEFERRED, new HashSet<String>())) {
+            deferred.put(entry.split(":", 3)[2], entry);
+        }
+        return deferred;
+    }
+
+    private static void saveDeferred(Context context, Map<String, String> deferred) {
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        if (deferred.isEmpty()) {
+            editor.remove(KEY_DEFERRED);
+        } else {
+            editor.putStringSet(KEY_DEFERRED, new HashSet<String>(deferred.values()));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Abramowitz and Stegun 7.1.26, accurate to 1.5e-7.
+     */
+    private static double normalCdf(double x) {
+        double z = Math.abs(x) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * z);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+            + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-z * z);
+        return x >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
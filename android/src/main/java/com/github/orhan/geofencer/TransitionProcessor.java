@@ -0,0 +1,241 @@
+package com.github.orhan.geofencer;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns a geofence transition into notifications, store updates, the
+ * native broadcast and the JS event. Shared by the Play Services transition
+ * receiver and the local fallback engine.
+ */
+public class TransitionProcessor {
+    public static final String GeofenceTransitionIntent = "com.orhan.geofencer.TRANSITION";
+
+    static final int WORKERS = 3;
+
+    /**
+     * Leaves the receiver room to finish within its own budget.
+     */
+    static final long WORK_DEADLINE_MILLIS = TransitionReceiver.PROCESSING_BUDGET_MILLIS - 2000;
+
+    private static final ExecutorService workers = createWorkers();
+
+    private Context context;
+    private GeoNotificationStore store;
+    private GeoNotificationNotifier notifier;
+    private Logger logger;
+
+    public TransitionProcessor(Context context, GeoNotificationStore store) {
+        this.context = context;
+        this.store = store;
+        this.notifier = new GeoNotificationNotifier(
+            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE),
+            context
+        );
+        this.logger = Logger.getLogger();
+    }
+
+    /**
+     * Fences of one event are looked up with a single query. Their
+     * notifications, the fired flags and the events are then produced in
+     * parallel on {@link #WORKERS} threads, and awaited until
+     * {@link #WORK_DEADLINE_MILLIS} after {@code receivedAt}. Transitions
+     * are passed through the {@link TransitionFilter} first.
+     *
+     * @param location
+     *            location that triggered the transition, null if unknown
+     * @param receivedAt
+     *            {@link Metrics#now()} when the transition reached the plugin
+     */
+    public void process(int transitionType, List<String> fenceIds, Location location, long receivedAt) {
+        process(transitionType, fenceIds, location, receivedAt, true);
+    }
+
+    /**
+     * @param filter
+     *            false for transitions the filter already confirmed
+     */
+    void process(final int transitionType, List<String> fenceIds, Location location, final long receivedAt,
+                 boolean filter) {
+        logger.log(Log.DEBUG, "Geofence transition detected");
+        Metrics.increment(Metrics.TRANSITIONS_RECEIVED);
+        List<String> ids = new ArrayList<String>(fenceIds.size());
+        List<String> clusterIds = new ArrayList<String>();
+
+        for (String fenceId : fenceIds) {
+            if (FenceClusters.isClusterId(fenceId)) {
+                clusterIds.add(fenceId);
+            } else {
+                ids.add(fenceId);
+            }
+        }
+
+        if (!clusterIds.isEmpty()) {
+            Metrics.add(Metrics.CLUSTER_TRANSITIONS, clusterIds.size());
+            GeoNotificationManager.getInstance(context).onClusterTransition(transitionType, clusterIds, location);
+            if (ids.isEmpty()) {
+                return;
+            }
+        }
+
+        TransitionFilter.Config filterConfig = filter ? TransitionFilter.getConfig(context) : null;
+        if (filterConfig != null && !filterConfig.enabled) {
+            filterConfig = null;
+        }
+        List<String> deferredIds = new ArrayList<String>();
+
+        long now = System.currentTimeMillis();
+        final List<GeoNotification> geoNotifications = new ArrayList<GeoNotification>();
+        final List<String> firedIds = new ArrayList<String>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (GeoNotification geoNotification : store.getGeoNotifications(ids)) {
+            if (isPolygonFalsePositive(geoNotification, transitionType, location)) {
+                Metrics.increment(Metrics.POLYGON_TRANSITIONS_SUPPRESSED);
+                continue;
+            }
+
+            if (geoNotification.shouldFire(now)) {
+                if (filterConfig != null) {
+                    int decision = TransitionFilter.decide(filterConfig,
+                        TransitionFilter.confidence(transitionType, geoNotification, location));
+                    if (decision == TransitionFilter.DROP) {
+                        Metrics.increment(Metrics.TRANSITIONS_FILTERED);
+                        continue;
+                    }
+                    if (decision == TransitionFilter.DEFER) {
+                        deferredIds.add(geoNotification.id);
+                        continue;
+                    }
+                }
+
+                if (geoNotification.notification != null) {
+                    tasks.add(notifyTask(geoNotification.notification, receivedAt));
+                }
+
+                geoNotification.showedNotification = true;
+                geoNotification.lastFired = now;
+                geoNotification.transitionType = transitionType;
+                firedIds.add(geoNotification.id);
+                geoNotifications.add(geoNotification);
+            }
+        }
+
+        if (filterConfig != null) {
+            // A new transition supersedes the one deferred for a fence
+            if (TransitionFilter.hasDeferred(context)) {
+                List<String> superseded = new ArrayList<String>(ids);
+                superseded.removeAll(deferredIds);
+                TransitionFilter.cancelDeferred(context, superseded);
+            }
+            if (!deferredIds.isEmpty()) {
+                TransitionFilter.defer(context, transitionType, deferredIds, filterConfig);
+            }
+        }
+
+        if (!firedIds.isEmpty()) {
+            final long firedAt = now;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    store.markFired(firedIds, firedAt);
+                    return null;
+                }
+            });
+        }
+
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Intent broadcastIntent = new Intent(GeofenceTransitionIntent);
+                if (geoNotifications.size() > 0) {
+                    broadcastIntent.putExtra("transitionData", Gson.get().toJson(geoNotifications));
+                    GeofencerModule.onTransitionReceived(geoNotifications, receivedAt);
+                }
+                context.sendBroadcast(broadcastIntent);
+                return null;
+            }
+        });
+
+        runAll(tasks, receivedAt);
+    }
+
+    private Callable<Void> notifyTask(final Notification notification, final long receivedAt) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                notifier.notify(notification);
+                Metrics.recordSince(Metrics.TRANSITION_TO_NOTIFY, receivedAt);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs the tasks on the worker pool and waits for them until the
+     * deadline, cancelling the ones that are still running then.
+     */
+    private void runAll(List<Callable<Void>> tasks, long receivedAt) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(WORK_DEADLINE_MILLIS) - (Metrics.now() - receivedAt);
+        List<Future<Void>> futures;
+        try {
+            futures = workers.invokeAll(tasks, Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Log.WARN, "Interrupted while processing geofence transition");
+            return;
+        }
+
+        for (Future<Void> future : futures) {
+            if (future.isCancelled()) {
+                Metrics.increment(Metrics.TRANSITION_TASKS_TIMED_OUT);
+                continue;
+            }
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.log("Processing geofence transition failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Note that Play Services does not fire again when the device later
+     * crosses into a polygon while still inside its enclosing circle.
+     */
+    private boolean isPolygonFalsePositive(GeoNotification geo, int transitionType, Location location) {
+        return location != null
+            && geo.isPolygonFalsePositive(transitionType, location.getLatitude(), location.getLongitude());
+    }
+
+    private static ExecutorService createWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKERS, WORKERS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            TransitionReceiver.daemonThreads("GeofencerTransitionWorker"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void processError(String error) {
+        logger.log(Log.ERROR, error);
+        Intent broadcastIntent = new Intent(GeofenceTransitionIntent);
+        broadcastIntent.putExtra("error", error);
+        context.sendBroadcast(broadcastIntent);
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.orhan.geofencer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives geofence transitions from Play Services. Unlike a service it is
+ * not subject to the background start limits of API 26+, and it does not
+ * pay a service start per event.
+ *
+ * The broadcast is kept alive with {@link #goAsync()} while the transition
+ * is processed on a serial job thread, so transitions are handled in the
+ * order they arrive. A job gets {@link #PROCESSING_BUDGET_MILLIS} before
+ * the broadcast is finished regardless, staying clear of the receiver
+ * timeout.
+ */
+public class TransitionReceiver extends BroadcastReceiver {
+    static final long PROCESSING_BUDGET_MILLIS = 8000;
+
+    private static final ExecutorService jobs = Executors.newSingleThreadExecutor(
+        daemonThreads("GeofencerTransitions"));
+    private static final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(
+        daemonThreads("GeofencerTransitionDeadlines"));
+
+    private static TransitionProcessor processor;
+
+    @Override
+    public void onReceive(Context context, final Intent intent) {
+        final long receivedAt = Metrics.now();
+        final Context appContext = context.getApplicationContext();
+        Logger.initLogger(appContext);
+        final PendingResult result = goAsync();
+        final AtomicBoolean finished = new AtomicBoolean();
+
+        final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    Metrics.increment(Metrics.TRANSITION_BUDGET_EXCEEDED);
+                    Logger.getLogger().log(Log.WARN, "Transition processing exceeded its budget of "
+                        + PROCESSING_BUDGET_MILLIS + "ms");
+                    result.finish();
+                }
+            }
+        }, PROCESSING_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+
+        jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(appContext, intent, receivedAt);
+                } catch (RuntimeException e) {
+                    Logger.getLogger().log("Processing geofence transition failed", e);
+                } finally {
+                    deadline.cancel(false);
+                    if (finished.compareAndSet(false, true)) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles a transition intent sent by Location Services.
+     *
+     * @param receivedAt
+     *            {@link Metrics#now()} when the intent was delivered
+     */
+    static void handle(Context context, Intent intent, long receivedAt) {
+        Logger logger = Logger.getLogger();
+        logger.log(Log.DEBUG, "TransitionReceiver - handle");
+        TransitionProcessor processor = getProcessor(context);
+
+        // First check for errors
+        GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
+
+        if (geofencingEvent.hasError()) {
+            processor.processError("Location Services error: " + geofencingEvent.getErrorCode());
+            return;
+        }
+
+        // Get the type of transition (entry or exit)
+        int transitionType = geofencingEvent.getGeofenceTransition();
+
+        if ((transitionType == Geofence.GEOFENCE_TRANSITION_ENTER) || (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT)) {
+            List<Geofence> triggerList = geofencingEvent.getTriggeringGeofences();
+            List<String> fenceIds = new ArrayList<String>(triggerList.size());
+            for (Geofence fence : triggerList) {
+                fenceIds.add(fence.getRequestId());
+            }
+            processor.process(transitionType, fenceIds, geofencingEvent.getTriggeringLocation(), receivedAt);
+        } else {
+            processor.processError("Geofence transition error: " + transitionType);
+        }
+    }
+
+    private static synchronized TransitionProcessor getProcessor(Context context) {
+        if (processor == null) {
+            Context appContext = context.getApplicationContext();
+            processor = new TransitionProcessor(appContext, new GeoNotificationStore(appContext));
+        }
+        return processor;
+    }
+
+    static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.orhan.geofencer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClusteredRegistrationTest {
+    private static final int CATALOG_SIZE = 10000;
+    private static final double CELL_SIZE_METERS = 1000;
+
+    private static final ClusteredRegistration.WindowCheck ALL_OPEN = new ClusteredRegistration.WindowCheck() {
+        @Override
+        public List<String> getOpen(List<String> ids) {
+            return ids;
+        }
+    };
+
+    @Test
+    public void countryCatalogStaysWithinLimit() {
+        // Poland, roughly
+        List<GeoNotification> fences = catalog(49.0, 14.0, 55.0, 24.0, 150);
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, ClusteredRegistration.MAX_CLUSTERS);
+        for (GeoNotification geo : fences) {
+            clusters.addOrUpdate(geo.id, geo.latitude, geo.longitude, geo.radius);
+            assertTrue(clusters.size() + " clusters", clusters.size() <= ClusteredRegistration.MAX_CLUSTERS);
+        }
+
+        Random random = new Random(2);
+        for (int i = 0; i < 50; i++) {
+            double[] origin = { 49.0 + random.nextDouble() * 6, 14.0 + random.nextDouble() * 10 };
+            assertWithinLimit(ClusteredRegistration.plan(clusters, allIds(clusters), origin, ALL_OPEN));
+        }
+        assertWithinLimit(ClusteredRegistration.plan(clusters, allIds(clusters), null, ALL_OPEN));
+    }
+
+    @Test
+    public void bulkLoadMatchesIncrementalBudget() {
+        List<GeoNotification> fences = catalog(-60.0, -180.0, 70.0, 180.0, 300);
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, ClusteredRegistration.MAX_CLUSTERS);
+        clusters.addAll(table(fences));
+
+        assertTrue(clusters.size() + " clusters", clusters.size() <= ClusteredRegistration.MAX_CLUSTERS);
+        int children = 0;
+        for (FenceClusters.Cluster cluster : clusters.getAll()) {
+            children += cluster.getChildIds().size();
+        }
+        assertEquals(CATALOG_SIZE, children);
+        assertWithinLimit(ClusteredRegistration.plan(clusters, allIds(clusters), new double[] { 0, 0 }, ALL_OPEN));
+    }
+
+    @Test
+    public void denseCatalogRegistersNearestFirst() {
+        // 10k fences within about a kilometer
+        List<GeoNotification> fences = catalog(52.228, 21.0, 52.236, 21.012, 20);
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, ClusteredRegistration.MAX_CLUSTERS);
+        clusters.addAll(table(fences));
+        double[] origin = { 52.232, 21.006 };
+
+        ClusteredRegistration.Plan plan = ClusteredRegistration.plan(clusters, allIds(clusters), origin, ALL_OPEN);
+
+        assertWithinLimit(plan);
+        assertEquals(ClusteredRegistration.MAX_REGISTERED, plan.size());
+        double farthestChosen = 0;
+        Set<String> chosen = new HashSet<String>(plan.children);
+        double nearestLeftOut = Double.MAX_VALUE;
+        for (GeoNotification geo : fences) {
+            double edge = FenceClusters.distance(origin[0], origin[1], geo.latitude, geo.longitude) - geo.radius;
+            if (chosen.contains(geo.id)) {
+                farthestChosen = Math.max(farthestChosen, edge);
+            } else {
+                nearestLeftOut = Math.min(nearestLeftOut, edge);
+            }
+        }
+        assertTrue(farthestChosen + " > " + nearestLeftOut, farthestChosen <= nearestLeftOut);
+
+        // Leaving the refresh fence happens before reaching any fence left out
+        assertNotNull(plan.refresh);
+        assertEquals(origin[0], plan.refresh[0], 0);
+        assertEquals(origin[1], plan.refresh[1], 0);
+        assertEquals(Math.max(ClusteredRegistration.MIN_REFRESH_RADIUS, Math.ceil(nearestLeftOut)),
+            plan.refresh[2], 0);
+    }
+
+    @Test
+    public void closedWindowsLeaveTheBudgetToOthers() {
+        List<GeoNotification> fences = catalog(52.228, 21.0, 52.236, 21.012, 20);
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, ClusteredRegistration.MAX_CLUSTERS);
+        clusters.addAll(table(fences));
+
+        // Every other fence is closed
+        ClusteredRegistration.Plan plan = ClusteredRegistration.plan(clusters, allIds(clusters),
+            new double[] { 52.232, 21.006 }, new ClusteredRegistration.WindowCheck() {
+                @Override
+                public List<String> getOpen(List<String> ids) {
+                    List<String> open = new ArrayList<String>();
+                    for (String id : ids) {
+                        if (Integer.parseInt(id.substring(id.indexOf('-') + 1)) % 2 == 0) {
+                            open.add(id);
+                        }
+                    }
+                    return open;
+                }
+            });
+
+        assertEquals(ClusteredRegistration.MAX_REGISTERED, plan.size());
+        for (String id : plan.children) {
+            assertEquals(0, Integer.parseInt(id.substring(id.indexOf('-') + 1)) % 2);
+        }
+    }
+
+    @Test
+    public void registersOnlyParentsOutsideClusters() {
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, ClusteredRegistration.MAX_CLUSTERS);
+        clusters.addAll(table(catalog(49.0, 14.0, 55.0, 24.0, 150)));
+
+        ClusteredRegistration.Plan plan = ClusteredRegistration.plan(clusters, new HashSet<String>(),
+            new double[] { 52.0, 21.0 }, ALL_OPEN);
+
+        assertEquals(clusters.size(), plan.size());
+        assertNull(plan.refresh);
+    }
+
+    @Test
+    public void growingPastBudgetReportsOldAndNewClusters() {
+        FenceClusters clusters = new FenceClusters(CELL_SIZE_METERS, 4);
+        for (int i = 0; i < 4; i++) {
+            clusters.addOrUpdate("fence-" + i, 50.0, 18.0 + i * 0.02, 50);
+        }
+        Set<String> before = allIds(clusters);
+        assertEquals(4, before.size());
+
+        Set<String> changed = clusters.addOrUpdate("fence-4", 50.0, 18.1, 50);
+
+        assertTrue(clusters.size() <= 4);
+        assertTrue(clusters.getLevel() > 0);
+        assertTrue(changed.containsAll(before));
+        assertTrue(changed.containsAll(allIds(clusters)));
+        for (int i = 0; i <= 4; i++) {
+            assertNotNull(clusters.get(clusters.getClusterOf("fence-" + i)));
+        }
+    }
+
+    private static void assertWithinLimit(ClusteredRegistration.Plan plan) {
+        assertTrue(plan.size() + " registrations", plan.size() <= ClusteredRegistration.MAX_REGISTERED);
+        assertEquals(plan.size(), plan.getIds().size());
+    }
+
+    private static Set<String> allIds(FenceClusters clusters) {
+        Set<String> ids = new HashSet<String>();
+        for (FenceClusters.Cluster cluster : clusters.getAll()) {
+            ids.add(cluster.id);
+        }
+        return ids;
+    }
+
+    private static List<GeoNotification> catalog(double minLat, double minLng, double maxLat, double maxLng,
+                                                 int radius) {
+        Random random = new Random(1);
+        List<GeoNotification> fences = new ArrayList<GeoNotification>(CATALOG_SIZE);
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            GeoNotification geo = new GeoNotification();
+            geo.id = "fence-" + i;
+            geo.latitude = minLat + random.nextDouble() * (maxLat - minLat);
+            geo.longitude = minLng + random.nextDouble() * (maxLng - minLng);
+            geo.radius = radius;
+            geo.transitionType = 1;
+            fences.add(geo);
+        }
+        return fences;
+    }
+
+    private static FenceTable table(List<GeoNotification> fences) {
+        FenceTable table = new FenceTable();
+        for (GeoNotification geo : fences) {
+            table.put(geo);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.orhan.geofencer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FenceTableTest {
+    @Test
+    public void findsFencesWithinDistance() {
+        FenceTable table = table(
+            fence("near", 50.0, 18.0, 100),
+            fence("edge", 50.0, 18.01, 100),
+            fence("far", 50.1, 18.0, 100));
+
+        // 0.01 degrees of longitude at 50N are about 715m
+        assertEquals("[near]", ids(table, table.findWithin(50.0, 18.0, 500)));
+        assertEquals("[near, edge]", ids(table, table.findWithin(50.0, 18.0, 700)));
+    }
+
+    @Test
+    public void findsFencesAcrossTheAntimeridian() {
+        FenceTable table = table(
+            fence("east", -17.0, 179.999, 50),
+            fence("west", -17.0, -179.999, 50),
+            fence("middle", -17.0, 0.0, 50));
+
+        // 0.002 degrees of longitude at 17S are about 213m
+        assertEquals("[east, west]", ids(table, table.findWithin(-17.0, 179.999, 300)));
+        assertEquals("[east, west]", ids(table, table.findWithin(-17.0, -179.999, 300)));
+        assertEquals("[east, west]", ids(table, table.findWithin(-17.0, 180.0, 100)));
+        assertEquals("[east]", ids(table, table.findWithin(-17.0, 179.999, 100)));
+    }
+
+    private static GeoNotification fence(String id, double latitude, double longitude, int radius) {
+        GeoNotification geo = new GeoNotification();
+        geo.id = id;
+        geo.latitude = latitude;
+        geo.longitude = longitude;
+        geo.radius = radius;
+        geo.transitionType = 1;
+        return geo;
+    }
+
+    private static FenceTable table(GeoNotification... fences) {
+        FenceTable table = new FenceTable();
+        for (GeoNotification geo : fences) {
+            table.put(geo);
+        }
+        return table;
+    }
+
+    private static String ids(FenceTable table, int[] rows) {
+        List<String> ids = new ArrayList<String>();
+        for (int row : rows) {
+            ids.add(table.id(row));
+        }
+        return ids.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The streaming adapters must write exactly what the reflective Gson
+ * configuration wrote, see {@link ReflectiveGson}, and read it back the
+ * same way.
+ */
+public class GeoNotificationTypeAdapterTest {
+    private static final com.google.gson.Gson REFLECTIVE = ReflectiveGson.create();
+
+    @Test
+    public void writesGoldenRecord() {
+        GeoNotification geo = new GeoNotification();
+        geo.id = "shop";
+        geo.latitude = 50.5;
+        geo.longitude = -18.25;
+        geo.radius = 100;
+        geo.transitionType = 1;
+        geo.notification = new Notification();
+        geo.notification.id = 7;
+        geo.notification.title = "Hi";
+        geo.notification.setDataJson("{\"a\":[1,true]}");
+
+        assertEquals("{\"id\":\"shop\",\"latitude\":50.5,\"longitude\":-18.25,\"radius\":100,"
+            + "\"transitionType\":1,\"lastFired\":0,\"showedNotification\":false,\"happensOnce\":false,"
+            + "\"notification\":{\"id\":7,\"title\":\"Hi\",\"vibrate\":[1000],\"icon\":\"\",\"smallIcon\":\"\","
+            + "\"data\":{\"a\":[1,true]},\"openAppOnClick\":false}}", Gson.get().toJson(geo));
+    }
+
+    @Test
+    public void writesGoldenTree() {
+        GeoNotification geo = new GeoNotification();
+        geo.id = "shop";
+        geo.latitude = 50.5;
+        geo.radius = 100;
+        geo.notification = new Notification();
+        geo.notification.setDataJson("{\"a\":[1,true,null,\"x\"],\"big\":12345678901234567890,\"o\":{}}");
+
+        JsonElement tree = Gson.get().toJsonTree(geo);
+        assertEquals(new JsonParser().parse("{\"id\":\"shop\",\"latitude\":50.5,\"longitude\":0.0,"
+            + "\"radius\":100,\"transitionType\":0,\"lastFired\":0,\"showedNotification\":false,"
+            + "\"happensOnce\":false,\"notification\":{\"id\":0,\"vibrate\":[1000],\"icon\":\"\","
+            + "\"smallIcon\":\"\",\"data\":{\"a\":[1,true,null,\"x\"],\"big\":12345678901234567890,"
+            + "\"o\":{}},\"openAppOnClick\":false}}"), tree);
+        assertEquals("12345678901234567890", tree.getAsJsonObject().getAsJsonObject("notification")
+            .getAsJsonObject("data").get("big").getAsString());
+    }
+
+    @Test
+    public void writesScalarPayloadToTree() {
+        Notification notification = new Notification();
+        notification.setDataJson("\"text\"");
+        assertEquals("text", Gson.get().toJsonTree(notification).getAsJsonObject().get("data").getAsString());
+    }
+
+    @Test
+    public void matchesReflectiveTreeForCatalog() {
+        for (GeoNotification geo : BenchmarkFences.catalog(20)) {
+            assertEquals(new JsonParser().parse(REFLECTIVE.toJson(geo)), Gson.get().toJsonTree(geo));
+        }
+    }
+
+    @Test
+    public void matchesReflectiveForCatalog() {
+        for (GeoNotification geo : BenchmarkFences.catalog(100)) {
+            assertCompatible(geo);
+        }
+    }
+
+    @Test
+    public void matchesReflectiveWithNullFields() {
+        assertCompatible(new GeoNotification());
+
+        GeoNotification geo = new GeoNotification();
+        geo.notification = new Notification();
+        geo.notification.vibrate = null;
+        geo.notification.icon = null;
+        geo.notification.smallIcon = null;
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void matchesReflectiveWithEscapedStrings() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(1), 1);
+        geo.id = "<a href='x'>&amp;</a>\u2028\"\\\n\t\u00e9\ud83d\ude00";
+        geo.notification.title = "Caf\u00e9 \"quoted\" = =";
+        geo.notification.text = "line\nbreak\u0000";
+        geo.notification.setDataJson("{\"text\":\"<b>\\u00e9</b>\",\"n\":-1.5e-7}");
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void matchesReflectiveWithExtremeNumbers() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(2), 2);
+        geo.latitude = -90;
+        geo.longitude = 179.99999999;
+        geo.radius = Integer.MAX_VALUE;
+        geo.lastFired = Long.MAX_VALUE;
+        geo.notification.vibrate = new long[] { 0, Long.MIN_VALUE, 250 };
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void matchesReflectiveWithPolygon() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(3), 3);
+        geo.polygon = new double[] { 50.0, 18.0, 50.001, 18.0, 50.001, 18.002, 50.0, 18.002 };
+        geo.applyPolygonBounds();
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void matchesReflectiveWithSchedule() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(4), 4);
+        geo.schedule = RecurringSchedule.compile("Europe/Warsaw",
+            Arrays.asList(new int[] { 1, 9 * 60, 17 * 60 }, new int[] { 6, 22 * 60, 24 * 60 }),
+            Collections.singletonList("2017-12-25"));
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void leavesOutRegistrationState() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(5), 5);
+        geo.registrationState = GeoNotification.REGISTRATION_FAILED;
+        geo.registrationStatus = 1000;
+        assertCompatible(geo);
+    }
+
+    @Test
+    public void readsTimeRange() {
+        GeoNotification geo = Gson.get().fromJson("{\"id\":\"a\",\"startTime\":\"2017-01-23T11:00:00.000Z\","
+            + "\"endTime\":\"2017-01-27T15:00:00.000Z\"}", GeoNotification.class);
+        long start = GeoNotification.parseDate("2017-01-23T11:00:00.000Z").getTime();
+        long end = GeoNotification.parseDate("2017-01-27T15:00:00.000Z").getTime();
+
+        assertFalse(geo.isWithinTimeRange(start - 1));
+        assertTrue(geo.isWithinTimeRange(start));
+        assertFalse(geo.isWithinTimeRange(end));
+        assertEquals(start, geo.nextWindowBoundary(0));
+        assertEquals(end, geo.nextWindowBoundary(start));
+
+        // Assigned directly, the range is parsed again
+        geo.endTime = null;
+        assertTrue(geo.isWithinTimeRange(end));
+        assertEquals(Long.MAX_VALUE, geo.nextWindowBoundary(start));
+    }
+
+    private static void assertCompatible(GeoNotification geo) {
+        String reflective = REFLECTIVE.toJson(geo);
+        String json = Gson.get().toJson(geo);
+        assertEquals(reflective, json);
+
+        // Rows written before the adapters read back the same
+        String expected = REFLECTIVE.toJson(REFLECTIVE.fromJson(reflective, GeoNotification.class));
+        assertEquals(expected, REFLECTIVE.toJson(Gson.get().fromJson(reflective, GeoNotification.class)));
+        assertEquals(expected, REFLECTIVE.toJson(Gson.get().fromJson(json, GeoNotification.class)));
+    }
+}
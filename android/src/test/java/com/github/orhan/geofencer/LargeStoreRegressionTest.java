@@ -0,0 +1,226 @@
+package com.github.orhan.geofencer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Latency of {@link GeoNotificationStore} as the store grows from 1k to
+ * 100k fences.
+ *
+ * Every operation is timed per fence or per call, and the best of
+ * {@value #ROUNDS} rounds is kept. Operations on single fences must stay
+ * flat with the store size: at 100k fences they may take at most
+ * {@value #MAX_GROWTH} times as long as at 1k. Only that ratio is checked,
+ * since it does not depend on the machine; absolute numbers are measured by
+ * StoreBenchmark. Exporting and restoring a snapshot of the whole store is
+ * timed per fence too, as a restore of 100k fences runs no other way. The
+ * measured values are written to
+ * store-latency.properties in the directory of the system property
+ * {@value #REPORTS_PROPERTY}, which build.gradle sets to build/reports.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LargeStoreRegressionTest {
+    static final String REPORTS_PROPERTY = "geofencer.reportsDir";
+
+    private static final String REPORT = "store-latency.properties";
+    private static final int ROUNDS = 3;
+    private static final int SAMPLES = 200;
+    private static final int LOOKUP_SIZE = 5;
+    private static final int MAX_GROWTH = 4;
+    private static final int[] SIZES = { 1000, 10000, 100000 };
+
+    private static final String[] FLAT_OPERATIONS = { "insertOne", "getById", "lookup", "remove" };
+
+    private GeoNotificationStore store;
+
+    @Before
+    public void setUp() {
+        StoreTestSupport.resetDatabase();
+        store = new GeoNotificationStore(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        StoreTestSupport.resetDatabase();
+    }
+
+    @Test(timeout = 600000)
+    public void singleFenceOperationsStayFlat() throws IOException {
+        // Warms up the JIT, which would otherwise only slow down the 1k store
+        measure(SIZES[0]);
+        StoreTestSupport.resetDatabase();
+        store = new GeoNotificationStore(RuntimeEnvironment.application);
+
+        Map<String, Double> measured = new TreeMap<String, Double>();
+        for (int size : SIZES) {
+            for (Map.Entry<String, Double> result : measure(size).entrySet()) {
+                measured.put(result.getKey() + "." + size, result.getValue());
+            }
+            StoreTestSupport.resetDatabase();
+            store = new GeoNotificationStore(RuntimeEnvironment.application);
+        }
+        writeReport(measured);
+
+        List<String> regressions = new ArrayList<String>();
+        for (String operation : FLAT_OPERATIONS) {
+            double small = measured.get(operation + ".1000");
+            double large = measured.get(operation + ".100000");
+            if (large > small * MAX_GROWTH) {
+                regressions.add(String.format(Locale.US, "%s took %.1f us at 100k fences and %.1f us at 1k",
+                    operation, large, small));
+            }
+        }
+        if (!regressions.isEmpty()) {
+            fail("Store latency grows with the store size:\n" + join(regressions));
+        }
+    }
+
+    /**
+     * Microseconds per fence for bulk operations and per call otherwise.
+     */
+    private Map<String, Double> measure(int size) throws IOException {
+        List<GeoNotification> fences = BenchmarkFences.catalog(size);
+        List<String> ids = BenchmarkFences.randomIds(size, SAMPLES);
+        List<GeoNotification> sampled = new ArrayList<GeoNotification>(ids.size());
+        for (String id : ids) {
+            sampled.add(fences.get(index(id)));
+        }
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+
+        long start = System.nanoTime();
+        store.setGeoNotifications(fences);
+        results.put("insert", micros(start, size));
+        assertEquals(size, store.getAllIds().size());
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (GeoNotification geo : sampled) {
+                store.setGeoNotification(geo);
+            }
+            best = Math.min(best, micros(start, ids.size()));
+        }
+        results.put("insertOne", best);
+
+        best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (String id : ids) {
+                store.getGeoNotification(id);
+            }
+            best = Math.min(best, micros(start, ids.size()));
+        }
+        results.put("getById", best);
+
+        // The transition service reads the few fences of a transition at once
+        best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i + LOOKUP_SIZE <= ids.size(); i += LOOKUP_SIZE) {
+                store.getGeoNotifications(ids.subList(i, i + LOOKUP_SIZE));
+            }
+            best = Math.min(best, micros(start, ids.size() / LOOKUP_SIZE));
+        }
+        results.put("lookup", best);
+
+        best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            assertEquals(size, store.getAll().size());
+            best = Math.min(best, micros(start, size));
+        }
+        results.put("getAll", best);
+
+        best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (String id : ids) {
+                store.remove(id);
+            }
+            best = Math.min(best, micros(start, ids.size()));
+            store.setGeoNotifications(sampled);
+        }
+        results.put("remove", best);
+
+        File snapshot = new File(RuntimeEnvironment.application.getFilesDir(), "fences.snapshot");
+        start = System.nanoTime();
+        store.exportSnapshot(snapshot);
+        results.put("exportSnapshot", micros(start, size));
+        start = System.nanoTime();
+        assertEquals(size, store.restoreSnapshot(snapshot, new GeoNotificationStore.RestoreListener() {
+            @Override
+            public void onRestored(GeoNotification geoNotification) {
+            }
+        }));
+        results.put("restoreSnapshot", micros(start, size));
+        snapshot.delete();
+
+        // As removeAllGeoNotifications does
+        start = System.nanoTime();
+        List<String> remaining = store.getAllIds();
+        store.remove(remaining);
+        results.put("removeAll", micros(start, remaining.size()));
+        assertEquals(0, store.getAllIds().size());
+        return results;
+    }
+
+    private static int index(String id) {
+        return Integer.parseInt(id.substring(id.indexOf('-') + 1));
+    }
+
+    private static double micros(long start, int count) {
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append("  ").append(line).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Skipped when run outside Gradle, which has no reports directory.
+     */
+    private static void writeReport(Map<String, Double> measured) throws IOException {
+        String reports = System.getProperty(REPORTS_PROPERTY);
+        if (reports == null) {
+            return;
+        }
+        StringBuilder report = new StringBuilder("# Microseconds per fence for insert, getAll, removeAll"
+            + " and snapshots, per call otherwise\n");
+        for (Map.Entry<String, Double> entry : measured.entrySet()) {
+            report.append(entry.getKey()).append('=')
+                .append(String.format(Locale.US, "%.1f", entry.getValue())).append('\n');
+        }
+        File file = new File(reports, REPORT);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString().getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.orhan.geofencer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalGeofenceEngineTest {
+    // About 111m per 0.001 degrees of latitude
+    private static final double LATITUDE = 50.0;
+    private static final double LONGITUDE = 18.0;
+    private static final int ALL = LocalGeofenceEngine.TRANSITION_ENTER
+        | LocalGeofenceEngine.TRANSITION_EXIT | LocalGeofenceEngine.TRANSITION_DWELL;
+
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        listener = new RecordingListener();
+    }
+
+    @Test
+    public void reportsEnterAndExit() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine();
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 100, ALL);
+
+        assertFalse(engine.onLocation(LATITUDE + 0.01, LONGITUDE, 0, listener));
+        assertEquals("", listener.take());
+
+        assertTrue(engine.onLocation(LATITUDE + 0.0005, LONGITUDE, 1000, listener));
+        assertEquals("1:[a]", listener.take());
+
+        assertFalse(engine.onLocation(LATITUDE, LONGITUDE, 2000, listener));
+        assertEquals("", listener.take());
+
+        assertTrue(engine.onLocation(LATITUDE + 0.0011, LONGITUDE, 3000, listener));
+        assertEquals("2:[a]", listener.take());
+    }
+
+    @Test
+    public void reportsExitBeforeEnterBeforeDwell() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(2000, 60000);
+        engine.addOrUpdate("west", LATITUDE, LONGITUDE, 100, ALL);
+        engine.addOrUpdate("east", LATITUDE, LONGITUDE + 0.002, 100, ALL);
+        engine.addOrUpdate("both", LATITUDE, LONGITUDE + 0.001, 200, ALL);
+
+        engine.onLocation(LATITUDE, LONGITUDE, 0, listener);
+        assertEquals("1:[both, west]", listener.take());
+
+        engine.onLocation(LATITUDE, LONGITUDE + 0.002, 60000, listener);
+        assertEquals("2:[west] 1:[east] 4:[both]", listener.take());
+
+        engine.onLocation(LATITUDE, LONGITUDE + 0.002, 200000, listener);
+        assertEquals("4:[east]", listener.take());
+    }
+
+    @Test
+    public void tracksStateOfUnreportedTransitions() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine();
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 100, LocalGeofenceEngine.TRANSITION_ENTER);
+
+        assertTrue(engine.onLocation(LATITUDE, LONGITUDE, 0, listener));
+        assertTrue(engine.onLocation(LATITUDE + 0.01, LONGITUDE, 1000, listener));
+        assertTrue(engine.onLocation(LATITUDE, LONGITUDE, 2000, listener));
+        assertEquals("1:[a] 1:[a]", listener.take());
+    }
+
+    @Test
+    public void checksFencesLargerThanTheGrid() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(500, 0);
+        engine.addOrUpdate("city", LATITUDE, LONGITUDE, 20000, ALL);
+
+        engine.onLocation(LATITUDE + 0.15, LONGITUDE, 0, listener);
+        assertEquals("1:[city]", listener.take());
+        engine.onLocation(LATITUDE + 0.2, LONGITUDE, 0, listener);
+        assertEquals("2:[city]", listener.take());
+    }
+
+    @Test
+    public void reportsExitFromAnotherCell() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(100, 0);
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 150, ALL);
+
+        engine.onLocation(LATITUDE, LONGITUDE, 0, listener);
+        engine.onLocation(LATITUDE + 1, LONGITUDE + 1, 0, listener);
+        assertEquals("1:[a] 2:[a]", listener.take());
+    }
+
+    @Test
+    public void keepsInsideStateWhenFencesChange() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine();
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 100, ALL);
+        engine.onLocation(LATITUDE, LONGITUDE, 0, listener);
+        listener.take();
+
+        engine.addOrUpdate("b", LATITUDE, LONGITUDE, 50, ALL);
+        engine.remove("gone");
+        engine.onLocation(LATITUDE, LONGITUDE, 1000, listener);
+        assertEquals("1:[b]", listener.take());
+
+        engine.remove("a");
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 100, ALL);
+        engine.onLocation(LATITUDE, LONGITUDE, 2000, listener);
+        assertEquals("", listener.take());
+    }
+
+    @Test
+    public void restoresInsideStateOfAnotherEngine() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(2000, 60000);
+        engine.addOrUpdate("a", LATITUDE, LONGITUDE, 100, ALL);
+        engine.addOrUpdate("b", LATITUDE, LONGITUDE, 100, ALL);
+        engine.onLocation(LATITUDE, LONGITUDE, 0, listener);
+        engine.onLocation(LATITUDE, LONGITUDE, 60000, listener);
+        listener.take();
+        List<LocalGeofenceEngine.Inside> saved = engine.getInside();
+        assertEquals(2, saved.size());
+
+        LocalGeofenceEngine restored = new LocalGeofenceEngine(2000, 60000);
+        restored.addOrUpdate("a", LATITUDE, LONGITUDE, 100, ALL);
+        restored.addOrUpdate("c", LATITUDE, LONGITUDE, 100, ALL);
+        List<LocalGeofenceEngine.Inside> state = new ArrayList<LocalGeofenceEngine.Inside>(saved);
+        state.add(new LocalGeofenceEngine.Inside("unknown", 0, false));
+        restored.restoreInside(state);
+
+        // a stays entered and dwelled, c is entered for the first time
+        restored.onLocation(LATITUDE, LONGITUDE, 120000, listener);
+        assertEquals("1:[c]", listener.take());
+        assertEquals(2, restored.getInside().size());
+
+        restored.onLocation(LATITUDE + 0.01, LONGITUDE, 130000, listener);
+        assertEquals("2:[a, c]", listener.take());
+        assertTrue(restored.getInside().isEmpty());
+    }
+
+    /**
+     * A location update over 100k fences, spread over about 110 by 70 km
+     * like {@link BenchmarkFences#catalog(int)}, takes well under a
+     * millisecond. The median of many updates is checked so a GC pause
+     * does not fail the test; {@code LocalGeofenceEngineBenchmark} gives
+     * precise numbers.
+     */
+    @Test
+    public void evaluates100kFencesUnderAMillisecond() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine();
+        for (GeoNotification geo : BenchmarkFences.catalog(100000)) {
+            engine.addOrUpdate(geo);
+        }
+        Random random = new Random(BenchmarkFences.SEED);
+        engine.onLocation(50.5, 18.5, 0, null);
+
+        long[] durations = new long[2000];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < durations.length; i++) {
+                double latitude = 50 + random.nextDouble();
+                double longitude = 18 + random.nextDouble();
+                long start = System.nanoTime();
+                engine.onLocation(latitude, longitude, i * 1000L, null);
+                durations[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(durations);
+        long median = durations[durations.length / 2];
+        assertTrue("median update took " + median + "ns", median < 1000000);
+    }
+
+    private static class RecordingListener implements LocalGeofenceEngine.Listener {
+        private final StringBuilder events = new StringBuilder();
+
+        @Override
+        public void onTransition(int transitionType, List<String> fenceIds) {
+            List<String> sorted = new ArrayList<String>(fenceIds);
+            Collections.sort(sorted);
+            events.append(events.length() == 0 ? "" : " ").append(transitionType).append(':').append(sorted);
+        }
+
+        String take() {
+            String recorded = events.toString();
+            events.setLength(0);
+            return recorded;
+        }
+    }
+}
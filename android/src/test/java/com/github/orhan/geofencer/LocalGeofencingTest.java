@@ -0,0 +1,73 @@
+package com.github.orhan.geofencer;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LocalGeofencingTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        StoreTestSupport.resetDatabase();
+        context = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        StoreTestSupport.resetDatabase();
+    }
+
+    @Test
+    public void savesAndLoadsInsideState() {
+        LocalGeofencing.saveInside(context, Arrays.asList(
+            new LocalGeofenceEngine.Inside("shop:1", 1234L, true),
+            new LocalGeofenceEngine.Inside("plain", -5L, false)));
+
+        List<LocalGeofenceEngine.Inside> loaded = LocalGeofencing.loadInside(context);
+        assertEquals(2, loaded.size());
+        for (LocalGeofenceEngine.Inside inside : loaded) {
+            if (inside.id.equals("shop:1")) {
+                assertEquals(1234L, inside.since);
+                assertTrue(inside.dwellReported);
+            } else {
+                assertEquals("plain", inside.id);
+                assertEquals(-5L, inside.since);
+                assertFalse(inside.dwellReported);
+            }
+        }
+    }
+
+    @Test
+    public void freshEngineKeepsFencesEntered() {
+        GeoNotification geo = BenchmarkFences.fence(new Random(1), 1);
+        new GeoNotificationStore(context).setGeoNotification(geo);
+        LocalGeofencing.reload(context);
+
+        LocalGeofenceEngine engine = LocalGeofencing.getEngine(context);
+        assertTrue(engine.onLocation(geo.latitude, geo.longitude, 0, null));
+        LocalGeofencing.saveInside(context, engine.getInside());
+
+        // As in a new process
+        LocalGeofencing.reload(context);
+        LocalGeofenceEngine fresh = LocalGeofencing.getEngine(context);
+        assertEquals(1, fresh.getInside().size());
+        assertFalse(fresh.onLocation(geo.latitude, geo.longitude, 1000, null));
+    }
+}
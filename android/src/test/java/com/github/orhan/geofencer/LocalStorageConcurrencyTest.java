@@ -0,0 +1,137 @@
+package com.github.orhan.geofencer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Readers, bulk writers and read-modify-write updaters on the shared
+ * database at the same time, as the module thread, the transition
+ * receiver and the boot receiver do. Any exception, e.g. a
+ * SQLiteDatabaseLockedException, fails the test, and concurrent increments
+ * must all be kept.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LocalStorageConcurrencyTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int COUNTERS = 20;
+    private static final int UPDATERS = 4;
+    private static final int INCREMENTS = 50;
+    private static final int IMPORTS = 5;
+    private static final int IMPORT_SIZE = 1000;
+
+    private LocalStorage storage;
+    private GeoNotificationStore store;
+
+    @Before
+    public void setUp() {
+        StoreTestSupport.resetDatabase();
+        storage = new LocalStorage(RuntimeEnvironment.application);
+        store = new GeoNotificationStore(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        StoreTestSupport.resetDatabase();
+    }
+
+    @Test(timeout = 120000)
+    public void concurrentReadersAndWritersLoseNoUpdates() throws Exception {
+        final List<String> counters = new ArrayList<String>();
+        Map<String, byte[]> initial = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < COUNTERS; i++) {
+            counters.add("counter-" + i);
+            initial.put("counter-" + i, "0".getBytes(UTF_8));
+        }
+        storage.setItems(initial);
+        final List<GeoNotification> fences = BenchmarkFences.catalog(IMPORT_SIZE);
+        final List<String> fenceIds = BenchmarkFences.randomIds(IMPORT_SIZE, 50);
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int updater = 0; updater < UPDATERS; updater++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    for (int i = 0; i < INCREMENTS; i++) {
+                        for (String counter : counters) {
+                            assertTrue(storage.updateItem(counter, new LocalStorage.Updater() {
+                                @Override
+                                public byte[] update(byte[] current) {
+                                    int value = Integer.parseInt(new String(current, UTF_8));
+                                    return Integer.toString(value + 1).getBytes(UTF_8);
+                                }
+                            }));
+                        }
+                    }
+                    return INCREMENTS;
+                }
+            });
+        }
+        // Bulk imports, as addOrUpdate with a large catalog
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                for (int i = 0; i < IMPORTS; i++) {
+                    store.setGeoNotifications(fences);
+                }
+                return IMPORTS;
+            }
+        });
+        // Transition lookups and fired flags
+        for (int reader = 0; reader < 2; reader++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int reads = 0;
+                    for (int i = 0; i < 200; i++) {
+                        store.getGeoNotifications(fenceIds.subList(0, 5));
+                        store.markFired(fenceIds.subList(5, 10), i);
+                        storage.getAllKeys();
+                        reads++;
+                    }
+                    return reads;
+                }
+            });
+        }
+
+        ExecutorService threads = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (Callable<Integer> task : tasks) {
+                results.add(threads.submit(task));
+            }
+            // Rethrows the first exception of any task
+            for (Future<Integer> result : results) {
+                assertNotNull(result.get(100, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        for (String counter : counters) {
+            assertEquals(counter, Integer.toString(UPDATERS * INCREMENTS),
+                new String(storage.getItemBytes(counter), UTF_8));
+        }
+        assertEquals(COUNTERS + IMPORT_SIZE, storage.getAllKeys().size());
+    }
+}
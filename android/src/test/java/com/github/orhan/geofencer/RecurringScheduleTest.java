@@ -0,0 +1,182 @@
+package com.github.orhan.geofencer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecurringScheduleTest {
+    private static final int SUNDAY = 0;
+    private static final int MONDAY = 1;
+    private static final int FRIDAY = 5;
+    private static final List<String> NO_EXCEPTIONS = Collections.emptyList();
+
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() {
+        // Schedules must not depend on the zone of the device
+        defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void rangeWrapsPastMidnight() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS, range(FRIDAY, 22 * 60, 2 * 60));
+
+        // Friday 2017-03-03
+        assertFalse(schedule.isOpen(time("2017-03-03T21:59:00")));
+        assertTrue(schedule.isOpen(time("2017-03-03T22:00:00")));
+        assertTrue(schedule.isOpen(time("2017-03-04T01:59:00")));
+        assertFalse(schedule.isOpen(time("2017-03-04T02:00:00")));
+        assertEquals(time("2017-03-04T02:00:00"), schedule.nextBoundary(time("2017-03-03T23:00:00")));
+    }
+
+    @Test
+    public void rangeEndsAtMidnight() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS, range(MONDAY, 20 * 60, 24 * 60));
+
+        // Monday 2017-03-06
+        assertTrue(schedule.isOpen(time("2017-03-06T23:59:00")));
+        assertFalse(schedule.isOpen(time("2017-03-07T00:00:00")));
+        assertEquals(time("2017-03-07T00:00:00"), schedule.nextBoundary(time("2017-03-06T21:00:00")));
+        assertEquals(1, schedule.getRanges().size());
+        assertEquals(Arrays.toString(new int[] { MONDAY, 20 * 60, 24 * 60 }),
+            Arrays.toString(schedule.getRanges().get(0)));
+    }
+
+    @Test
+    public void rangeEndsAtMidnightOnSunday() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS, range(SUNDAY, 0, 24 * 60));
+
+        // Sunday 2017-03-05 is the last day of the week
+        assertTrue(schedule.isOpen(time("2017-03-05T00:00:00")));
+        assertTrue(schedule.isOpen(time("2017-03-05T23:59:00")));
+        assertFalse(schedule.isOpen(time("2017-03-06T00:00:00")));
+        assertEquals(time("2017-03-06T00:00:00"), schedule.nextBoundary(time("2017-03-05T12:00:00")));
+    }
+
+    @Test
+    public void closedOnExceptionDates() {
+        RecurringSchedule schedule = compile("UTC", Arrays.asList("2017-03-06"), range(MONDAY, 9 * 60, 17 * 60));
+
+        assertFalse(schedule.isOpen(time("2017-03-06T12:00:00")));
+        assertTrue(schedule.isOpen(time("2017-03-13T12:00:00")));
+        assertEquals(Arrays.asList("2017-03-06"), schedule.getExceptions());
+        // The exception day starts before the range would open
+        assertEquals(time("2017-03-06T00:00:00"), schedule.nextBoundary(time("2017-03-05T12:00:00")));
+        assertEquals(time("2017-03-07T00:00:00"), schedule.nextBoundary(time("2017-03-06T12:00:00")));
+        assertEquals(time("2017-03-13T09:00:00"), schedule.nextBoundary(time("2017-03-07T00:00:00")));
+    }
+
+    @Test
+    public void exceptionDatesAreLocal() {
+        RecurringSchedule schedule = compile("Asia/Tokyo", Arrays.asList("2017-03-06"), range(MONDAY, 0, 24 * 60));
+
+        // Monday 00:30 in Tokyo is still Sunday in UTC
+        assertFalse(schedule.isOpen(time("2017-03-05T15:30:00")));
+        assertTrue(schedule.isOpen(time("2017-03-12T15:30:00")));
+    }
+
+    @Test
+    public void followsDaylightSavingOfItsZone() {
+        // Daily 09:00-17:00 in Warsaw, which moved to summer time on 2017-03-26
+        RecurringSchedule schedule = compile("Europe/Warsaw", NO_EXCEPTIONS,
+            range(0, 9 * 60, 17 * 60), range(1, 9 * 60, 17 * 60), range(2, 9 * 60, 17 * 60),
+            range(3, 9 * 60, 17 * 60), range(4, 9 * 60, 17 * 60), range(5, 9 * 60, 17 * 60),
+            range(6, 9 * 60, 17 * 60));
+
+        assertFalse(schedule.isOpen(time("2017-03-24T07:30:00")));
+        assertTrue(schedule.isOpen(time("2017-03-24T08:30:00")));
+        assertTrue(schedule.isOpen(time("2017-03-27T07:30:00")));
+        assertFalse(schedule.isOpen(time("2017-03-27T15:30:00")));
+
+        // Boundaries may come early around the change, the opening is still found
+        assertEquals(time("2017-03-26T07:00:00"), nextOpening(schedule, time("2017-03-25T17:00:00")));
+        assertEquals(time("2017-03-27T07:00:00"), nextOpening(schedule, time("2017-03-26T16:00:00")));
+    }
+
+    @Test
+    public void nextBoundaryWrapsTheWeek() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS, range(MONDAY, 8 * 60, 9 * 60));
+
+        // From Tuesday 2017-03-07 and from Sunday, the next opening is on Monday
+        assertEquals(time("2017-03-13T08:00:00"), schedule.nextBoundary(time("2017-03-07T10:00:00")));
+        assertEquals(time("2017-03-13T08:00:00"), schedule.nextBoundary(time("2017-03-12T23:00:00")));
+        assertEquals(time("2017-03-13T09:00:00"), schedule.nextBoundary(time("2017-03-13T08:30:00")));
+    }
+
+    @Test
+    public void nextBoundaryWrapsTheWeekWhileOpen() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS, range(SUNDAY, 22 * 60, 2 * 60));
+
+        assertTrue(schedule.isOpen(time("2017-03-12T23:00:00")));
+        assertTrue(schedule.isOpen(time("2017-03-13T01:00:00")));
+        assertEquals(time("2017-03-13T02:00:00"), schedule.nextBoundary(time("2017-03-12T23:00:00")));
+        assertEquals(time("2017-03-19T22:00:00"), schedule.nextBoundary(time("2017-03-13T02:00:00")));
+    }
+
+    @Test
+    public void openAllWeekHasNoBoundary() {
+        RecurringSchedule schedule = compile("UTC", NO_EXCEPTIONS);
+
+        assertTrue(schedule.isOpen(time("2017-03-08T12:00:00")));
+        assertEquals(FenceTable.NO_BOUNDARY, schedule.nextBoundary(time("2017-03-08T12:00:00")));
+    }
+
+    @Test
+    public void rejectsInvalidRanges() {
+        assertRejected("UTC", range(7, 0, 60));
+        assertRejected("UTC", range(MONDAY, 24 * 60, 60));
+        assertRejected("UTC", range(MONDAY, 0, 24 * 60 + 1));
+        assertRejected("Mars/Olympus_Mons", range(MONDAY, 0, 60));
+    }
+
+    /**
+     * Follows the boundaries from {@code now} until the schedule is open.
+     */
+    private static long nextOpening(RecurringSchedule schedule, long now) {
+        for (int i = 0; i < 10; i++) {
+            now = schedule.nextBoundary(now);
+            if (schedule.isOpen(now)) {
+                return now;
+            }
+        }
+        fail("no opening within 10 boundaries");
+        return 0;
+    }
+
+    private static void assertRejected(String timeZoneId, int[] range) {
+        try {
+            compile(timeZoneId, NO_EXCEPTIONS, range);
+            fail("accepted " + Arrays.toString(range) + " in " + timeZoneId);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static RecurringSchedule compile(String timeZoneId, List<String> exceptions, int[]... ranges) {
+        return RecurringSchedule.compile(timeZoneId, Arrays.asList(ranges), exceptions);
+    }
+
+    private static int[] range(int day, int startMinute, int endMinute) {
+        return new int[] { day, startMinute, endMinute };
+    }
+
+    private static long time(String utc) {
+        return GeoNotification.parseDate(utc + ".000Z").getTime();
+    }
+}
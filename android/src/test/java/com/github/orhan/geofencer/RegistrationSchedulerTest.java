@@ -0,0 +1,275 @@
+package com.github.orhan.geofencer;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofenceStatusCodes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrationSchedulerTest {
+    private FakeBackend backend;
+    private FakeTimer timer;
+    private RecordingStates states;
+    private RegistrationScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        backend = new FakeBackend();
+        timer = new FakeTimer();
+        states = new RecordingStates();
+        scheduler = new RegistrationScheduler(backend, timer, states, new Random(1));
+    }
+
+    @Test
+    public void registersOnSuccess() {
+        final boolean[] done = new boolean[1];
+        scheduler.add(fences("a", "b"), new Runnable() {
+            @Override
+            public void run() {
+                done[0] = true;
+            }
+        });
+
+        backend.respond(CommonStatusCodes.SUCCESS);
+
+        assertEquals("registered:[a, b]:0", states.take());
+        assertTrue(done[0]);
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void retriesTransientFailuresWithBackoff() {
+        scheduler.add(fences("a"), null);
+
+        backend.respond(CommonStatusCodes.NETWORK_ERROR);
+        assertEquals("retrying:[a]:7", states.take());
+        long first = timer.lastDelay();
+        assertTrue("delay " + first, first >= 1000 && first <= 2000);
+
+        timer.runAll();
+        backend.respond(CommonStatusCodes.TIMEOUT);
+        assertEquals("retrying:[a]:15", states.take());
+        long second = timer.lastDelay();
+        assertTrue("delay " + second, second >= 2000 && second <= 4000);
+
+        timer.runAll();
+        backend.respond(CommonStatusCodes.SUCCESS);
+        assertEquals("registered:[a]:0", states.take());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() {
+        scheduler.add(fences("a"), null);
+
+        for (int retry = 1; retry <= RegistrationScheduler.Policy.TRANSIENT.maxAttempts; retry++) {
+            backend.respond(CommonStatusCodes.INTERNAL_ERROR);
+            assertEquals("retrying:[a]:8", states.take());
+            timer.runAll();
+        }
+        backend.respond(CommonStatusCodes.INTERNAL_ERROR);
+
+        assertEquals("failed:[a]:8", states.take());
+        assertEquals(0, timer.pending());
+        assertEquals(0, backend.pending());
+    }
+
+    @Test
+    public void failsPermanentStatusAtOnce() {
+        scheduler.add(fences("a", "b"), null);
+
+        backend.respond(GeofenceStatusCodes.GEOFENCE_TOO_MANY_PENDING_INTENTS);
+
+        assertEquals("failed:[a, b]:1002", states.take());
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void bisectsToIsolateRejectedFences() {
+        scheduler.add(fences("a", "b", "c", "d", "e"), null);
+
+        // Play Services rejects every batch containing c
+        while (backend.pending() > 0) {
+            List<String> ids = backend.nextIds();
+            backend.respond(ids.contains("c")
+                ? GeofenceStatusCodes.GEOFENCE_TOO_MANY_GEOFENCES
+                : CommonStatusCodes.SUCCESS);
+        }
+
+        assertEquals("registered:[a, b]:0 failed:[c]:1001 registered:[d, e]:0", states.take());
+    }
+
+    @Test
+    public void bisectedHalvesKeepTheirRetries() {
+        scheduler.add(fences("a", "b"), null);
+        for (int retry = 1; retry <= RegistrationScheduler.Policy.TRANSIENT.maxAttempts; retry++) {
+            backend.respond(CommonStatusCodes.NETWORK_ERROR);
+            timer.runAll();
+        }
+        states.take();
+
+        backend.respond(GeofenceStatusCodes.GEOFENCE_TOO_MANY_GEOFENCES);
+        assertEquals(Arrays.asList("a"), backend.nextIds());
+        backend.respond(CommonStatusCodes.NETWORK_ERROR);
+        backend.respond(CommonStatusCodes.SUCCESS);
+
+        // The retries were spent before the bisection, the half gives up
+        assertEquals("failed:[a]:7 registered:[b]:0", states.take());
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void cancelledFencesDropOutOfRetries() {
+        scheduler.add(fences("a", "b"), null);
+        backend.respond(CommonStatusCodes.NETWORK_ERROR);
+        states.take();
+
+        scheduler.cancel(Collections.singletonList("a"));
+        timer.runAll();
+
+        assertEquals(Arrays.asList("b"), backend.nextIds());
+        backend.respond(CommonStatusCodes.SUCCESS);
+        assertEquals("registered:[b]:0", states.take());
+    }
+
+    @Test
+    public void cancelAllStopsRetries() {
+        scheduler.add(fences("a", "b"), null);
+        backend.respond(CommonStatusCodes.NETWORK_ERROR);
+        states.take();
+
+        scheduler.cancelAll();
+        timer.runAll();
+
+        assertEquals(0, backend.pending());
+        assertEquals("", states.take());
+    }
+
+    @Test
+    public void addingAgainSupersedesPendingRetry() {
+        scheduler.add(fences("a", "b"), null);
+        backend.respond(CommonStatusCodes.NETWORK_ERROR);
+        states.take();
+
+        scheduler.add(fences("a"), null);
+        backend.respond(CommonStatusCodes.SUCCESS);
+        assertEquals("registered:[a]:0", states.take());
+
+        // Only b is left for the old retry
+        timer.runAll();
+        assertEquals(Arrays.asList("b"), backend.nextIds());
+        backend.respond(CommonStatusCodes.SUCCESS);
+        assertEquals("registered:[b]:0", states.take());
+    }
+
+    @Test
+    public void ignoresResultsOfSupersededRequests() {
+        scheduler.add(fences("a"), null);
+        scheduler.add(fences("a"), null);
+
+        backend.respond(CommonStatusCodes.SUCCESS);
+        assertEquals("", states.take());
+        backend.respond(CommonStatusCodes.SERVICE_DISABLED);
+        assertEquals("failed:[a]:3", states.take());
+    }
+
+    private static List<Geofence> fences(String... ids) {
+        List<Geofence> fences = new ArrayList<Geofence>(ids.length);
+        for (final String id : ids) {
+            fences.add(new Geofence() {
+                @Override
+                public String getRequestId() {
+                    return id;
+                }
+            });
+        }
+        return fences;
+    }
+
+    /**
+     * Queues requests until the test responds to them, oldest first.
+     */
+    private static class FakeBackend implements RegistrationScheduler.Backend {
+        private final List<List<Geofence>> requests = new ArrayList<List<Geofence>>();
+        private final List<RegistrationScheduler.ResultListener> listeners =
+            new ArrayList<RegistrationScheduler.ResultListener>();
+
+        @Override
+        public void addGeofences(List<Geofence> geofences, RegistrationScheduler.ResultListener listener) {
+            requests.add(geofences);
+            listeners.add(listener);
+        }
+
+        int pending() {
+            return requests.size();
+        }
+
+        List<String> nextIds() {
+            List<String> ids = new ArrayList<String>();
+            for (Geofence geofence : requests.get(0)) {
+                ids.add(geofence.getRequestId());
+            }
+            return ids;
+        }
+
+        void respond(int statusCode) {
+            requests.remove(0);
+            listeners.remove(0).onResult(statusCode);
+        }
+    }
+
+    private static class FakeTimer implements RegistrationScheduler.Timer {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        private long lastDelay = -1;
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            lastDelay = delayMillis;
+        }
+
+        int pending() {
+            return tasks.size();
+        }
+
+        long lastDelay() {
+            return lastDelay;
+        }
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : due) {
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingStates implements RegistrationScheduler.StateListener {
+        private final StringBuilder changes = new StringBuilder();
+
+        @Override
+        public void onStateChanged(List<String> ids, int state, int statusCode) {
+            if (changes.length() > 0) {
+                changes.append(' ');
+            }
+            changes.append(GeoNotification.registrationStateName(state)).append(':').append(ids)
+                .append(':').append(statusCode);
+        }
+
+        String take() {
+            String taken = changes.toString();
+            changes.setLength(0);
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.orhan.geofencer;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAlarmManager;
+
+/**
+ * Robolectric 3.1 leaves alarms allowed while idle to the framework, which
+ * has no alarm service. Schedules them like exact alarms instead.
+ */
+@Implements(AlarmManager.class)
+public class ShadowIdleAlarmManager extends ShadowAlarmManager {
+    @Implementation
+    public void setExactAndAllowWhileIdle(int type, long triggerAtTime, PendingIntent operation) {
+        setExact(type, triggerAtTime, operation);
+    }
+}
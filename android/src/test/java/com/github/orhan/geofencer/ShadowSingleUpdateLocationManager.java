@@ -0,0 +1,21 @@
+package com.github.orhan.geofencer;
+
+import android.app.PendingIntent;
+import android.location.LocationManager;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLocationManager;
+
+/**
+ * Robolectric 3.1 leaves one-shot location requests to the framework, which
+ * fails on its shadowed PendingIntent. Registered for all tests in
+ * robolectric.properties, so they keep sharing one sandbox.
+ */
+@Implements(LocationManager.class)
+public class ShadowSingleUpdateLocationManager extends ShadowLocationManager {
+    @Implementation
+    public void requestSingleUpdate(String provider, PendingIntent intent) {
+        requestLocationUpdates(provider, 0, 0, intent);
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.orhan.geofencer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SnapshotRestoreTest {
+    private static final GeoNotificationStore.RestoreListener IGNORE = new GeoNotificationStore.RestoreListener() {
+        @Override
+        public void onRestored(GeoNotification geoNotification) {
+        }
+    };
+
+    private GeoNotificationStore store;
+    private File file;
+
+    @Before
+    public void setUp() {
+        StoreTestSupport.resetDatabase();
+        store = new GeoNotificationStore(RuntimeEnvironment.application);
+        file = new File(RuntimeEnvironment.application.getFilesDir(), "fences.snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        StoreTestSupport.resetDatabase();
+    }
+
+    @Test
+    public void restoresFencesAsPending() throws IOException {
+        store.setGeoNotifications(Arrays.asList(fence("a"), fence("b")));
+        store.setRegistrationState(Arrays.asList("a", "b"), GeoNotification.REGISTRATION_FAILED, 1001);
+        store.exportSnapshot(file);
+
+        assertEquals(2, store.restoreSnapshot(file, IGNORE));
+
+        for (GeoNotification geo : store.getAll()) {
+            assertEquals(GeoNotification.REGISTRATION_PENDING, geo.registrationState);
+            assertEquals(0, geo.registrationStatus);
+        }
+    }
+
+    @Test
+    public void keepsStateTheListenerSets() throws IOException {
+        store.setGeoNotifications(Arrays.asList(fence("a"), fence("b")));
+        store.exportSnapshot(file);
+
+        store.restoreSnapshot(file, new GeoNotificationStore.RestoreListener() {
+            @Override
+            public void onRestored(GeoNotification geo) {
+                if (geo.id.equals("a")) {
+                    geo.registrationState = GeoNotification.REGISTRATION_REGISTERED;
+                }
+            }
+        });
+
+        assertEquals(GeoNotification.REGISTRATION_REGISTERED, store.getGeoNotification("a").registrationState);
+        assertEquals(GeoNotification.REGISTRATION_PENDING, store.getGeoNotification("b").registrationState);
+    }
+
+    @Test
+    public void rejectsUndecodableRecordAndKeepsStore() throws IOException {
+        store.setGeoNotifications(Arrays.asList(fence("a")));
+        StoreSnapshot.Writer writer = new StoreSnapshot.Writer(file);
+        try {
+            writer.add("b", GeoNotificationCodec.encode(fence("b")));
+            // A record version this build does not know
+            writer.add("c", new byte[] { 9, 0, 0 });
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+
+        try {
+            store.restoreSnapshot(file, IGNORE);
+            fail("restored an undecodable record");
+        } catch (IOException expected) {
+        }
+
+        List<String> ids = store.getAllIds();
+        assertEquals(Arrays.asList("a"), ids);
+    }
+
+    private static GeoNotification fence(String id) {
+        GeoNotification geo = new GeoNotification();
+        geo.id = id;
+        geo.latitude = 50.0;
+        geo.longitude = 18.0;
+        geo.radius = 100;
+        geo.transitionType = 1;
+        return geo;
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.orhan.geofencer;
+
+import java.lang.reflect.Field;
+
+/**
+ * Helpers for tests using the fence database.
+ */
+final class StoreTestSupport {
+    private StoreTestSupport() {
+    }
+
+    /**
+     * Closes and forgets the shared database helper. Robolectric gives every
+     * test a new application and database directory, while the helper is a
+     * static that would keep the previous test's database open.
+     */
+    static void resetDatabase() {
+        try {
+            Field instance = LocalStorageDBHelper.class.getDeclaredField("mInstance");
+            instance.setAccessible(true);
+            LocalStorageDBHelper helper = (LocalStorageDBHelper) instance.get(null);
+            if (helper != null) {
+                helper.close();
+                instance.set(null, null);
+            }
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.orhan.geofencer;
+
+import android.app.AlarmManager;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAlarmManager;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class TransitionFilterTest {
+    private Context context;
+
+    @Before
+    public void setUp() {
+        StoreTestSupport.resetDatabase();
+        context = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        StoreTestSupport.resetDatabase();
+    }
+
+    @Test
+    public void savesConfig() {
+        TransitionFilter.Config config = config(0.3, 0.3);
+        config.enabled = true;
+        config.deferMillis = 5000;
+        TransitionFilter.setConfig(context, config);
+
+        TransitionFilter.Config saved = TransitionFilter.getConfig(context);
+        assertEquals(true, saved.enabled);
+        assertEquals(0.3, saved.dropBelow, 1e-6);
+        assertEquals(0.3, saved.deferBelow, 1e-6);
+        assertEquals(5000, saved.deferMillis);
+    }
+
+    @Test
+    public void rejectsDropAboveDefer() {
+        TransitionFilter.setConfig(context, config(0.1, 0.5));
+
+        assertRejected(config(0.7, 0.5));
+
+        TransitionFilter.Config saved = TransitionFilter.getConfig(context);
+        assertEquals(0.1, saved.dropBelow, 1e-6);
+        assertEquals(0.5, saved.deferBelow, 1e-6);
+    }
+
+    @Test
+    public void rejectsScoresOutsideProbabilities() {
+        assertRejected(config(-0.1, 0.5));
+        assertRejected(config(0.1, 1.5));
+        assertRejected(config(Double.NaN, 0.5));
+    }
+
+    @Test
+    public void rejectsNegativeDeferral() {
+        TransitionFilter.Config config = config(0.2, 0.6);
+        config.deferMillis = -1;
+        assertRejected(config);
+    }
+
+    @Test
+    public void decidesByThresholds() {
+        TransitionFilter.Config config = config(0.2, 0.6);
+        assertEquals(TransitionFilter.DROP, TransitionFilter.decide(config, 0.1));
+        assertEquals(TransitionFilter.DEFER, TransitionFilter.decide(config, 0.2));
+        assertEquals(TransitionFilter.DEFER, TransitionFilter.decide(config, 0.59));
+        assertEquals(TransitionFilter.PASS, TransitionFilter.decide(config, 0.6));
+
+        config.deferMillis = 0;
+        assertEquals(TransitionFilter.DROP, TransitionFilter.decide(config, 0.4));
+    }
+
+    @Test
+    public void dropsDeferredTransitionWhenNoLocationArrives() throws InterruptedException {
+        TransitionFilter.Config config = enabledConfig(50);
+        long deferredAt = System.currentTimeMillis();
+        TransitionFilter.defer(context, 1, Arrays.asList("a"), config);
+
+        assertTrue(TransitionFilter.hasDeferred(context));
+        ShadowAlarmManager.ScheduledAlarm alarm = shadowOf(alarmManager()).getNextScheduledAlarm();
+        assertEquals(AlarmManager.RTC_WAKEUP, alarm.type);
+        assertTrue("alarm at " + (alarm.triggerAtTime - deferredAt),
+            alarm.triggerAtTime > deferredAt + 50 && alarm.triggerAtTime <= System.currentTimeMillis() + 51);
+
+        Thread.sleep(100);
+        TransitionFilter.onExpired(context);
+
+        assertFalse(TransitionFilter.hasDeferred(context));
+        assertNull(shadowOf(alarmManager()).getNextScheduledAlarm());
+    }
+
+    @Test
+    public void keepsAlarmForLaterExpiry() throws InterruptedException {
+        TransitionFilter.defer(context, 1, Arrays.asList("a"), enabledConfig(50));
+        TransitionFilter.defer(context, 2, Arrays.asList("b"), enabledConfig(60000));
+        long later = System.currentTimeMillis() + 60000;
+
+        Thread.sleep(100);
+        TransitionFilter.onExpired(context);
+
+        assertTrue(TransitionFilter.hasDeferred(context));
+        ShadowAlarmManager.ScheduledAlarm alarm = shadowOf(alarmManager()).getNextScheduledAlarm();
+        assertTrue("alarm " + (later - alarm.triggerAtTime) + "ms early", alarm.triggerAtTime > later - 1000);
+    }
+
+    private TransitionFilter.Config enabledConfig(long deferMillis) {
+        TransitionFilter.Config config = config(0.2, 0.6);
+        config.enabled = true;
+        config.deferMillis = deferMillis;
+        TransitionFilter.setConfig(context, config);
+        return config;
+    }
+
+    private AlarmManager alarmManager() {
+        return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private void assertRejected(TransitionFilter.Config config) {
+        try {
+            TransitionFilter.setConfig(context, config);
+            fail("accepted dropBelow " + config.dropBelow + ", deferBelow " + config.deferBelow);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static TransitionFilter.Config config(double dropBelow, double deferBelow) {
+        TransitionFilter.Config config = new TransitionFilter.Config();
+        config.dropBelow = dropBelow;
+        config.deferBelow = deferBelow;
+        return config;
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.orhan.geofencer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A recorded sequence of location fixes, read from GPX, CSV or NDJSON.
+ *
+ * CSV rows are {@code latitude,longitude[,time]} with an optional header
+ * line. NDJSON lines are objects with {@code latitude}/{@code lat},
+ * {@code longitude}/{@code lng}/{@code lon} and an optional {@code time}.
+ * Times are epoch milliseconds or ISO-8601 UTC, missing times are spaced one
+ * second apart.
+ */
+public class LocationTrace {
+    public enum Format { GPX, CSV, NDJSON }
+
+    private static final Pattern GPX_POINT = Pattern.compile(
+        "<(?:trkpt|wpt|rtept)\\b([^>]*?)(/>|>(.*?)</(?:trkpt|wpt|rtept)>)", Pattern.DOTALL);
+    private static final Pattern GPX_LAT = Pattern.compile("\\blat\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern GPX_LON = Pattern.compile("\\blon\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern GPX_TIME = Pattern.compile("<time>\\s*([^<]+?)\\s*</time>");
+    private static final Pattern ISO_TIME = Pattern.compile(
+        "(\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2})(\\.\\d+)?Z");
+
+    private double[] latitudes = new double[1024];
+    private double[] longitudes = new double[1024];
+    private long[] times = new long[1024];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public void add(double latitude, double longitude, long time) {
+        if (size == latitudes.length) {
+            latitudes = Arrays.copyOf(latitudes, size * 2);
+            longitudes = Arrays.copyOf(longitudes, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+        }
+        if (time <= 0) {
+            time = size == 0 ? 0 : times[size - 1] + 1000;
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        times[size] = time;
+        size++;
+    }
+
+    public static Format formatOf(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        if (name.endsWith(".gpx")) return Format.GPX;
+        if (name.endsWith(".csv")) return Format.CSV;
+        if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) return Format.NDJSON;
+        throw new IllegalArgumentException("Unknown trace format: " + fileName);
+    }
+
+    public static LocationTrace read(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return read(reader, formatOf(file.getName()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static LocationTrace read(Reader reader, Format format) throws IOException {
+        LocationTrace trace = new LocationTrace();
+        switch (format) {
+            case GPX:
+                trace.readGpx(reader);
+                break;
+            case CSV:
+                trace.readCsv(new BufferedReader(reader));
+                break;
+            case NDJSON:
+                trace.readNdjson(new BufferedReader(reader));
+                break;
+        }
+        return trace;
+    }
+
+    /**
+     * A random walk starting at the given point, moving up to
+     * {@code stepMeters} between fixes taken one second apart.
+     */
+    public static LocationTrace randomWalk(double latitude, double longitude, int points,
+                                           double stepMeters, long seed) {
+        Random random = new Random(seed);
+        LocationTrace trace = new LocationTrace();
+        double stepDegrees = stepMeters / 111195.0;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < points; i++) {
+            trace.add(latitude, longitude, 1000L * (i + 1));
+            heading += (random.nextDouble() - 0.5) * 0.6;
+            double step = random.nextDouble() * stepDegrees;
+            latitude += Math.cos(heading) * step;
+            longitude += Math.sin(heading) * step / Math.cos(Math.toRadians(latitude));
+        }
+        return trace;
+    }
+
+    private void readGpx(Reader reader) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            content.append(buffer, 0, read);
+        }
+        Matcher point = GPX_POINT.matcher(content);
+        while (point.find()) {
+            Matcher lat = GPX_LAT.matcher(point.group(1));
+            Matcher lon = GPX_LON.matcher(point.group(1));
+            if (!lat.find() || !lon.find()) {
+                continue;
+            }
+            long time = 0;
+            if (point.group(3) != null) {
+                Matcher timeMatcher = GPX_TIME.matcher(point.group(3));
+                if (timeMatcher.find()) {
+                    time = parseTime(timeMatcher.group(1));
+                }
+            }
+            add(Double.parseDouble(lat.group(1)), Double.parseDouble(lon.group(1)), time);
+        }
+    }
+
+    private void readCsv(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("[,;\\t]");
+            if (columns.length < 2) {
+                continue;
+            }
+            double latitude, longitude;
+            try {
+                latitude = Double.parseDouble(columns[0].trim());
+                longitude = Double.parseDouble(columns[1].trim());
+            } catch (NumberFormatException e) {
+                // Header line
+                continue;
+            }
+            add(latitude, longitude, columns.length > 2 ? parseTime(columns[2].trim()) : 0);
+        }
+    }
+
+    private void readNdjson(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonReader json = new JsonReader(new StringReader(line));
+            double latitude = Double.NaN, longitude = Double.NaN;
+            long time = 0;
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (json.peek() == JsonToken.NULL) {
+                    json.skipValue();
+                } else if ("latitude".equals(name) || "lat".equals(name)) {
+                    latitude = json.nextDouble();
+                } else if ("longitude".equals(name) || "lng".equals(name) || "lon".equals(name)) {
+                    longitude = json.nextDouble();
+                } else if ("time".equals(name) || "timestamp".equals(name)) {
+                    time = parseTime(json.nextString());
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+                add(latitude, longitude, time);
+            }
+        }
+    }
+
+    private static long parseTime(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Not epoch millis, try ISO-8601
+        }
+        Matcher iso = ISO_TIME.matcher(value);
+        if (!iso.matches()) {
+            return 0;
+        }
+        String millis = iso.group(2) == null ? ".000" : (iso.group(2) + "00").substring(0, 4);
+        Date date = GeoNotification.parseDate(iso.group(1) + millis + "Z");
+        return date == null ? 0 : date.getTime();
+    }
+}
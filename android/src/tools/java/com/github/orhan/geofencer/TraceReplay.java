@@ -0,0 +1,279 @@
+package com.github.orhan.geofencer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replays a location trace through the local fence evaluation and the same
+ * steps {@link TransitionProcessor} takes for a transition, with the store,
+ * notifier and JS emission replaced by in-memory stubs. It runs headless on
+ * the JVM of the unit tests, whose android.jar returns default values and
+ * which has Play Services and Gson on the classpath:
+ *
+ * <pre>
+ * gradle traceReplay -PtraceArgs='[--fences N] [--points N] [--seed N] [trace.gpx|.csv|.ndjson]'
+ * </pre>
+ *
+ * Without a trace file a random walk through the synthetic catalog is used.
+ */
+public class TraceReplay {
+    public interface Sink {
+        void notify(GeoNotification geo);
+
+        void emit(int transitionType, List<GeoNotification> geoNotifications);
+    }
+
+    /**
+     * Stands in for the notifier and the JS event: the notification is
+     * dropped and the transition serialized like the broadcast does.
+     */
+    public static class SerializingSink implements Sink {
+        public long emittedBytes;
+
+        @Override
+        public void notify(GeoNotification geo) {
+        }
+
+        @Override
+        public void emit(int transitionType, List<GeoNotification> geoNotifications) {
+            emittedBytes += Gson.get().toJson(geoNotifications).length();
+        }
+    }
+
+    public static final int STAGE_EVALUATE = 0;
+    public static final int STAGE_LOOKUP = 1;
+    public static final int STAGE_FILTER = 2;
+    public static final int STAGE_NOTIFY = 3;
+    public static final int STAGE_STORE_WRITE = 4;
+    public static final int STAGE_EMIT = 5;
+
+    private static final String[] STAGE_NAMES = {
+        "evaluate", "lookup", "filter", "notify", "storeWrite", "emit"
+    };
+
+    private static class StageStats {
+        long[] samples = new long[1024];
+        int count;
+        long total;
+
+        void record(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+            total += nanos;
+        }
+
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+        }
+    }
+
+    private final LocalGeofenceEngine engine;
+    private final Map<String, byte[]> store = new HashMap<String, byte[]>();
+    private final Sink sink;
+    private final StageStats[] stages = new StageStats[STAGE_NAMES.length];
+
+    private int points;
+    private long elapsedNanos;
+    private long enters;
+    private long exits;
+    private long dwells;
+    private long fired;
+    private long suppressed;
+
+    public TraceReplay(List<GeoNotification> catalog, Sink sink) {
+        this.engine = new LocalGeofenceEngine();
+        this.sink = sink;
+        for (GeoNotification geo : catalog) {
+            geo.applyPolygonBounds();
+            engine.addOrUpdate(geo);
+            store.put(geo.id, GeoNotificationCodec.encode(geo));
+        }
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new StageStats();
+        }
+    }
+
+    public void replay(LocationTrace trace) {
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.size(); i++) {
+            final double latitude = trace.getLatitude(i);
+            final double longitude = trace.getLongitude(i);
+            final long time = trace.getTime(i);
+            long evaluateStart = System.nanoTime();
+            final long[] transitionNanos = new long[1];
+            engine.onLocation(latitude, longitude, time, new LocalGeofenceEngine.Listener() {
+                @Override
+                public void onTransition(int transitionType, List<String> fenceIds) {
+                    long transitionStart = System.nanoTime();
+                    process(transitionType, fenceIds, latitude, longitude, time);
+                    transitionNanos[0] += System.nanoTime() - transitionStart;
+                }
+            });
+            stages[STAGE_EVALUATE].record(System.nanoTime() - evaluateStart - transitionNanos[0]);
+            points++;
+        }
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Mirrors {@link TransitionProcessor#process}.
+     */
+    private void process(int transitionType, List<String> fenceIds, double latitude, double longitude,
+                         long time) {
+        List<GeoNotification> geoNotifications = new ArrayList<GeoNotification>();
+        for (String fenceId : fenceIds) {
+            long stageStart = System.nanoTime();
+            GeoNotification geo = GeoNotificationCodec.decode(store.get(fenceId));
+            stages[STAGE_LOOKUP].record(System.nanoTime() - stageStart);
+
+            stageStart = System.nanoTime();
+            boolean falsePositive = geo.isPolygonFalsePositive(transitionType, latitude, longitude);
+            boolean fire = !falsePositive && geo.shouldFire(time);
+            stages[STAGE_FILTER].record(System.nanoTime() - stageStart);
+            if (falsePositive) {
+                suppressed++;
+            }
+            if (!fire) {
+                continue;
+            }
+
+            stageStart = System.nanoTime();
+            sink.notify(geo);
+            stages[STAGE_NOTIFY].record(System.nanoTime() - stageStart);
+
+            stageStart = System.nanoTime();
+            geo.showedNotification = true;
+            geo.lastFired = time;
+            store.put(geo.id, GeoNotificationCodec.encode(geo));
+            stages[STAGE_STORE_WRITE].record(System.nanoTime() - stageStart);
+
+            geo.transitionType = transitionType;
+            geoNotifications.add(geo);
+        }
+
+        switch (transitionType) {
+            case LocalGeofenceEngine.TRANSITION_ENTER: enters += fenceIds.size(); break;
+            case LocalGeofenceEngine.TRANSITION_EXIT: exits += fenceIds.size(); break;
+            case LocalGeofenceEngine.TRANSITION_DWELL: dwells += fenceIds.size(); break;
+        }
+        if (!geoNotifications.isEmpty()) {
+            fired += geoNotifications.size();
+            long stageStart = System.nanoTime();
+            sink.emit(transitionType, geoNotifications);
+            stages[STAGE_EMIT].record(System.nanoTime() - stageStart);
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println(String.format(Locale.US, "fences              %d", engine.size()));
+        out.println(String.format(Locale.US, "points              %d", points));
+        out.println(String.format(Locale.US, "elapsed             %.1f ms", elapsedNanos / 1e6));
+        out.println(String.format(Locale.US, "throughput          %.0f points/s",
+            elapsedNanos == 0 ? 0.0 : points * 1e9 / elapsedNanos));
+        out.println(String.format(Locale.US, "transitions         enter %d, exit %d, dwell %d",
+            enters, exits, dwells));
+        out.println(String.format(Locale.US, "fired               %d", fired));
+        out.println(String.format(Locale.US, "polygon suppressed  %d", suppressed));
+        out.println(String.format(Locale.US, "%-12s %10s %10s %10s %10s %12s",
+            "stage", "count", "mean us", "p50 us", "p99 us", "max us"));
+        for (int i = 0; i < stages.length; i++) {
+            StageStats stage = stages[i];
+            out.println(String.format(Locale.US, "%-12s %10d %10.2f %10.2f %10.2f %12.2f",
+                STAGE_NAMES[i], stage.count,
+                stage.count == 0 ? 0.0 : stage.total / 1e3 / stage.count,
+                stage.percentile(0.5) / 1e3, stage.percentile(0.99) / 1e3, stage.percentile(1) / 1e3));
+        }
+    }
+
+    /**
+     * Fences scattered uniformly over a square of {@code spanMeters} around
+     * the given center, one in twenty being a polygon.
+     */
+    public static List<GeoNotification> syntheticCatalog(int count, double latitude, double longitude,
+                                                         double spanMeters, long seed) {
+        Random random = new Random(seed);
+        double latSpan = spanMeters / 111195.0;
+        double lngSpan = latSpan / Math.cos(Math.toRadians(latitude));
+        List<GeoNotification> catalog = new ArrayList<GeoNotification>(count);
+        for (int i = 0; i < count; i++) {
+            GeoNotification geo = new GeoNotification();
+            geo.id = "fence-" + i;
+            geo.latitude = latitude + (random.nextDouble() - 0.5) * latSpan;
+            geo.longitude = longitude + (random.nextDouble() - 0.5) * lngSpan;
+            geo.radius = 50 + random.nextInt(450);
+            geo.transitionType = LocalGeofenceEngine.TRANSITION_ENTER | LocalGeofenceEngine.TRANSITION_EXIT;
+            if (i % 20 == 0) {
+                double size = geo.radius / 111195.0;
+                geo.polygon = new double[] {
+                    geo.latitude - size, geo.longitude - size,
+                    geo.latitude - size, geo.longitude + size,
+                    geo.latitude + size, geo.longitude
+                };
+            }
+            Notification notification = new Notification();
+            notification.id = i;
+            notification.title = "Fence " + i;
+            notification.text = "You are near fence " + i;
+            notification.setDataJson("{\"fence\":" + i + "}");
+            geo.notification = notification;
+            catalog.add(geo);
+        }
+        return catalog;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int fences = 10000;
+        int points = 100000;
+        long seed = 1;
+        String traceFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--fences".equals(args[i])) {
+                fences = Integer.parseInt(args[++i]);
+            } else if ("--points".equals(args[i])) {
+                points = Integer.parseInt(args[++i]);
+            } else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                traceFile = args[i];
+            }
+        }
+
+        LocationTrace trace = traceFile != null
+            ? LocationTrace.read(new File(traceFile))
+            : LocationTrace.randomWalk(52.52, 13.40, points, 30, seed);
+        if (trace.size() == 0) {
+            System.err.println("Trace has no points");
+            return;
+        }
+        // Spread the catalog over the area the trace covers, at least 20 km
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE;
+        for (int i = 0; i < trace.size(); i++) {
+            minLat = Math.min(minLat, trace.getLatitude(i));
+            maxLat = Math.max(maxLat, trace.getLatitude(i));
+            minLng = Math.min(minLng, trace.getLongitude(i));
+            maxLng = Math.max(maxLng, trace.getLongitude(i));
+        }
+        double spanMeters = Math.max(20000, Math.max(maxLat - minLat, maxLng - minLng) * 111195.0);
+        TraceReplay replay = new TraceReplay(
+            syntheticCatalog(fences, (minLat + maxLat) / 2, (minLng + maxLng) / 2, spanMeters, seed),
+            new SerializingSink());
+        replay.replay(trace);
+        replay.report(System.out);
+    }
+}
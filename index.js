@@ -2,13 +2,17 @@
 
 /* --- Imports --- */
 
-import {NativeAppEventEmitter, NativeModules} from 'react-native';
+import {NativeAppEventEmitter, NativeModules, Platform} from 'react-native';
 const RNGeofencer = NativeModules.Geofencer;
 
+// Only the callback methods exist on iOS
+const isAndroid = Platform.OS === 'android';
+
 
 /* --- Member variables --- */
 
 let geofenceListeners = [];
+let nextRequestId = 1;
 
 
 /* --- Class methods --- */
@@ -23,6 +27,17 @@ const GeoFencer = {
     BOTH: 3
   },
 
+  /**
+   * Native log level constants, matching android.util.Log.
+   */
+  LogLevel: {
+    VERBOSE: 2,
+    DEBUG: 3,
+    INFO: 4,
+    WARN: 5,
+    ERROR: 6
+  },
+
   /**
    * Initializing geofencer plugin.
    */
@@ -67,6 +82,15 @@ const GeoFencer = {
   /**
    * Adding new geofence to monitor.
    * Geofence could override the previously one with the same id.
+   * Fences equal to the stored ones are skipped, and fences whose only
+   * changes are in the notification are not re-registered.
+   *
+   * On Android, native work for addOrUpdate, remove and removeAll runs on
+   * a background queue. Calls of the same kind made while the previous one
+   * is still waiting are merged and resolve together.
+   *
+   * @return {Promise} resolving on Android to counts of the form
+   *   {added, updated, payloadOnly, unchanged}
    */
   addOrUpdate: function (geofences) {
     if (!Array.isArray(geofences)) {
@@ -75,16 +99,10 @@ const GeoFencer = {
 
     geofences.forEach(coerceProperties);
 
-    return new Promise((success, failed) => {
-      RNGeofencer.addOrUpdate(geofences,
-        (data) => {
-          success(data);
-        },
-        (error) => {
-          failed(error);
-        }
-      );
-    });
+    if (!isAndroid) {
+      return callNative(RNGeofencer.addOrUpdate, geofences);
+    }
+    return RNGeofencer.addOrUpdateAsync(geofences);
   },
 
   /**
@@ -95,16 +113,10 @@ const GeoFencer = {
       ids = [ids];
     }
 
-    return new Promise((success, failed) => {
-      RNGeofencer.remove(ids,
-        () => {
-          success();
-        },
-        (error) => {
-          failed(error);
-        }
-      );
-    });
+    if (!isAndroid) {
+      return callNative(RNGeofencer.remove, ids).then(() => undefined);
+    }
+    return RNGeofencer.removeAsync(ids);
   },
 
   /**
@@ -115,12 +127,174 @@ const GeoFencer = {
    * @return {Promise}
    */
   removeAll: function () {
+    if (!isAndroid) {
+      return callNative(RNGeofencer.removeAll).then(() => undefined);
+    }
+    return RNGeofencer.removeAllAsync();
+  },
+
+  /**
+   * Importing geofences from a GeoJSON FeatureCollection or NDJSON file in
+   * app storage, without passing them through the bridge. Features carry the
+   * geofence fields in their properties and a Point or Polygon geometry,
+   * NDJSON lines may also be geofences as passed to addOrUpdate.
+   *
+   * @name  importFromFile
+   * @param  {String} path absolute, or relative to the app's files directory
+   * @param  {Object} options optional `format` ('geojson' or 'ndjson', by file
+   *   extension otherwise), `batchSize` (default 500), `transitionType` for
+   *   records without one, `requestId` to cancel the import with cancelRead and
+   *   `onProgress` called with the running counts and `bytesRead`/`totalBytes`
+   * @return {Promise} if successful returns `{records, imported, updated,
+   *   unchanged, rejected, errors}`, rejected with code E_INVALID_ARGUMENT
+   *   without a path, with E_CANCELLED when cancelled, and on iOS. Batches
+   *   written before a cancellation stay imported
+   */
+  importFromFile: function (path, options = {}) {
+    if (!isAndroid) {
+      return androidOnly('importFromFile');
+    }
+
+    const requestId = options.requestId || ('import-' + nextRequestId++);
+    const onProgress = options.onProgress;
+    const subscription = onProgress && NativeAppEventEmitter.addListener('GeofencerImportProgress', (progress) => {
+      if (progress.requestId === requestId) {
+        onProgress(progress);
+      }
+    });
+
+    const nativeOptions = {requestId};
+    ['format', 'batchSize', 'transitionType'].forEach((key) => {
+      if (options[key] !== undefined) {
+        nativeOptions[key] = options[key];
+      }
+    });
+
+    const done = () => {
+      if (subscription) {
+        subscription.remove();
+      }
+    };
+
+    return RNGeofencer.importFromFile(path, nativeOptions).then(
+      (summary) => {
+        done();
+        return summary;
+      },
+      (error) => {
+        done();
+        throw error;
+      }
+    );
+  },
+
+  /**
+   * Writing all stored geofences to a checksummed snapshot file
+   *
+   * @name  exportSnapshot
+   * @param  {String} path absolute, or relative to the app's files directory
+   * @return {Promise} if successful returns `{fences, bytes, durationMs}`,
+   *   rejected with code E_INVALID_ARGUMENT without a path, and on iOS
+   */
+  exportSnapshot: function (path) {
+    if (!isAndroid) {
+      return androidOnly('exportSnapshot');
+    }
+
+    return RNGeofencer.exportSnapshot(path);
+  },
+
+  /**
+   * Replacing all stored geofences with the ones of a snapshot written by
+   * exportSnapshot. Nothing changes if the file is corrupt, and only
+   * geofences that changed are registered again.
+   *
+   * @name  importSnapshot
+   * @param  {String} path absolute, or relative to the app's files directory
+   * @return {Promise} if successful returns `{fences, durationMs}`, where
+   *   durationMs is the time the store took to restore, rejected with code
+   *   E_INVALID_ARGUMENT without a path, and on iOS
+   */
+  importSnapshot: function (path) {
+    if (!isAndroid) {
+      return androidOnly('importSnapshot');
+    }
+
+    return RNGeofencer.importSnapshot(path);
+  },
+
+  /**
+   * Getting all watched geofences from the device
+   *
+   * @name  getWatched
+   * @param  {String} requestId optional id to cancel the read with
+   *   cancelRead, Android only
+   * @return {Promise} if successful returns the array of geofences,
+   *   rejected with code E_CANCELLED when cancelled. On Android every
+   *   geofence carries `registrationState` ('pending', 'registered',
+   *   'retrying' or 'failed') and the Play Services `registrationStatus` of
+   *   its last failed request. On iOS the array is stringified to JSON
+   */
+  getWatched: function (requestId) {
+    if (!isAndroid) {
+      return callNative(RNGeofencer.getWatched);
+    }
+    return RNGeofencer.getWatchedAsync(requestId || null).then(withLazyData);
+  },
+
+  /**
+   * Getting all watched geofences in chunks, for stores too large to
+   * transfer at once. The next chunk is only sent after onChunk returned.
+   *
+   * @name  getWatchedChunked
+   * @param  {Function} onChunk called with (geofences, index) for every chunk
+   * @param  {Object} options optional `chunkSize` (default 100) and `requestId`
+   *   to cancel the read with cancelRead
+   * @return {Promise} if successful returns the number of geofences
+   *   delivered, rejected on iOS
+   */
+  getWatchedChunked: function (onChunk, options = {}) {
+    if (!isAndroid) {
+      return androidOnly('getWatchedChunked');
+    }
+
+    const requestId = options.requestId || ('watched-' + nextRequestId++);
+
     return new Promise((success, failed) => {
-      RNGeofencer.removeAll(
-        () => {
-          success();
+      // The count and the last chunk may arrive in either order
+      let count = null;
+      let lastReceived = false;
+
+      const subscription = NativeAppEventEmitter.addListener('GeofencerWatchedChunk', (chunk) => {
+        if (chunk.requestId !== requestId) {
+          return;
+        }
+
+        try {
+          onChunk(withLazyData(chunk.items), chunk.index);
+        } finally {
+          RNGeofencer.ackWatchedChunk(requestId);
+        }
+
+        if (chunk.last) {
+          lastReceived = true;
+          if (count !== null) {
+            subscription.remove();
+            success(count);
+          }
+        }
+      });
+
+      RNGeofencer.getWatchedChunked(requestId, options.chunkSize || 100).then(
+        (sent) => {
+          count = sent;
+          if (lastReceived) {
+            subscription.remove();
+            success(count);
+          }
         },
         (error) => {
+          subscription.remove();
           failed(error);
         }
       );
@@ -128,17 +302,90 @@ const GeoFencer = {
   },
 
   /**
-   * Getting all watched geofences from the device
+   * Cancelling a getWatched, getWatchedChunked or importFromFile call that
+   * has not finished yet
    *
-   * @name  getWatched
-   * @param  {Function} success callback
-   * @param  {Function} error callback
-   * @return {Promise} if successful returns geofences array stringify to JSON
+   * @name  cancelRead
+   * @param  {String} requestId id passed to getWatched, getWatchedChunked or
+   *   importFromFile
+   * @return {Promise} resolving to whether the call was still pending,
+   *   rejected on iOS
    */
-  getWatched: function () {
-    return new Promise((success, failed) => {
-      RNGeofencer.getWatched((watched) => {success(watched)}, (error) => {failed(error)});
-    });
+  cancelRead: function (requestId) {
+    if (!isAndroid) {
+      return androidOnly('cancelRead');
+    }
+
+    return RNGeofencer.cancelRead(requestId);
+  },
+
+  /**
+   * Getting runtime counters and latency histograms of the native plugin
+   *
+   * @name  getMetrics
+   * @return {Promise} if successful returns an object with `timers`,
+   *   `counters` and `fenceTable`, the `fences`, `heapBytes` and
+   *   `heapBytesPer10k` of the fence table registrations were last chosen
+   *   from, zeros before the first registration, rejected on iOS
+   */
+  getMetrics: function () {
+    if (!isAndroid) {
+      return androidOnly('getMetrics');
+    }
+
+    return callNative(RNGeofencer.getMetrics);
+  },
+
+  /**
+   * Configuring the filter for transitions triggered by inaccurate
+   * locations. Each transition is scored with the probability, from 0 to 1,
+   * that the device is really inside the fence on enter or outside on exit,
+   * given the accuracy of the triggering location and its distance to the
+   * fence edge. Settings persist across app restarts.
+   *
+   * @name  setTransitionFilter
+   * @param  {Object} options any of `enabled` (default false), `dropBelow`
+   *   score under which transitions are dropped (default 0.2), `deferBelow`
+   *   score under which they wait for a GPS fix to confirm them (default 0.6)
+   *   and `deferSeconds` how long they may wait (default 120)
+   * @return {Promise} if successful returns all current settings, rejected
+   *   when a score is outside 0..1 or `dropBelow` exceeds `deferBelow`, and
+   *   on iOS
+   */
+  setTransitionFilter: function (options) {
+    if (!isAndroid) {
+      return androidOnly('setTransitionFilter');
+    }
+
+    return RNGeofencer.setTransitionFilter(options);
+  },
+
+  /**
+   * Setting the minimum level of messages the native plugin logs, ignored
+   * on iOS
+   *
+   * @name  setLogLevel
+   * @param  {Number} level one of LogLevel
+   */
+  setLogLevel: function (level) {
+    if (isAndroid) {
+      RNGeofencer.setLogLevel(level);
+    }
+  },
+
+  /**
+   * Getting the most recent native log entries for diagnostics
+   *
+   * @name  getLogs
+   * @return {Promise} if successful returns an array of `{time, level,
+   *   message}`, rejected on iOS
+   */
+  getLogs: function () {
+    if (!isAndroid) {
+      return androidOnly('getLogs');
+    }
+
+    return callNative(RNGeofencer.getLogs);
   },
 
   /**
@@ -155,12 +402,67 @@ const GeoFencer = {
    * @param  {JSON} geofence
    */
   onTransitionReceived: function (geofence) {
+    if (Array.isArray(geofence)) {
+      withLazyData(geofence);
+    }
+
     geofenceListeners.forEach((geofenceListener) => {
       geofenceListener(geofence);
     });
   },
 };
 
+/**
+ * Calls a native method taking success and error callbacks after its
+ * arguments.
+ */
+function callNative(method, ...args) {
+  return new Promise((success, failed) => {
+    method(...args, (data) => {success(data)}, (error) => {failed(error)});
+  });
+}
+
+function androidOnly(name) {
+  const error = new Error(name + ' is only available on Android');
+  error.code = 'E_UNSUPPORTED';
+  return Promise.reject(error);
+}
+
+/**
+ * Native code passes notification data as its JSON text, `dataJson`. It is
+ * turned back into `data`, parsed when first read, so geofences whose data
+ * is never looked at are not parsed at all.
+ */
+function withLazyData(geofences) {
+  geofences.forEach((geofence) => {
+    const notification = geofence && geofence.notification;
+    if (!notification || typeof notification.dataJson !== 'string') {
+      return;
+    }
+
+    let json = notification.dataJson;
+    let data;
+    delete notification.dataJson;
+    Object.defineProperty(notification, 'data', {
+      enumerable: true,
+      configurable: true,
+      get: () => {
+        if (json !== null) {
+          data = JSON.parse(json);
+          json = null;
+        }
+        return data;
+      },
+      set: (value) => {
+        json = null;
+        data = value;
+      }
+    });
+  });
+
+  return geofences;
+}
+
 function coerceProperties(geofence) {
   if (geofence.id) {
     geofence.id = geofence.id.toString();
@@ -168,22 +470,34 @@ function coerceProperties(geofence) {
     throw new Error('Geofence id is not provided');
   }
 
-  if (geofence.latitude) {
-    geofence.latitude = coerceNumber('Geofence latitude', geofence.latitude);
-  } else {
-    throw new Error('Geofence latitude is not provided');
-  }
+  if (geofence.polygon) {
+    // Circle is computed natively as the minimal circle enclosing the polygon
+    if (!Array.isArray(geofence.polygon) || geofence.polygon.length < 3) {
+      throw new Error('Geofence polygon needs at least 3 vertices');
+    }
 
-  if (geofence.longitude) {
-    geofence.longitude = coerceNumber('Geofence longitude', geofence.longitude);
+    geofence.polygon = geofence.polygon.map((vertex, i) => ({
+      latitude: coerceNumber('Geofence polygon[' + i + '].latitude', vertex.latitude),
+      longitude: coerceNumber('Geofence polygon[' + i + '].longitude', vertex.longitude)
+    }));
   } else {
-    throw new Error('Geofence longitude is not provided');
-  }
+    if (geofence.latitude) {
+      geofence.latitude = coerceNumber('Geofence latitude', geofence.latitude);
+    } else {
+      throw new Error('Geofence latitude is not provided');
+    }
 
-  if (geofence.radius) {
-    geofence.radius = coerceNumber('Geofence radius', geofence.radius);
-  } else {
-    throw new Error('Geofence radius is not provided');
+    if (geofence.longitude) {
+      geofence.longitude = coerceNumber('Geofence longitude', geofence.longitude);
+    } else {
+      throw new Error('Geofence longitude is not provided');
+    }
+
+    if (geofence.radius) {
+      geofence.radius = coerceNumber('Geofence radius', geofence.radius);
+    } else {
+      throw new Error('Geofence radius is not provided');
+    }
   }
 
   if (geofence.transitionType) {
@@ -192,6 +506,25 @@ function coerceProperties(geofence) {
     throw new Error('Geofence transitionType is not provided');
   }
 
+  if (geofence.schedule) {
+    // Compiled natively, an invalid schedule fails the call
+    var weekly = geofence.schedule.weekly || [];
+    if (!Array.isArray(weekly)) {
+      throw new Error('Geofence schedule.weekly is not an Array');
+    }
+
+    geofence.schedule.weekly = weekly.map((range, i) => ({
+      days: (Array.isArray(range.days) ? range.days : [range.days]).map((day, j) =>
+        coerceInteger('Geofence schedule.weekly[' + i + '].days[' + j + ']', day)),
+      start: String(range.start),
+      end: String(range.end)
+    }));
+
+    if (geofence.schedule.exceptions) {
+      geofence.schedule.exceptions = geofence.schedule.exceptions.map(toLocalDate);
+    }
+  }
+
   if (geofence.notification) {
     if (geofence.notification.id) {
       geofence.notification.id = coerceNumber('Geofence notification.id', geofence.notification.id);
@@ -263,6 +596,17 @@ function coerceBoolean(name, value) {
   return value;
 }
 
+/**
+ * Dates are sent as their yyyy-MM-dd day on the device
+ */
+function toLocalDate(date) {
+  if (!(date instanceof Date)) {
+    return String(date);
+  }
+  var pad = (n) => (n < 10 ? '0' : '') + n;
+  return date.getFullYear() + '-' + pad(date.getMonth() + 1) + '-' + pad(date.getDate());
+}
+
 function isInt(n) {
   return Number(n) === n && n % 1 === 0;
 }